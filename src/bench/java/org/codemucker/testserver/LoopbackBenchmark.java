@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.codemucker.testserver.capturing.CaptureRetention;
+import org.codemucker.testserver.capturing.CapturingTestServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end requests per second over loopback, through a plain and a capturing server. Each thread is a client
+ * with a kept alive connection. Run via the 'bench' profile
+ *
+ * @author Bert van Brakel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LoopbackBenchmark {
+
+    @Param({ "plain", "capturing" })
+    public String server;
+
+    private TestServer plain;
+    private CapturingTestServer capturing;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        final CannedResponseServlet servlet = new CannedResponseServlet(CannedResponse.ok().setContentType("text/plain").setBody("ok"));
+        if ("capturing".equals(server)) {
+            capturing = new CapturingTestServer();
+            //keep memory flat over the run
+            capturing.setRetention(CaptureRetention.lastRequests(10000));
+            capturing.addServlet("/bench", servlet);
+            capturing.start();
+            url = capturing.getBaseHttpUrl() + "/bench";
+        } else {
+            plain = new TestServer();
+            plain.addServlet("/bench", servlet);
+            plain.start();
+            url = plain.getBaseHttpUrl() + "/bench";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        if (capturing != null) {
+            capturing.stop();
+        }
+        if (plain != null) {
+            plain.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        CloseableHttpClient http;
+
+        @Setup(Level.Trial)
+        public void open() {
+            //the default of 2 connections per route would have the threads queue on the client
+            http = HttpClientBuilder.create().setMaxConnPerRoute(64).setMaxConnTotal(64).build();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            http.close();
+        }
+    }
+
+    @Benchmark
+    public int get(final Client client) throws IOException {
+        final HttpResponse resp = client.http.execute(new HttpGet(url));
+        EntityUtils.consume(resp.getEntity());
+        return resp.getStatusLine().getStatusCode();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of capturing a browser sized request at each level of detail, from a fake request so only the capture code
+ * is measured. Run via the 'bench' profile
+ *
+ * @author Bert van Brakel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureBenchmark {
+
+    private HttpServletRequest req;
+
+    @Setup
+    public void setup() {
+        req = MockRequests.typical().newRequest();
+    }
+
+    @Benchmark
+    public CapturedRequest eager() {
+        return new CapturedRequest(req);
+    }
+
+    @Benchmark
+    public CapturedRequest lazy() {
+        return CapturedRequest.lazy(req, MultipartCapture.BUFFERED);
+    }
+
+    @Benchmark
+    public CapturedRequest lazyThenDecoded() {
+        final CapturedRequest capture = CapturedRequest.lazy(req, MultipartCapture.BUFFERED);
+        capture.getHeaders();
+        return capture;
+    }
+
+    @Benchmark
+    public CapturedRequest headersOnly() {
+        return CapturedRequest.headersOnly(req);
+    }
+
+    @Benchmark
+    public CapturedRequest requestLineOnly() {
+        return CapturedRequest.requestLineOnly(req);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of recording captures as more request threads contend on the capture logs. Retention is bounded so
+ * memory stays flat however long it runs. Run via the 'bench' profile
+ *
+ * @author Bert van Brakel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureRequestBenchmark {
+
+    private static final String[] PATHS = { "/a", "/b", "/c", "/d" };
+
+    @Param({ "false", "true" })
+    public boolean indexing;
+
+    private CapturingTestServer server;
+    private CapturedRequest capture;
+
+    @Setup
+    public void setup() {
+        server = new CapturingTestServer();
+        server.setRetention(CaptureRetention.lastRequests(10000));
+        server.setIndexing(indexing);
+        capture = new CapturedRequest(MockRequests.typical().newRequest());
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int next;
+    }
+
+    private void capture(final ThreadState state) {
+        server.captureRequest(PATHS[state.next++ & 3], capture, -1);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1(final ThreadState state) {
+        capture(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads4(final ThreadState state) {
+        capture(state);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16(final ThreadState state) {
+        capture(state);
+    }
+}
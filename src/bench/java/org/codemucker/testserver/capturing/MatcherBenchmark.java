@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.codemucker.jmatch.AList;
+import org.codemucker.jmatch.AbstractNotNullMatcher;
+import org.codemucker.jmatch.MatchDiagnostics;
+import org.codemucker.jmatch.Matcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of finding the captures matching an expected request, compiled matcher versus the reflective matcher it
+ * replaced. Run via the 'bench' profile
+ *
+ * @author Bert van Brakel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatcherBenchmark {
+
+    @Param({ "1000" })
+    public int numCaptures;
+
+    @Param({ "20" })
+    public int numHeaders;
+
+    private final List<CapturedRequest> captures = new ArrayList<CapturedRequest>();
+    private CapturedRequest expect;
+    private Matcher<CapturedRequest> matcher;
+    private Matcher<CapturedRequest> reflectiveMatcher;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < numCaptures; i++) {
+            captures.add(newRequest("/path/" + (i % 10), i));
+        }
+        expect = newRequest("/path/3", 3);
+        matcher = ACapturedRequest.equalTo(expect);
+        reflectiveMatcher = new ReflectiveMatcher(expect);
+    }
+
+    private CapturedRequest newRequest(final String path, final int id) {
+        final CapturedRequest req = new CapturedRequest();
+        req.scheme = "http";
+        req.host = "localhost";
+        req.port = 8080;
+        req.contextPath = "";
+        req.servletPath = path;
+        req.method = "GET";
+        req.characterEncoding = "UTF-8";
+        for (int h = 0; h < numHeaders; h++) {
+            req.addHeader("X-Header-" + h, "value-" + h);
+        }
+        req.setParamValues("id", Integer.toString(id));
+        return req;
+    }
+
+    @Benchmark
+    public void compiledMatcher(final Blackhole bh) {
+        for (final CapturedRequest capture : captures) {
+            bh.consume(matcher.matches(capture));
+        }
+    }
+
+    @Benchmark
+    public void reflectiveMatcher(final Blackhole bh) {
+        for (final CapturedRequest capture : captures) {
+            bh.consume(reflectiveMatcher.matches(capture));
+        }
+    }
+
+    @Benchmark
+    public void hashCodes(final Blackhole bh) {
+        for (final CapturedRequest capture : captures) {
+            bh.consume(capture.hashCode());
+        }
+    }
+
+    /**
+     * How ACapturedRequest matched before it was compiled, a reflective compare of the fields followed by list
+     * matchers for the cookies, headers and file items
+     */
+    private static class ReflectiveMatcher extends AbstractNotNullMatcher<CapturedRequest> {
+        private final CapturedRequest expect;
+        private final AList.IAcceptMoreMatchers<CapturedCookie> cookieMatchers = AList.of(CapturedCookie.class).inAnyOrder().withAtLeast();
+        private final AList.IAcceptMoreMatchers<CapturedHeader> headerMatchers = AList.of(CapturedHeader.class).inAnyOrder().withAtLeast();
+        private final AList.IAcceptMoreMatchers<CapturedFileItem> fileItemMatchers = AList.of(CapturedFileItem.class).inAnyOrder().withOnly();
+
+        ReflectiveMatcher(final CapturedRequest expect) {
+            this.expect = expect;
+            for (final CapturedCookie c : expect.getCookies()) {
+                cookieMatchers.item(new ACapturedCookie(c));
+            }
+            for (final CapturedHeader h : expect.getHeaders()) {
+                headerMatchers.item(new ACapturedHeader(h));
+            }
+            for (final CapturedFileItem item : expect.getMultiPartFileItems()) {
+                fileItemMatchers.item(new ACapturedFileItem(item));
+            }
+        }
+
+        @Override
+        public boolean matchesSafely(final CapturedRequest actual, final MatchDiagnostics diag) {
+            actual.decode();
+            return EqualsBuilder.reflectionEquals(expect, actual, new String[] { "cookies", "headers" })
+                    && diag.tryMatch(this, actual.getCookies(), cookieMatchers)
+                    && diag.tryMatch(this, actual.getHeaders(), headerMatchers)
+                    && diag.tryMatch(this, actual.getMultiPartFileItems(), fileItemMatchers);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Builds fake servlet requests for benchmarking the capture code without a server. Only what capturing reads is
+ * answered, anything else returns null, zero or false
+ *
+ * @author Bert van Brakel
+ */
+class MockRequests {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+    private final Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+    private final List<Cookie> cookies = new ArrayList<Cookie>();
+    private String method = "GET";
+    private String servletPath = "/api/orders";
+    private String pathInfo = "/12345/items";
+    private String contentType;
+    private byte[] body;
+
+    /**
+     * A GET of about the size a browser sends, 20 headers, 5 params and 3 cookies
+     */
+    static MockRequests typical() {
+        final MockRequests mock = new MockRequests();
+        mock.header("Host", "localhost:8080");
+        mock.header("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36");
+        mock.header("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        mock.header("Accept-Language", "en-GB,en;q=0.9");
+        mock.header("Accept-Encoding", "gzip, deflate, br");
+        mock.header("Connection", "keep-alive");
+        mock.header("Cache-Control", "no-cache");
+        mock.header("Cookie", "session=abc123; theme=dark; tracking=xyz789");
+        for (int i = 0; i < 12; i++) {
+            mock.header("X-Custom-" + i, "value-" + i + "-0123456789abcdef");
+        }
+        for (int i = 0; i < 5; i++) {
+            mock.params.put("param" + i, new String[] { "value" + i });
+        }
+        mock.cookies.add(new Cookie("session", "abc123"));
+        mock.cookies.add(new Cookie("theme", "dark"));
+        mock.cookies.add(new Cookie("tracking", "xyz789"));
+        return mock;
+    }
+
+    /**
+     * A multipart POST with a single file part of the given size
+     */
+    static MockRequests multipart(final int partSize) {
+        final String boundary = "----benchmarkboundary7MA4YWxkTrZu0gW";
+        final StringBuilder head = new StringBuilder();
+        head.append("--").append(boundary).append("\r\n");
+        head.append("Content-Disposition: form-data; name=\"field\"\r\n\r\nsome value\r\n");
+        head.append("--").append(boundary).append("\r\n");
+        head.append("Content-Disposition: form-data; name=\"file\"; filename=\"upload.bin\"\r\n");
+        head.append("Content-Type: application/octet-stream\r\n\r\n");
+        final byte[] headBytes = head.toString().getBytes(ASCII);
+        final byte[] tailBytes = ("\r\n--" + boundary + "--\r\n").getBytes(ASCII);
+        final byte[] body = new byte[headBytes.length + partSize + tailBytes.length];
+        System.arraycopy(headBytes, 0, body, 0, headBytes.length);
+        for (int i = 0; i < partSize; i++) {
+            body[headBytes.length + i] = (byte) ('a' + i % 26);
+        }
+        System.arraycopy(tailBytes, 0, body, headBytes.length + partSize, tailBytes.length);
+
+        final MockRequests mock = new MockRequests();
+        mock.method = "POST";
+        mock.contentType = "multipart/form-data; boundary=" + boundary;
+        mock.body = body;
+        mock.header("Host", "localhost:8080");
+        mock.header("Content-Type", mock.contentType);
+        mock.header("Content-Length", Integer.toString(body.length));
+        return mock;
+    }
+
+    private void header(final String name, final String value) {
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<String>();
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * A new request. Requests with a body need a new one per use as the body can only be read once
+     */
+    HttpServletRequest newRequest() {
+        final ServletInputStream in = body == null ? null : new BytesInputStream(body);
+        return (HttpServletRequest) Proxy.newProxyInstance(MockRequests.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method m, final Object[] args) {
+                        final String name = m.getName();
+                        if ("getScheme".equals(name)) {
+                            return "http";
+                        } else if ("getServerName".equals(name)) {
+                            return "localhost";
+                        } else if ("getServerPort".equals(name)) {
+                            return 8080;
+                        } else if ("getContextPath".equals(name)) {
+                            return "";
+                        } else if ("getServletPath".equals(name)) {
+                            return servletPath;
+                        } else if ("getPathInfo".equals(name)) {
+                            return pathInfo;
+                        } else if ("getMethod".equals(name)) {
+                            return method;
+                        } else if ("getProtocol".equals(name)) {
+                            return "HTTP/1.1";
+                        } else if ("getCharacterEncoding".equals(name)) {
+                            return "UTF-8";
+                        } else if ("getContentType".equals(name)) {
+                            return contentType;
+                        } else if ("getContentLength".equals(name)) {
+                            return body == null ? -1 : body.length;
+                        } else if ("getContentLengthLong".equals(name)) {
+                            return body == null ? -1L : (long) body.length;
+                        } else if ("getInputStream".equals(name)) {
+                            return in;
+                        } else if ("getQueryString".equals(name)) {
+                            return null;
+                        } else if ("getParameterMap".equals(name)) {
+                            return Collections.unmodifiableMap(params);
+                        } else if ("getCookies".equals(name)) {
+                            return cookies.toArray(new Cookie[cookies.size()]);
+                        } else if ("getHeaderNames".equals(name)) {
+                            return Collections.enumeration(headers.keySet());
+                        } else if ("getHeaders".equals(name)) {
+                            final List<String> values = headers.get(args[0]);
+                            return Collections.enumeration(values == null ? Collections.<String> emptyList() : values);
+                        } else if ("getHeader".equals(name)) {
+                            final List<String> values = headers.get(args[0]);
+                            return values == null ? null : values.get(0);
+                        } else if ("hashCode".equals(name)) {
+                            return System.identityHashCode(proxy);
+                        } else if ("equals".equals(name)) {
+                            return proxy == args[0];
+                        }
+                        return defaultFor(m.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultFor(final Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static class BytesInputStream extends ServletInputStream {
+        private final ByteArrayInputStream in;
+
+        BytesInputStream(final byte[] bytes) {
+            in = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(final ReadListener listener) {
+            try {
+                listener.onDataAvailable();
+            } catch (final IOException e) {
+                listener.onError(e);
+            }
+        }
+    }
+}
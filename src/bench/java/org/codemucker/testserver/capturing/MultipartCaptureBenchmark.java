@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of capturing multi part uploads, keeping the parts versus only their digests, for small and large parts.
+ * Run via the 'bench' profile
+ *
+ * @author Bert van Brakel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartCaptureBenchmark {
+
+    @Param({ "1024", "4194304" })
+    public int partSize;
+
+    @Param({ "BUFFERED", "DIGEST" })
+    public MultipartCapture mode;
+
+    private MockRequests requests;
+
+    @Setup
+    public void setup() {
+        requests = MockRequests.multipart(partSize);
+    }
+
+    @Benchmark
+    public CapturedRequest capture() {
+        //the body can only be read once, so a new request each time. Creating it is cheap next to the parsing
+        return new CapturedRequest(requests.newRequest(), mode);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A response fixed up front, served by a {@link CannedResponseServlet}. Everything is set at registration time so
+ * nothing about the response is worked out per request.
+ *
+ * <pre>
+ * server.addServlet("/hello", new CannedResponseServlet(CannedResponse.ok()
+ *         .setContentType("text/plain")
+ *         .setBody("Hello everyone")));
+ * </pre>
+ *
+ * @author Bert van Brakel
+ */
+public class CannedResponse {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private int status = 200;
+    //name, value pairs in the order added
+    private final List<String[]> headers = new ArrayList<String[]>();
+    private byte[] body = new byte[0];
+
+    /**
+     * An empty 200 response
+     */
+    public static CannedResponse ok() {
+        return new CannedResponse();
+    }
+
+    /**
+     * An empty response with the given status
+     */
+    public static CannedResponse status(final int status) {
+        return new CannedResponse().setStatus(status);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public CannedResponse setStatus(final int status) {
+        if (status < 100 || status > 999) {
+            throw new IllegalArgumentException("Expect a 3 digit status code but was " + status);
+        }
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * Add a header, keeping any already added with the same name. Content-Length is set from the body
+     */
+    public CannedResponse addHeader(final String name, final String value) {
+        if (name == null || name.trim().length() == 0) {
+            throw new IllegalArgumentException("Expect a header name");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Expect a value for header '" + name + "'");
+        }
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            throw new IllegalArgumentException("Content-Length is set from the body");
+        }
+        headers.add(new String[] { name, value });
+        return this;
+    }
+
+    public CannedResponse setContentType(final String contentType) {
+        return addHeader("Content-Type", contentType);
+    }
+
+    /**
+     * The header name, value pairs in the order added
+     */
+    List<String[]> getHeaders() {
+        return headers;
+    }
+
+    public byte[] getBody() {
+        return body.clone();
+    }
+
+    public CannedResponse setBody(final byte[] body) {
+        if (body == null) {
+            throw new IllegalArgumentException("Expect a body, use an empty array for none");
+        }
+        this.body = body.clone();
+        return this;
+    }
+
+    /**
+     * Set the body to the UTF-8 encoding of the given text
+     */
+    public CannedResponse setBody(final String body) {
+        if (body == null) {
+            throw new IllegalArgumentException("Expect a body, use an empty string for none");
+        }
+        this.body = body.getBytes(UTF8);
+        return this;
+    }
+
+    CannedResponse copy() {
+        final CannedResponse copy = new CannedResponse();
+        copy.status = status;
+        for (final String[] header : headers) {
+            copy.headers.add(header.clone());
+        }
+        copy.body = body;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append("[status=").append(status);
+        for (final String[] header : headers) {
+            sb.append(",").append(Arrays.toString(header));
+        }
+        return sb.append(",bodySize=").append(body.length).append("]").toString();
+    }
+}
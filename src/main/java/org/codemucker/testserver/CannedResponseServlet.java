@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.PreEncodedHttpField;
+import org.eclipse.jetty.server.Response;
+
+/**
+ * Serves a {@link CannedResponse} with no per request encoding or copying. The headers are encoded once into
+ * Jetty's pre encoded fields and the body once into a read only direct buffer, which Jetty writes straight to the
+ * connection as the complete content, working out the Content-Length from it.
+ *
+ * <p>
+ * When the response has been wrapped, say by a filter, the response is written through the servlet API instead
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class CannedResponseServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CannedResponse response;
+    private final transient HttpField[] fields;
+    private final transient ByteBuffer body;
+    //for wrapped responses
+    private final byte[] bytes;
+
+    public CannedResponseServlet(final CannedResponse response) {
+        this.response = response.copy();
+        final List<String[]> headers = this.response.getHeaders();
+        fields = new HttpField[headers.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = new PreEncodedHttpField(headers.get(i)[0], headers.get(i)[1]);
+        }
+        bytes = this.response.getBody();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        body = direct.asReadOnlyBuffer();
+    }
+
+    @Override
+    protected void service(final HttpServletRequest req, final HttpServletResponse res) throws ServletException, IOException {
+        if (!(res instanceof Response)) {
+            serviceWrapped(req, res);
+            return;
+        }
+        final Response jettyResponse = (Response) res;
+        jettyResponse.setStatus(response.getStatus());
+        final HttpFields httpFields = jettyResponse.getHttpFields();
+        for (final HttpField field : fields) {
+            httpFields.add(field);
+        }
+        if ("HEAD".equals(req.getMethod())) {
+            jettyResponse.setContentLength(body.remaining());
+            return;
+        }
+        //a view so concurrent requests don't share a position, the bytes aren't copied
+        jettyResponse.getHttpOutput().sendContent(body.duplicate());
+    }
+
+    private void serviceWrapped(final HttpServletRequest req, final HttpServletResponse res) throws IOException {
+        res.setStatus(response.getStatus());
+        for (final String[] header : response.getHeaders()) {
+            res.addHeader(header[0], header[1]);
+        }
+        res.setContentLength(bytes.length);
+        if (!"HEAD".equals(req.getMethod())) {
+            res.getOutputStream().write(bytes);
+        }
+    }
+
+    /**
+     * The response served
+     */
+    public CannedResponse getResponse() {
+        return response.copy();
+    }
+}
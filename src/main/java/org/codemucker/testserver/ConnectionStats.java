@@ -0,0 +1,241 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.servlet.ServletRequest;
+
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * Connection level statistics for a {@link TestServer}, to prove whether clients reuse connections. Counts are kept
+ * in striped counters so contended updates from many connections stay cheap, and each live connection is given an
+ * id which captured requests are tagged with.
+ *
+ * <p>
+ * A connection is the underlying socket, so a connection upgraded from HTTP/1.1 to h2c still counts as one.
+ * Durations are of closed connections only, byte and request counts include the live ones
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class ConnectionStats implements Connection.Listener, HttpChannel.Listener {
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(final long left, final long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentMap<EndPoint, Tracked> live = new ConcurrentHashMap<EndPoint, Tracked>();
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    //of closed connections, the live ones are added on read
+    private final LongAdder closedBytesIn = new LongAdder();
+    private final LongAdder closedBytesOut = new LongAdder();
+    private final LongAdder closedDurationMs = new LongAdder();
+    private final LongAccumulator closedMaxDurationMs = new LongAccumulator(MAX, 0);
+    private final LongAccumulator closedMaxRequests = new LongAccumulator(MAX, 0);
+
+    @Override
+    public void onOpened(final Connection connection) {
+        final EndPoint endPoint = connection.getEndPoint();
+        final Tracked upgraded = live.get(endPoint);
+        if (upgraded != null) {
+            //same socket, new protocol
+            upgraded.connection = connection;
+            return;
+        }
+        live.put(endPoint, new Tracked(nextId.incrementAndGet(), connection));
+        opened.increment();
+    }
+
+    @Override
+    public void onClosed(final Connection connection) {
+        final EndPoint endPoint = connection.getEndPoint();
+        final Tracked tracked = live.get(endPoint);
+        if (tracked == null) {
+            return;
+        }
+        if (endPoint.isOpen()) {
+            //being upgraded, the socket lives on. Keep what the old protocol did
+            tracked.retire(connection);
+            return;
+        }
+        if (live.remove(endPoint) == null) {
+            return;
+        }
+        tracked.retire(connection);
+        closed.increment();
+        closedBytesIn.add(tracked.bytesIn);
+        closedBytesOut.add(tracked.bytesOut);
+        final long duration = System.currentTimeMillis() - tracked.openedAtMs;
+        closedDurationMs.add(duration);
+        closedMaxDurationMs.accumulate(duration);
+        closedMaxRequests.accumulate(tracked.requests.get());
+    }
+
+    @Override
+    public void onRequestBegin(final Request request) {
+        requests.increment();
+        final Tracked tracked = trackedFor(request);
+        if (tracked != null) {
+            tracked.requests.incrementAndGet();
+        }
+    }
+
+    private Tracked trackedFor(final Request request) {
+        final HttpChannel channel = request == null ? null : request.getHttpChannel();
+        final EndPoint endPoint = channel == null ? null : channel.getEndPoint();
+        return endPoint == null ? null : live.get(endPoint);
+    }
+
+    /**
+     * The id of the connection the given request arrived on, or -1 if not known
+     */
+    public long connectionIdOf(final ServletRequest req) {
+        final Tracked tracked = trackedFor(Request.getBaseRequest(req));
+        return tracked == null ? -1 : tracked.id;
+    }
+
+    public long getConnectionsOpened() {
+        return opened.sum();
+    }
+
+    public long getConnectionsClosed() {
+        return closed.sum();
+    }
+
+    public int getConnectionsOpen() {
+        return live.size();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * The mean number of requests per connection opened
+     */
+    public double getMeanRequestsPerConnection() {
+        final long n = opened.sum();
+        return n == 0 ? 0 : (double) requests.sum() / n;
+    }
+
+    public long getMaxRequestsPerConnection() {
+        long max = closedMaxRequests.get();
+        for (final Tracked tracked : live.values()) {
+            max = Math.max(max, tracked.requests.get());
+        }
+        return max;
+    }
+
+    public long getBytesIn() {
+        long bytes = closedBytesIn.sum();
+        for (final Tracked tracked : live.values()) {
+            final Connection connection = tracked.connection;
+            bytes += tracked.bytesIn + (connection == null ? 0 : connection.getBytesIn());
+        }
+        return bytes;
+    }
+
+    public long getBytesOut() {
+        long bytes = closedBytesOut.sum();
+        for (final Tracked tracked : live.values()) {
+            final Connection connection = tracked.connection;
+            bytes += tracked.bytesOut + (connection == null ? 0 : connection.getBytesOut());
+        }
+        return bytes;
+    }
+
+    /**
+     * The mean time closed connections were open for
+     */
+    public double getMeanConnectionDurationMs() {
+        final long n = closed.sum();
+        return n == 0 ? 0 : (double) closedDurationMs.sum() / n;
+    }
+
+    public long getMaxConnectionDurationMs() {
+        return closedMaxDurationMs.get();
+    }
+
+    /**
+     * Reset the counts. Live connections are still tracked, but only their activity from now on is counted
+     */
+    public void reset() {
+        opened.reset();
+        closed.reset();
+        requests.reset();
+        closedBytesIn.reset();
+        closedBytesOut.reset();
+        closedDurationMs.reset();
+        closedMaxDurationMs.reset();
+        closedMaxRequests.reset();
+        for (final Tracked tracked : live.values()) {
+            final Connection connection = tracked.connection;
+            tracked.requests.set(0);
+            tracked.bytesIn = connection == null ? 0 : -connection.getBytesIn();
+            tracked.bytesOut = connection == null ? 0 : -connection.getBytesOut();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[opened=" + getConnectionsOpened() + ",closed=" + getConnectionsClosed()
+                + ",open=" + getConnectionsOpen() + ",requests=" + getRequests() + ",maxRequestsPerConnection="
+                + getMaxRequestsPerConnection() + ",bytesIn=" + getBytesIn() + ",bytesOut=" + getBytesOut()
+                + ",meanDurationMs=" + getMeanConnectionDurationMs() + ",maxDurationMs=" + getMaxConnectionDurationMs() + "]";
+    }
+
+    /**
+     * A live socket. Only updated by the thread handling its open, close or upgrade
+     */
+    private static class Tracked {
+        final long id;
+        final long openedAtMs = System.currentTimeMillis();
+        final AtomicLong requests = new AtomicLong();
+        //null while being upgraded
+        volatile Connection connection;
+        //of any connections this socket was upgraded from
+        volatile long bytesIn;
+        volatile long bytesOut;
+
+        Tracked(final long id, final Connection connection) {
+            this.id = id;
+            this.connection = connection;
+        }
+
+        void retire(final Connection old) {
+            bytesIn += old.getBytesIn();
+            bytesOut += old.getBytesOut();
+            connection = null;
+        }
+    }
+}
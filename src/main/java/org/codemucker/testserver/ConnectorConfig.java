@@ -0,0 +1,380 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.unixsocket.UnixSocketConnector;
+
+/**
+ * Tunes the connector a {@link TestServer} accepts connections on. Useful when the server is a mock backend for
+ * throughput tests, where connection storms can overflow the accept queue and idle connections pile up.
+ *
+ * <p>
+ * Anything not set is left at Jetty's default
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class ConnectorConfig {
+
+    private static final Logger LOG = Logger.getLogger(ConnectorConfig.class);
+
+    private static final int DEFAULT = -1;
+
+    private int acceptors = DEFAULT;
+    private int selectors = DEFAULT;
+    private int acceptQueueSize = DEFAULT;
+    private long idleTimeoutMs = DEFAULT;
+    private int requestHeaderSize = DEFAULT;
+    private int responseHeaderSize = DEFAULT;
+    private int outputBufferSize = DEFAULT;
+    private int receiveBufferSize = DEFAULT;
+    private int sendBufferSize = DEFAULT;
+    private boolean tcpNoDelay = true;
+    private boolean reuseAddress = true;
+    private boolean reusePort;
+    private HttpProtocol protocol = HttpProtocol.HTTP_1_1;
+    private int maxConcurrentStreams = DEFAULT;
+
+    /**
+     * Leave everything at Jetty's defaults. This is the default
+     */
+    public static ConnectorConfig defaults() {
+        return new ConnectorConfig();
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * The number of threads accepting new connections
+     */
+    public ConnectorConfig setAcceptors(final int acceptors) {
+        this.acceptors = acceptors;
+        return this;
+    }
+
+    public int getSelectors() {
+        return selectors;
+    }
+
+    /**
+     * The number of threads selecting on the open connections
+     */
+    public ConnectorConfig setSelectors(final int selectors) {
+        this.selectors = selectors;
+        return this;
+    }
+
+    public int getAcceptQueueSize() {
+        return acceptQueueSize;
+    }
+
+    /**
+     * The size of the OS accept backlog. Raise if connection storms are refused
+     */
+    public ConnectorConfig setAcceptQueueSize(final int acceptQueueSize) {
+        this.acceptQueueSize = acceptQueueSize;
+        return this;
+    }
+
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    /**
+     * How long a connection can be idle before it's closed
+     */
+    public ConnectorConfig setIdleTimeout(final long duration, final TimeUnit unit) {
+        this.idleTimeoutMs = unit.toMillis(duration);
+        return this;
+    }
+
+    public int getRequestHeaderSize() {
+        return requestHeaderSize;
+    }
+
+    /**
+     * The buffer size for the request line and headers, so also the max size of them
+     */
+    public ConnectorConfig setRequestHeaderSize(final int requestHeaderSize) {
+        this.requestHeaderSize = requestHeaderSize;
+        return this;
+    }
+
+    public int getResponseHeaderSize() {
+        return responseHeaderSize;
+    }
+
+    public ConnectorConfig setResponseHeaderSize(final int responseHeaderSize) {
+        this.responseHeaderSize = responseHeaderSize;
+        return this;
+    }
+
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    /**
+     * The size of the response content buffer, responses smaller than this are sent in one go with a content length
+     */
+    public ConnectorConfig setOutputBufferSize(final int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+        return this;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * The socket receive buffer (SO_RCVBUF) of accepted connections
+     */
+    public ConnectorConfig setReceiveBufferSize(final int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * The socket send buffer (SO_SNDBUF) of accepted connections
+     */
+    public ConnectorConfig setSendBufferSize(final int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Whether to disable Nagle's algorithm on accepted connections. On by default
+     */
+    public ConnectorConfig setTcpNoDelay(final boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    public ConnectorConfig setReuseAddress(final boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+        return this;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Set SO_REUSEPORT on the listening socket so several servers can share a port. Ignored with a warning where the
+     * runtime or OS doesn't support it
+     */
+    public ConnectorConfig setReusePort(final boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    public HttpProtocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * The protocols to speak. Defaults to {@link HttpProtocol#HTTP_1_1}
+     */
+    public ConnectorConfig setProtocol(final HttpProtocol protocol) {
+        if (protocol == null) {
+            throw new IllegalArgumentException("Must provide a protocol. One of " + Arrays.toString(HttpProtocol.values()));
+        }
+        this.protocol = protocol;
+        return this;
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * The max number of concurrent HTTP/2 streams per connection the server advertises
+     */
+    public ConnectorConfig setMaxConcurrentStreams(final int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        return this;
+    }
+
+    HttpConfiguration newHttpConfiguration() {
+        final HttpConfiguration config = new HttpConfiguration();
+        if (requestHeaderSize > 0) {
+            config.setRequestHeaderSize(requestHeaderSize);
+        }
+        if (responseHeaderSize > 0) {
+            config.setResponseHeaderSize(responseHeaderSize);
+        }
+        if (outputBufferSize > 0) {
+            config.setOutputBufferSize(outputBufferSize);
+        }
+        return config;
+    }
+
+    /**
+     * The connection factories for the configured protocol, in order of preference
+     */
+    ConnectionFactory[] newConnectionFactories() {
+        final HttpConfiguration config = newHttpConfiguration();
+        switch (protocol) {
+        case H2C:
+            return new ConnectionFactory[] { newH2c(config) };
+        case HTTP_1_1_AND_H2C:
+            return new ConnectionFactory[] { new HttpConnectionFactory(config), newH2c(config) };
+        default:
+            return new ConnectionFactory[] { new HttpConnectionFactory(config) };
+        }
+    }
+
+    private HTTP2CServerConnectionFactory newH2c(final HttpConfiguration config) {
+        final HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(config);
+        if (maxConcurrentStreams > 0) {
+            h2c.setMaxConcurrentStreams(maxConcurrentStreams);
+        }
+        return h2c;
+    }
+
+    /**
+     * Create a configured connector speaking the given protocols, or the configured protocol if none given
+     */
+    ServerConnector newConnector(final Server server, final ConnectionFactory... factories) {
+        final ConnectionFactory[] protocols = factories.length > 0 ? factories : newConnectionFactories();
+        final ServerConnector connector = reusePort
+                ? new ReusePortConnector(server, acceptors, selectors, protocols)
+                : new ServerConnector(server, acceptors, selectors, protocols);
+        if (acceptQueueSize > 0) {
+            connector.setAcceptQueueSize(acceptQueueSize);
+        }
+        if (idleTimeoutMs >= 0) {
+            connector.setIdleTimeout(idleTimeoutMs);
+        }
+        if (receiveBufferSize > 0) {
+            connector.setAcceptedReceiveBufferSize(receiveBufferSize);
+        }
+        if (sendBufferSize > 0) {
+            connector.setAcceptedSendBufferSize(sendBufferSize);
+        }
+        connector.setAcceptedTcpNoDelay(tcpNoDelay);
+        connector.setReuseAddress(reuseAddress);
+        return connector;
+    }
+
+    /**
+     * Create a configured connector listening on a Unix domain socket at the given path, speaking the configured
+     * protocol. TCP only settings are ignored
+     */
+    UnixSocketConnector newUnixSocketConnector(final Server server, final String path) {
+        final UnixSocketConnector connector = new UnixSocketConnector(server, selectors > 0 ? selectors : 1, newConnectionFactories());
+        connector.setUnixSocket(path);
+        if (acceptQueueSize > 0) {
+            connector.setAcceptQueueSize(acceptQueueSize);
+        }
+        if (idleTimeoutMs >= 0) {
+            connector.setIdleTimeout(idleTimeoutMs);
+        }
+        return connector;
+    }
+
+    ConnectorConfig copy() {
+        final ConnectorConfig copy = new ConnectorConfig();
+        copy.acceptors = acceptors;
+        copy.selectors = selectors;
+        copy.acceptQueueSize = acceptQueueSize;
+        copy.idleTimeoutMs = idleTimeoutMs;
+        copy.requestHeaderSize = requestHeaderSize;
+        copy.responseHeaderSize = responseHeaderSize;
+        copy.outputBufferSize = outputBufferSize;
+        copy.receiveBufferSize = receiveBufferSize;
+        copy.sendBufferSize = sendBufferSize;
+        copy.tcpNoDelay = tcpNoDelay;
+        copy.reuseAddress = reuseAddress;
+        copy.reusePort = reusePort;
+        copy.protocol = protocol;
+        copy.maxConcurrentStreams = maxConcurrentStreams;
+        return copy;
+    }
+
+    /**
+     * Jetty 9 can't set SO_REUSEPORT itself, so open and bind the listening channel ourselves
+     */
+    private static class ReusePortConnector extends ServerConnector {
+
+        ReusePortConnector(final Server server, final int acceptors, final int selectors, final ConnectionFactory... factories) {
+            super(server, acceptors, selectors, factories);
+        }
+
+        @Override
+        public void open() throws IOException {
+            if (isOpen()) {
+                return;
+            }
+            final ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                enableReusePort(channel);
+                channel.socket().setReuseAddress(getReuseAddress());
+                final InetSocketAddress address = getHost() == null ? new InetSocketAddress(getPort()) : new InetSocketAddress(getHost(), getPort());
+                channel.bind(address, getAcceptQueueSize());
+            } catch (final IOException e) {
+                channel.close();
+                throw new IOException("Failed to bind to " + getHost() + ":" + getPort(), e);
+            }
+            open(channel);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void enableReusePort(final ServerSocketChannel channel) throws IOException {
+            final SocketOption<Boolean> option;
+            try {
+                //only on java 9 and later
+                option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            } catch (final Exception e) {
+                LOG.warn("SO_REUSEPORT not supported by this runtime, ignoring");
+                return;
+            }
+            if (!channel.supportedOptions().contains(option)) {
+                LOG.warn("SO_REUSEPORT not supported on this OS, ignoring");
+                return;
+            }
+            channel.setOption(option, Boolean.TRUE);
+        }
+    }
+}
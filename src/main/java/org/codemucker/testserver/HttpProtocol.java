@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+/**
+ * The protocols a {@link TestServer} connector speaks
+ *
+ * @author Bert van Brakel
+ */
+public enum HttpProtocol {
+    /**
+     * Plain HTTP/1.1. The default
+     */
+    HTTP_1_1,
+    /**
+     * Cleartext HTTP/2 only. Clients must use prior knowledge, starting with the HTTP/2 connection preface
+     */
+    H2C,
+    /**
+     * HTTP/1.1 and cleartext HTTP/2 on the same port. HTTP/2 clients can either upgrade from HTTP/1.1 or start
+     * with the connection preface
+     */
+    HTTP_1_1_AND_H2C;
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+/**
+ * Serves large bodies without holding them on the heap, for testing download clients. Either a file, memory mapped
+ * once and written from the page cache, or a deterministic synthetic payload of any length generated from a seed a
+ * chunk at a time.
+ *
+ * <p>
+ * Single byte ranges are supported, answering with 206 partial content or 416 if the range can't be satisfied.
+ * Requests for multiple ranges get the full body, which the spec allows
+ * </p>
+ *
+ * <pre>
+ * server.addServlet("/big.bin", PayloadServlet.synthetic(5L * 1024 * 1024 * 1024, 42));
+ * server.addServlet("/file.iso", PayloadServlet.file(new File("/data/file.iso")));
+ * </pre>
+ *
+ * @author Bert van Brakel
+ */
+public class PayloadServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Max bytes per mapping. A single mapping can't exceed 2GB
+     */
+    private static final long MAX_REGION = 1024 * 1024 * 1024;
+    /**
+     * Bytes handed to the connection per write
+     */
+    private static final int WRITE_CHUNK = 1024 * 1024;
+    private static final int SYNTHETIC_CHUNK = 64 * 1024;
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    private final transient Source source;
+    private final String contentType;
+
+    private PayloadServlet(final Source source, final String contentType) {
+        this.source = source;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Serve the given file, mapped into memory now. Changes to the file's length after this aren't seen
+     */
+    public static PayloadServlet file(final File file) throws IOException {
+        return file(file, "application/octet-stream");
+    }
+
+    public static PayloadServlet file(final File file, final String contentType) throws IOException {
+        return new PayloadServlet(new MappedSource(file), contentType);
+    }
+
+    /**
+     * Serve a generated payload of the given length. The same seed always gives the same bytes, see
+     * {@link #fillSynthetic(long, long, byte[], int, int)} to work out what a client should have received
+     */
+    public static PayloadServlet synthetic(final long length, final long seed) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Expect a length of zero or more but was " + length);
+        }
+        return new PayloadServlet(new SyntheticSource(length, seed), "application/octet-stream");
+    }
+
+    /**
+     * Fill the given buffer with the synthetic payload's bytes starting at the given offset into the payload
+     */
+    public static void fillSynthetic(final long seed, final long offset, final byte[] buf, final int off, final int len) {
+        long word = 0;
+        long wordIndex = -1;
+        for (int i = 0; i < len; i++) {
+            final long pos = offset + i;
+            if (pos >>> 3 != wordIndex) {
+                wordIndex = pos >>> 3;
+                word = mix(seed + wordIndex);
+            }
+            buf[off + i] = (byte) (word >>> ((pos & 7) << 3));
+        }
+    }
+
+    //splitmix64 finaliser, so any word can be generated without the ones before it
+    private static long mix(final long x) {
+        long z = x * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public long getLength() {
+        return source.length();
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse res) throws ServletException, IOException {
+        serve(req, res, true);
+    }
+
+    @Override
+    protected void doHead(final HttpServletRequest req, final HttpServletResponse res) throws ServletException, IOException {
+        serve(req, res, false);
+    }
+
+    private void serve(final HttpServletRequest req, final HttpServletResponse res, final boolean sendBody) throws IOException {
+        final long length = source.length();
+        res.setHeader("Accept-Ranges", "bytes");
+        res.setContentType(contentType);
+        long start = 0;
+        long end = length - 1;
+        final String range = req.getHeader("Range");
+        if (range != null) {
+            final long[] bounds = parseRange(range, length);
+            if (bounds == UNSATISFIABLE) {
+                res.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                res.setHeader("Content-Range", "bytes */" + length);
+                res.setContentLength(0);
+                return;
+            }
+            if (bounds != null) {
+                start = bounds[0];
+                end = bounds[1];
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        final long count = end - start + 1;
+        res.setContentLengthLong(count);
+        if (sendBody && count > 0) {
+            source.writeTo(res.getOutputStream(), start, count);
+        }
+    }
+
+    /**
+     * Parse a single 'bytes=' range
+     *
+     * @return the inclusive start and end, null to ignore the range and send everything, or {@link #UNSATISFIABLE}
+     */
+    static long[] parseRange(final String header, final long length) {
+        final String value = header.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') != -1) {
+            return null;
+        }
+        final String spec = value.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+            if (first.length() == 0) {
+                //the last n bytes
+                final long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[] { Math.max(0, length - suffix), length - 1 };
+            }
+            final long start = Long.parseLong(first);
+            final long end = last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            if (end < start) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private interface Source {
+        long length();
+
+        void writeTo(ServletOutputStream out, long offset, long count) throws IOException;
+    }
+
+    /**
+     * Mapped once, written as views onto the mapping so the bytes go from the page cache to the socket without
+     * passing through the heap
+     */
+    private static class MappedSource implements Source {
+        private final MappedByteBuffer[] regions;
+        private final long length;
+
+        MappedSource(final File file) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                length = channel.size();
+                final int numRegions = (int) Math.max(1, (length + MAX_REGION - 1) / MAX_REGION);
+                regions = new MappedByteBuffer[numRegions];
+                for (int i = 0; i < numRegions; i++) {
+                    final long offset = i * MAX_REGION;
+                    regions[i] = channel.map(MapMode.READ_ONLY, offset, Math.min(MAX_REGION, length - offset));
+                }
+            } finally {
+                //the mapping outlives the channel
+                raf.close();
+            }
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(final ServletOutputStream out, long offset, long count) throws IOException {
+            final byte[] copyBuf = out instanceof HttpOutput ? null : new byte[WRITE_CHUNK];
+            while (count > 0) {
+                final ByteBuffer region = regions[(int) (offset / MAX_REGION)].duplicate();
+                final int pos = (int) (offset % MAX_REGION);
+                final int n = (int) Math.min(count, Math.min(WRITE_CHUNK, region.capacity() - pos));
+                region.limit(pos + n).position(pos);
+                if (copyBuf == null) {
+                    ((HttpOutput) out).write(region);
+                } else {
+                    //wrapped output, can only write bytes
+                    region.get(copyBuf, 0, n);
+                    out.write(copyBuf, 0, n);
+                }
+                offset += n;
+                count -= n;
+            }
+        }
+    }
+
+    /**
+     * Generated a chunk at a time into a single reused buffer
+     */
+    private static class SyntheticSource implements Source {
+        private final long length;
+        private final long seed;
+
+        SyntheticSource(final long length, final long seed) {
+            this.length = length;
+            this.seed = seed;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(final ServletOutputStream out, long offset, long count) throws IOException {
+            final byte[] buf = new byte[(int) Math.min(SYNTHETIC_CHUNK, count)];
+            while (count > 0) {
+                final int n = (int) Math.min(count, buf.length);
+                fillSynthetic(seed, offset, buf, 0, n);
+                out.write(buf, 0, n);
+                offset += n;
+                count -= n;
+            }
+        }
+    }
+}
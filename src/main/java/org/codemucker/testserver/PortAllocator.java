@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out ports from a fixed range for tests which need predictable ports. Safe to use from many threads and
+ * from many JVMs at once, such as parallel test forks, so servers started together never get the same port and
+ * don't need to retry.
+ *
+ * <p>
+ * Within a JVM ports are claimed from a shared cursor. Across JVMs a port is claimed by holding a lock on a file
+ * per port under a shared directory, which the OS releases if the JVM dies. Ports used by anything not using an
+ * allocator over the same directory aren't known about, so pick a range nothing else uses.
+ * </p>
+ *
+ * <pre>
+ * final PortAllocator ports = PortAllocator.range(20000, 20999);
+ * final int port = ports.allocate();
+ * server.setHttpPort(port);
+ * ...
+ * ports.release(port);
+ * </pre>
+ *
+ * @author Bert van Brakel
+ */
+public class PortAllocator {
+
+    private static final File DEFAULT_LOCK_DIR = new File(System.getProperty("java.io.tmpdir"), "codemucker-testserver-ports");
+
+    private final int from;
+    private final int to;
+    private final File lockDir;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final ConcurrentMap<Integer, Claim> claimed = new ConcurrentHashMap<Integer, Claim>();
+
+    private PortAllocator(final int from, final int to, final File lockDir) {
+        if (from < 1 || to > 65535 || from > to) {
+            throw new IllegalArgumentException("Expect a port range within 1-65535 but was " + from + "-" + to);
+        }
+        if (!lockDir.isDirectory() && !lockDir.mkdirs() && !lockDir.isDirectory()) {
+            throw new IllegalArgumentException("Can't create port lock dir " + lockDir.getAbsolutePath());
+        }
+        this.from = from;
+        this.to = to;
+        this.lockDir = lockDir;
+    }
+
+    /**
+     * Allocate from the given inclusive range, coordinating with other JVMs via a shared directory under the temp dir
+     */
+    public static PortAllocator range(final int from, final int to) {
+        return new PortAllocator(from, to, DEFAULT_LOCK_DIR);
+    }
+
+    /**
+     * Allocate from the given inclusive range, coordinating with other JVMs using the same lock dir
+     */
+    public static PortAllocator range(final int from, final int to, final File lockDir) {
+        return new PortAllocator(from, to, lockDir);
+    }
+
+    /**
+     * Claim a port no other allocator over the same lock dir holds
+     *
+     * @throws IllegalStateException if every port in the range is taken
+     */
+    public int allocate() {
+        final int size = to - from + 1;
+        //each caller starts from a different place, so concurrent callers rarely contend for the same port
+        final int start = cursor.getAndIncrement();
+        for (int i = 0; i < size; i++) {
+            final int port = from + (int) ((start + i & 0xFFFFFFFFL) % size);
+            if (claimed.containsKey(port)) {
+                continue;
+            }
+            final Claim claim = Claim.tryClaim(new File(lockDir, port + ".lock"));
+            if (claim == null) {
+                continue;
+            }
+            if (claimed.putIfAbsent(port, claim) == null) {
+                return port;
+            }
+            claim.release();
+        }
+        throw new IllegalStateException("All ports in the range " + from + "-" + to + " are allocated");
+    }
+
+    /**
+     * Give the port back once the server using it has stopped
+     *
+     * @return false if the port wasn't allocated by this allocator
+     */
+    public boolean release(final int port) {
+        final Claim claim = claimed.remove(port);
+        if (claim == null) {
+            return false;
+        }
+        claim.release();
+        return true;
+    }
+
+    /**
+     * Release all ports allocated by this allocator
+     */
+    public void releaseAll() {
+        for (final Integer port : claimed.keySet()) {
+            release(port);
+        }
+    }
+
+    public int getNumAllocated() {
+        return claimed.size();
+    }
+
+    /**
+     * An OS level lock on a port's lock file
+     */
+    private static class Claim {
+        private final RandomAccessFile file;
+        private final FileLock lock;
+
+        private Claim(final RandomAccessFile file, final FileLock lock) {
+            this.file = file;
+            this.lock = lock;
+        }
+
+        static Claim tryClaim(final File lockFile) {
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(lockFile, "rw");
+                final FileChannel channel = file.getChannel();
+                final FileLock lock = channel.tryLock();
+                if (lock != null) {
+                    return new Claim(file, lock);
+                }
+            } catch (final OverlappingFileLockException e) {
+                //held by another allocator in this JVM
+            } catch (final IOException e) {
+                closeQuietly(file);
+                throw new RuntimeException("Error locking port file " + lockFile.getAbsolutePath(), e);
+            }
+            closeQuietly(file);
+            return null;
+        }
+
+        void release() {
+            try {
+                lock.release();
+            } catch (final IOException e) {
+                // ignore, closing releases it anyway
+            }
+            closeQuietly(file);
+        }
+
+        private static void closeQuietly(final RandomAccessFile file) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (final IOException e) {
+                    // ignore, we don't really care
+                }
+            }
+        }
+    }
+}
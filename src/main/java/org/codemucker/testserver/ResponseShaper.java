@@ -0,0 +1,697 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Applies a {@link ResponseTiming} to a request using async suspension, so no thread is held while a request is
+ * delayed or a throttled body trickles out. Waits are timed on a {@link TimerWheel}, which hands each resume back to
+ * the container's threads.
+ *
+ * <p>
+ * The servlet writes its body into a spool, the first {@value #MAX_HEAP} bytes on the heap and the rest in a temp
+ * file, and the body is sent from there without blocking at the throttled rate. If the servlet flushes, whatever
+ * the rate already allows is sent on the flushing thread. If it suspends the request, the body is sent once it
+ * completes the request
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+class ResponseShaper {
+
+    private static final Logger LOG = Logger.getLogger(ResponseShaper.class);
+
+    private static final String DELAYED_ATTR = ResponseShaper.class.getName() + ".delayed";
+    private static final int MAX_WRITE = 16 * 1024;
+    /**
+     * The most of a body held on the heap, the rest is spooled to a temp file
+     */
+    static final int MAX_HEAP = 1024 * 1024;
+
+    private final TimerWheel wheel;
+
+    ResponseShaper(final TimerWheel wheel) {
+        this.wheel = wheel;
+    }
+
+    /**
+     * Suspend the request for its latency, redispatching it once the latency has passed. Does nothing if the
+     * request has already been delayed or there's no latency
+     *
+     * @return true if the request was suspended, in which case the servlet must not be invoked yet
+     */
+    boolean delay(final HttpServletRequest req, final ResponseTiming timing) {
+        if (req.getAttribute(DELAYED_ATTR) != null) {
+            return false;
+        }
+        final long latencyMs = timing.nextLatencyMs();
+        if (latencyMs <= 0) {
+            return false;
+        }
+        req.setAttribute(DELAYED_ATTR, Boolean.TRUE);
+        final AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                async.dispatch();
+            }
+        }, latencyMs);
+        return true;
+    }
+
+    /**
+     * Invoke the servlet with its body spooled, then send the body after the time to first byte at the throttled
+     * rate. If the servlet suspends the request, the body is sent once it completes it
+     *
+     * @param servletReq the request as the servlet should see it
+     * @param req the container's request, used to suspend
+     */
+    void service(final Servlet servlet, final HttpServletRequest servletReq, final HttpServletRequest req, final HttpServletResponse res,
+            final ResponseTiming timing) throws ServletException, IOException {
+        final ShapedResponse shaped = new ShapedResponse(res, timing);
+        boolean serviced = false;
+        try {
+            servlet.service(new ShapedRequest(servletReq, shaped), shaped);
+            serviced = true;
+        } finally {
+            if (!serviced) {
+                shaped.release();
+            }
+        }
+        if (shaped.completedByServlet) {
+            shaped.release();
+            return;
+        }
+        if (shaped.async != null) {
+            //sent once the servlet completes the request
+            return;
+        }
+        final AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+        shaped.send(async);
+    }
+
+    /**
+     * Paces the body. The clock starts once the body is first offered, on the servlet first flushing or completing
+     */
+    private static class Pacer {
+        private final long timeToFirstByteNanos;
+        private final long bytesPerSecond;
+        //smallest write worth waking up for, about 20ms worth
+        final int minWrite;
+        private boolean offered;
+        private long firstByteNanos;
+        private long sent;
+
+        Pacer(final ResponseTiming timing) {
+            this.timeToFirstByteNanos = TimeUnit.MILLISECONDS.toNanos(timing.getTimeToFirstByteMs());
+            this.bytesPerSecond = timing.getBytesPerSecond();
+            this.minWrite = (int) Math.max(1, Math.min(MAX_WRITE, bytesPerSecond / 50));
+        }
+
+        void offer() {
+            if (!offered) {
+                offered = true;
+                firstByteNanos = System.nanoTime() + timeToFirstByteNanos;
+            }
+        }
+
+        /**
+         * How many of the available bytes can be sent now
+         */
+        long allowed(final long available) {
+            if (!offered) {
+                return 0;
+            }
+            final long elapsedNanos = System.nanoTime() - firstByteNanos;
+            if (elapsedNanos < 0) {
+                return 0;
+            }
+            if (bytesPerSecond <= 0) {
+                return available;
+            }
+            //split so long responses don't overflow
+            final long due = elapsedNanos / 1000000000L * bytesPerSecond + elapsedNanos % 1000000000L * bytesPerSecond / 1000000000L;
+            return Math.max(0, Math.min(available, due - sent));
+        }
+
+        /**
+         * How long until the given number of further bytes can be sent
+         */
+        long delayMs(final int wanted) {
+            final long pos = sent + wanted;
+            long dueNanos = firstByteNanos;
+            if (bytesPerSecond > 0) {
+                dueNanos += TimeUnit.SECONDS.toNanos(pos / bytesPerSecond) + pos % bytesPerSecond * 1000000000L / bytesPerSecond;
+            }
+            final long remainingNanos = dueNanos - System.nanoTime();
+            return Math.max(1, (remainingNanos + 999999) / 1000000);
+        }
+
+        void sent(final long n) {
+            sent += n;
+        }
+    }
+
+    /**
+     * The body written so far, the first {@link #MAX_HEAP} bytes on the heap and the rest in a temp file. Read
+     * from the front as it's sent
+     */
+    private static class Spool {
+        private byte[] heap = new byte[0];
+        private int heapSize;
+        private File file;
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private long fileSize;
+        private long sent;
+
+        void write(final byte[] b, final int off, final int len) throws IOException {
+            final int toHeap = Math.min(len, MAX_HEAP - heapSize);
+            if (toHeap > 0) {
+                if (heapSize + toHeap > heap.length) {
+                    heap = Arrays.copyOf(heap, Math.min(MAX_HEAP, Math.max(heapSize + toHeap, Math.max(8 * 1024, heap.length * 2))));
+                }
+                System.arraycopy(b, off, heap, heapSize, toHeap);
+                heapSize += toHeap;
+            }
+            if (len > toHeap) {
+                final ByteBuffer buf = ByteBuffer.wrap(b, off + toHeap, len - toHeap);
+                final FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    fileSize += ch.write(buf, fileSize);
+                }
+            }
+        }
+
+        private FileChannel channel() throws IOException {
+            if (channel == null) {
+                file = File.createTempFile("shaped-response", ".bin");
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+                //gone as soon as it's closed, where the OS allows removing an open file
+                if (file.delete()) {
+                    file = null;
+                }
+            }
+            return channel;
+        }
+
+        long size() {
+            return heapSize + fileSize;
+        }
+
+        long available() {
+            return size() - sent;
+        }
+
+        boolean isStarted() {
+            return sent > 0;
+        }
+
+        /**
+         * Write up to the given number of bytes from the front of the spool
+         *
+         * @return the number written
+         */
+        int sendTo(final ServletOutputStream out, final int max) throws IOException {
+            final int n;
+            if (sent < heapSize) {
+                n = (int) Math.min(max, heapSize - sent);
+                //the heap isn't written to once sending, so the container can hold on to it for an async write
+                out.write(heap, (int) sent, n);
+            } else {
+                n = (int) Math.min(max, available());
+                //a fresh chunk per write, as an async write may still be holding the last one
+                final ByteBuffer chunk = ByteBuffer.allocate(n);
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, sent - heapSize + chunk.position()) < 0) {
+                        throw new IOException("Spooled response body is shorter than expected");
+                    }
+                }
+                out.write(chunk.array(), 0, n);
+            }
+            sent += n;
+            return n;
+        }
+
+        /**
+         * Drop what's been written, only if none of it has been sent
+         */
+        void reset() throws IOException {
+            if (sent == 0) {
+                heapSize = 0;
+                fileSize = 0;
+                if (channel != null) {
+                    channel.truncate(0);
+                }
+            }
+        }
+
+        void release() {
+            heap = new byte[0];
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (final IOException e) {
+                    LOG.debug("error closing response spool", e);
+                }
+                raf = null;
+            }
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * Spools the body and sends it once the servlet is done, or as the rate allows if the servlet flushes. Status
+     * and headers go straight through as they aren't sent until the body is
+     */
+    private class ShapedResponse extends HttpServletResponseWrapper {
+        private final Pacer pacer;
+        private final Spool spool = new Spool();
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+        //set while we flush the writer ourselves, so it isn't taken as the servlet flushing
+        private boolean draining;
+        //set once the servlet flushes, from then on bytes are sent as the rate allows
+        private boolean streaming;
+        //set if the servlet suspends the request
+        ShapedAsyncContext async;
+        boolean completedByServlet;
+
+        ShapedResponse(final HttpServletResponse res, final ResponseTiming timing) {
+            super(res);
+            this.pacer = new Pacer(timing);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            return body();
+        }
+
+        private ServletOutputStream body() {
+            if (stream == null) {
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(final int b) throws IOException {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off, final int len) throws IOException {
+                        spool.write(b, off, len);
+                        if (streaming) {
+                            sendAllowed();
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        if (!draining) {
+                            stream();
+                        }
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        //the spool takes everything
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(final WriteListener listener) {
+                        try {
+                            listener.onWritePossible();
+                        } catch (final IOException e) {
+                            listener.onError(e);
+                        }
+                    }
+                };
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (stream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                writer = new PrintWriter(new OutputStreamWriter(body(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        /**
+         * The servlet has flushed, start the clock and send what the rate allows
+         */
+        private void stream() throws IOException {
+            streaming = true;
+            pacer.offer();
+            sendAllowed();
+        }
+
+        /**
+         * Send what the rate allows now on the calling thread, without waiting for more
+         */
+        private void sendAllowed() throws IOException {
+            long allowed = pacer.allowed(spool.available());
+            if (allowed <= 0) {
+                return;
+            }
+            final ServletOutputStream out = getResponse().getOutputStream();
+            while (allowed > 0) {
+                final int n = spool.sendTo(out, (int) Math.min(allowed, MAX_WRITE));
+                pacer.sent(n);
+                allowed -= n;
+            }
+            out.flush();
+        }
+
+        /**
+         * Send everything still held, ignoring the rate. For when the request moves on to another dispatch
+         */
+        void sendAll() throws IOException {
+            drainWriter();
+            final ServletOutputStream out = getResponse().getOutputStream();
+            while (spool.available() > 0) {
+                pacer.sent(spool.sendTo(out, MAX_WRITE));
+            }
+            release();
+        }
+
+        /**
+         * The servlet is done, send the rest of the body without blocking then complete the request
+         */
+        void send(final AsyncContext completing) {
+            drainWriter();
+            if (!spool.isStarted() && !isCommitted() && !containsHeader("Content-Length")) {
+                setContentLengthLong(spool.size());
+            }
+            pacer.offer();
+            new Sender(completing).start();
+        }
+
+        private void drainWriter() {
+            if (writer != null) {
+                draining = true;
+                try {
+                    writer.flush();
+                } finally {
+                    draining = false;
+                }
+            }
+        }
+
+        void release() {
+            spool.release();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            drainWriter();
+            stream();
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            resetSpool();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            resetSpool();
+        }
+
+        private void resetSpool() {
+            try {
+                spool.reset();
+            } catch (final IOException e) {
+                throw new RuntimeException("Error resetting response spool", e);
+            }
+        }
+
+        @Override
+        public void sendError(final int sc) throws IOException {
+            completedByServlet = true;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(final int sc, final String msg) throws IOException {
+            completedByServlet = true;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(final String location) throws IOException {
+            completedByServlet = true;
+            super.sendRedirect(location);
+        }
+
+        /**
+         * Sends the spooled body without blocking, pausing on the timer wheel whenever it gets ahead of the rate
+         */
+        private class Sender implements WriteListener {
+            private final AsyncContext completing;
+            private ServletOutputStream out;
+
+            private final Runnable write = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onWritePossible();
+                    } catch (final IOException e) {
+                        onError(e);
+                    }
+                }
+            };
+
+            //runs on the wheel, so only hands the write to the container
+            private final Runnable resume = new Runnable() {
+                @Override
+                public void run() {
+                    completing.start(write);
+                }
+            };
+
+            Sender(final AsyncContext completing) {
+                this.completing = completing;
+            }
+
+            void start() {
+                try {
+                    out = getResponse().getOutputStream();
+                    out.setWriteListener(this);
+                } catch (final IOException e) {
+                    onError(e);
+                }
+            }
+
+            @Override
+            public void onWritePossible() throws IOException {
+                while (out.isReady()) {
+                    final long available = spool.available();
+                    if (available == 0) {
+                        release();
+                        completing.complete();
+                        return;
+                    }
+                    final int wanted = (int) Math.min(available, pacer.minWrite);
+                    final long allowed = pacer.allowed(available);
+                    if (allowed < wanted) {
+                        wheel.schedule(resume, pacer.delayMs(wanted));
+                        return;
+                    }
+                    pacer.sent(spool.sendTo(out, (int) Math.min(allowed, MAX_WRITE)));
+                }
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+                //most likely the client gave up
+                release();
+                completing.complete();
+            }
+        }
+        /**
+         * The servlet's handle on the suspended request. Completing it sends the rest of the body first
+         */
+        class ShapedAsyncContext implements AsyncContext {
+            private final AsyncContext delegate;
+            private final ServletResponse response;
+            private boolean completed;
+
+            ShapedAsyncContext(final AsyncContext delegate, final ServletResponse response) {
+                this.delegate = delegate;
+                this.response = response;
+            }
+
+            @Override
+            public ServletRequest getRequest() {
+                return delegate.getRequest();
+            }
+
+            @Override
+            public ServletResponse getResponse() {
+                return response;
+            }
+
+            @Override
+            public boolean hasOriginalRequestAndResponse() {
+                return delegate.hasOriginalRequestAndResponse();
+            }
+
+            @Override
+            public void dispatch() {
+                sendBeforeDispatch();
+                delegate.dispatch();
+            }
+
+            @Override
+            public void dispatch(final String path) {
+                sendBeforeDispatch();
+                delegate.dispatch(path);
+            }
+
+            @Override
+            public void dispatch(final ServletContext context, final String path) {
+                sendBeforeDispatch();
+                delegate.dispatch(context, path);
+            }
+
+            /**
+             * The next dispatch writes straight to the response, so anything still held has to go first
+             */
+            private void sendBeforeDispatch() {
+                try {
+                    sendAll();
+                } catch (final IOException e) {
+                    //most likely the client gave up
+                    LOG.debug("error sending shaped response before redispatch", e);
+                    release();
+                }
+            }
+
+            @Override
+            public synchronized void complete() {
+                if (completed) {
+                    return;
+                }
+                completed = true;
+                if (completedByServlet) {
+                    release();
+                    delegate.complete();
+                } else {
+                    send(delegate);
+                }
+            }
+
+            @Override
+            public void start(final Runnable run) {
+                delegate.start(run);
+            }
+
+            @Override
+            public void addListener(final AsyncListener listener) {
+                delegate.addListener(listener);
+            }
+
+            @Override
+            public void addListener(final AsyncListener listener, final ServletRequest req, final ServletResponse res) {
+                delegate.addListener(listener, req, res);
+            }
+
+            @Override
+            public <T extends AsyncListener> T createListener(final Class<T> type) throws ServletException {
+                return delegate.createListener(type);
+            }
+
+            @Override
+            public void setTimeout(final long timeoutMs) {
+                delegate.setTimeout(timeoutMs);
+            }
+
+            @Override
+            public long getTimeout() {
+                return delegate.getTimeout();
+            }
+        }
+    }
+
+    /**
+     * Hands the servlet a {@link ShapedAsyncContext} if it suspends the request
+     */
+    private static class ShapedRequest extends HttpServletRequestWrapper {
+        private final ShapedResponse shaped;
+
+        ShapedRequest(final HttpServletRequest req, final ShapedResponse shaped) {
+            super(req);
+            this.shaped = shaped;
+        }
+
+        @Override
+        public AsyncContext startAsync() {
+            shaped.async = shaped.new ShapedAsyncContext(super.startAsync(), shaped);
+            return shaped.async;
+        }
+
+        @Override
+        public AsyncContext startAsync(final ServletRequest req, final ServletResponse res) {
+            shaped.async = shaped.new ShapedAsyncContext(super.startAsync(req, res), res);
+            return shaped.async;
+        }
+
+        @Override
+        public AsyncContext getAsyncContext() {
+            return shaped.async != null ? shaped.async : super.getAsyncContext();
+        }
+    }
+}
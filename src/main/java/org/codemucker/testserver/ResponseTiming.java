@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes a path behave like a slow backend, for testing client timeouts and retries. Set per path with
+ * {@link TestServer#setResponseTiming(String, ResponseTiming)}.
+ *
+ * <ul>
+ * <li>latency - how long before the servlet is invoked. Fixed, uniform between a min and max, or picked from a set
+ * of samples such as latencies recorded from a real backend</li>
+ * <li>time to first byte - how long after the servlet completes, or first flushes, before the first byte of the body
+ * is sent</li>
+ * <li>bytes per second - the rate the body is sent at</li>
+ * </ul>
+ *
+ * Requests are suspended while waiting rather than holding a thread, so thousands can be delayed at once. When
+ * delaying the first byte or throttling, the servlet's body is spooled, the first megabyte in memory and the rest in a
+ * temp file, then sent from there without holding a thread. If the servlet flushes, whatever the rate allows so far
+ * is sent straight away. If it suspends the request, the body is sent once it completes the request.
+ *
+ * <pre>
+ * server.setResponseTiming("/slow/*", ResponseTiming.uniformLatency(100, 500, TimeUnit.MILLISECONDS)
+ *         .setBytesPerSecond(64 * 1024));
+ * </pre>
+ *
+ * @author Bert van Brakel
+ */
+public class ResponseTiming {
+
+    private long minLatencyMs;
+    private long maxLatencyMs;
+    //null unless sampling
+    private long[] latencySamplesMs;
+    private long timeToFirstByteMs;
+    private long bytesPerSecond;
+
+    /**
+     * No delays, add some with the setters
+     */
+    public static ResponseTiming none() {
+        return new ResponseTiming();
+    }
+
+    public static ResponseTiming fixedLatency(final long latency, final TimeUnit unit) {
+        return new ResponseTiming().setFixedLatency(latency, unit);
+    }
+
+    public static ResponseTiming uniformLatency(final long min, final long max, final TimeUnit unit) {
+        return new ResponseTiming().setUniformLatency(min, max, unit);
+    }
+
+    public static ResponseTiming sampledLatency(final long... samplesMs) {
+        return new ResponseTiming().setSampledLatency(samplesMs);
+    }
+
+    public ResponseTiming setFixedLatency(final long latency, final TimeUnit unit) {
+        return setUniformLatency(latency, latency, unit);
+    }
+
+    /**
+     * Delay each request by a random time between the min and max inclusive
+     */
+    public ResponseTiming setUniformLatency(final long min, final long max, final TimeUnit unit) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Expect 0 <= min <= max but was min " + min + ", max " + max);
+        }
+        this.minLatencyMs = unit.toMillis(min);
+        this.maxLatencyMs = unit.toMillis(max);
+        this.latencySamplesMs = null;
+        return this;
+    }
+
+    /**
+     * Delay each request by a latency picked at random from the given samples, in millis. Recorded latencies give
+     * the same distribution as the backend they came from
+     */
+    public ResponseTiming setSampledLatency(final long... samplesMs) {
+        if (samplesMs == null || samplesMs.length == 0) {
+            throw new IllegalArgumentException("Expect at least one latency sample");
+        }
+        for (final long sample : samplesMs) {
+            if (sample < 0) {
+                throw new IllegalArgumentException("Expect latency samples of zero or more but got " + sample);
+            }
+        }
+        this.latencySamplesMs = samplesMs.clone();
+        this.minLatencyMs = 0;
+        this.maxLatencyMs = 0;
+        return this;
+    }
+
+    /**
+     * How long after the servlet completes, or first flushes, before the first byte of the body is sent
+     */
+    public ResponseTiming setTimeToFirstByte(final long delay, final TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Expect a delay of zero or more but was " + delay);
+        }
+        this.timeToFirstByteMs = unit.toMillis(delay);
+        return this;
+    }
+
+    /**
+     * The rate the body is sent at. Zero or less means as fast as the connection allows, which is the default
+     */
+    public ResponseTiming setBytesPerSecond(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    public long getTimeToFirstByteMs() {
+        return timeToFirstByteMs;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Pick the latency for the next request
+     */
+    long nextLatencyMs() {
+        final long[] samples = latencySamplesMs;
+        if (samples != null) {
+            return samples[ThreadLocalRandom.current().nextInt(samples.length)];
+        }
+        if (maxLatencyMs == minLatencyMs) {
+            return minLatencyMs;
+        }
+        return minLatencyMs + ThreadLocalRandom.current().nextLong(maxLatencyMs - minLatencyMs + 1);
+    }
+
+    /**
+     * Whether the body needs to be spooled so it can be delayed or throttled
+     */
+    boolean isShapingBody() {
+        return timeToFirstByteMs > 0 || bytesPerSecond > 0;
+    }
+
+    ResponseTiming copy() {
+        final ResponseTiming copy = new ResponseTiming();
+        copy.minLatencyMs = minLatencyMs;
+        copy.maxLatencyMs = maxLatencyMs;
+        copy.latencySamplesMs = latencySamplesMs;
+        copy.timeToFirstByteMs = timeToFirstByteMs;
+        copy.bytesPerSecond = bytesPerSecond;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[latencyMs=" + (latencySamplesMs != null ? "samples" + Arrays.toString(latencySamplesMs) : minLatencyMs + "-" + maxLatencyMs)
+                + ",timeToFirstByteMs=" + timeToFirstByteMs + ",bytesPerSecond=" + bytesPerSecond + "]";
+    }
+}
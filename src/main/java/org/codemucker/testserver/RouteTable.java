@@ -0,0 +1,234 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+/**
+ * An immutable table of servlets by path spec. Changes create a new table, so requests can look up routes without
+ * locking while routes are being swapped in and out.
+ *
+ * <p>
+ * Path specs follow the servlet spec mapping rules. In order of precedence an exact path '/a/b', the longest prefix
+ * '/a/*', an extension '*.ext' and finally the default '/'
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+class RouteTable {
+
+    static final RouteTable EMPTY = new RouteTable(new LinkedHashMap<String, Route>());
+
+    //in the order added
+    private final Map<String, Route> bySpec;
+    private final Map<String, Route> exact = new HashMap<String, Route>();
+    //keyed by the spec without the trailing '/*', so '/*' is ''
+    private final Map<String, Route> prefixes = new HashMap<String, Route>();
+    //keyed by the extension without the '*.'
+    private final Map<String, Route> extensions = new HashMap<String, Route>();
+    private final Route defaultRoute;
+
+    private RouteTable(final Map<String, Route> bySpec) {
+        this.bySpec = bySpec;
+        Route def = null;
+        for (final Route route : bySpec.values()) {
+            final String spec = route.pathSpec;
+            if ("/".equals(spec)) {
+                def = route;
+            } else if (spec.endsWith("/*")) {
+                prefixes.put(spec.substring(0, spec.length() - 2), route);
+            } else if (spec.startsWith("*.")) {
+                extensions.put(spec.substring(2), route);
+            } else {
+                exact.put(spec, route);
+            }
+        }
+        this.defaultRoute = def;
+    }
+
+    /**
+     * Check the spec is one we can route. Returns the spec with a leading '/' added if needed
+     */
+    static String normalise(final String pathSpec) {
+        String spec = pathSpec.trim();
+        if (spec.startsWith("*.")) {
+            if (spec.length() == 2 || spec.indexOf('/') != -1) {
+                throw new IllegalArgumentException("Invalid extension path spec '" + pathSpec + "'");
+            }
+            return spec;
+        }
+        if (!spec.startsWith("/")) {
+            spec = "/" + spec;
+        }
+        if (spec.indexOf('*') != -1 && !(spec.endsWith("/*") && spec.indexOf('*') == spec.length() - 1)) {
+            throw new IllegalArgumentException("Invalid path spec '" + pathSpec + "', wildcards are only allowed as '/prefix/*' or '*.ext'");
+        }
+        return spec;
+    }
+
+    /**
+     * A new table with the given route added, replacing any with the same spec
+     */
+    RouteTable with(final Route route) {
+        final Map<String, Route> copy = new LinkedHashMap<String, Route>(bySpec);
+        copy.put(route.pathSpec, route);
+        return new RouteTable(copy);
+    }
+
+    /**
+     * A new table without the given spec, or this table if not present
+     */
+    RouteTable without(final String pathSpec) {
+        if (!bySpec.containsKey(pathSpec)) {
+            return this;
+        }
+        final Map<String, Route> copy = new LinkedHashMap<String, Route>(bySpec);
+        copy.remove(pathSpec);
+        return new RouteTable(copy);
+    }
+
+    Route get(final String pathSpec) {
+        return bySpec.get(pathSpec);
+    }
+
+    List<Route> routes() {
+        return Collections.unmodifiableList(new ArrayList<Route>(bySpec.values()));
+    }
+
+    List<String> pathSpecs() {
+        return Collections.unmodifiableList(new ArrayList<String>(bySpec.keySet()));
+    }
+
+    /**
+     * Find the route for the given path within the context
+     *
+     * @return the match, or null if nothing routes the path
+     */
+    Match match(final String path) {
+        Route route = exact.get(path);
+        if (route != null) {
+            return new Match(route, path, null);
+        }
+        if (!prefixes.isEmpty()) {
+            //walk up the path a segment at a time, so the longest prefix wins
+            String prefix = path;
+            while (true) {
+                route = prefixes.get(prefix);
+                if (route != null) {
+                    final String pathInfo = path.length() == prefix.length() ? null : path.substring(prefix.length());
+                    return new Match(route, prefix, pathInfo);
+                }
+                final int slash = prefix.lastIndexOf('/');
+                if (slash < 0) {
+                    break;
+                }
+                prefix = prefix.substring(0, slash);
+            }
+        }
+        if (!extensions.isEmpty()) {
+            final int dot = path.lastIndexOf('.');
+            if (dot > path.lastIndexOf('/')) {
+                route = extensions.get(path.substring(dot + 1));
+                if (route != null) {
+                    return new Match(route, path, null);
+                }
+            }
+        }
+        return defaultRoute == null ? null : new Match(defaultRoute, path, null);
+    }
+
+    /**
+     * A servlet and the spec it's mapped to. Tracks the requests in flight so a removed or replaced servlet is only
+     * destroyed once the requests already using it complete
+     */
+    static class Route {
+        final String pathSpec;
+        final Servlet servlet;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean initialised = new AtomicBoolean();
+        private volatile boolean retired;
+
+        Route(final String pathSpec, final Servlet servlet) {
+            this.pathSpec = pathSpec;
+            this.servlet = servlet;
+        }
+
+        void init(final ServletConfig config) throws ServletException {
+            if (initialised.compareAndSet(false, true)) {
+                servlet.init(config);
+            }
+        }
+
+        void destroy() {
+            if (initialised.compareAndSet(true, false)) {
+                servlet.destroy();
+            }
+        }
+
+        /**
+         * Start a request on this route
+         *
+         * @return false if the route has been retired, so the request should look again
+         */
+        boolean enter() {
+            inFlight.incrementAndGet();
+            if (retired) {
+                exit();
+                return false;
+            }
+            return true;
+        }
+
+        void exit() {
+            if (inFlight.decrementAndGet() == 0 && retired) {
+                destroy();
+            }
+        }
+
+        /**
+         * No more requests will be routed here, destroy the servlet once the in flight requests complete
+         */
+        void retire() {
+            retired = true;
+            if (inFlight.get() == 0) {
+                destroy();
+            }
+        }
+    }
+
+    static class Match {
+        final Route route;
+        final String servletPath;
+        final String pathInfo;
+
+        Match(final Route route, final String servletPath, final String pathInfo) {
+            this.route = route;
+            this.servletPath = servletPath;
+            this.pathInfo = pathInfo;
+        }
+    }
+}
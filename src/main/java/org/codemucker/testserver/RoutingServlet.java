@@ -0,0 +1,206 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Mapped to '/*' and dispatches each request to the servlet in the current {@link RouteTable}. The table is read
+ * once per request without locking, so routes can be added, replaced and removed under load without a restart.
+ * The routed servlet sees the servlet path and path info as if it had been mapped by the container. Any
+ * {@link ResponseTiming} set for the route is applied around the servlet.
+ *
+ * @author Bert van Brakel
+ */
+class RoutingServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient AtomicReference<RouteTable> routes;
+    //by path spec
+    private final transient Map<String, ResponseTiming> timings;
+    private final transient ResponseShaper shaper;
+    private transient volatile boolean running;
+
+    RoutingServlet(final AtomicReference<RouteTable> routes, final Map<String, ResponseTiming> timings, final ResponseShaper shaper) {
+        this.routes = routes;
+        this.timings = timings;
+        this.shaper = shaper;
+    }
+
+    @Override
+    public void init() throws ServletException {
+        //routes are added under the same lock, see TestServer.addServlet
+        synchronized (routes) {
+            running = true;
+            for (final RouteTable.Route route : routes.get().routes()) {
+                initRoute(route);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (routes) {
+            running = false;
+            for (final RouteTable.Route route : routes.get().routes()) {
+                route.destroy();
+            }
+        }
+    }
+
+    /**
+     * Init the route's servlet if we're running. Must be called before the route is added to the table, holding
+     * the lock on the table reference
+     */
+    void initRoute(final RouteTable.Route route) throws ServletException {
+        if (running) {
+            route.init(newConfig(route));
+        }
+    }
+
+    private ServletConfig newConfig(final RouteTable.Route route) {
+        final ServletContext context = getServletContext();
+        return new ServletConfig() {
+            @Override
+            public String getServletName() {
+                return route.pathSpec;
+            }
+
+            @Override
+            public ServletContext getServletContext() {
+                return context;
+            }
+
+            @Override
+            public String getInitParameter(final String name) {
+                return null;
+            }
+
+            @Override
+            public Enumeration<String> getInitParameterNames() {
+                return Collections.enumeration(Collections.<String> emptyList());
+            }
+        };
+    }
+
+    @Override
+    protected void service(final HttpServletRequest req, final HttpServletResponse res) throws ServletException, IOException {
+        //mapped to '/*' so the path info is the whole path within the context
+        final String path = req.getPathInfo() == null ? "/" : req.getPathInfo();
+        while (true) {
+            final RouteTable.Match match = routes.get().match(path);
+            if (match == null) {
+                res.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            final ResponseTiming timing = timings.isEmpty() ? null : timings.get(match.route.pathSpec);
+            if (timing != null && shaper.delay(req, timing)) {
+                //redispatched here once the latency has passed
+                return;
+            }
+            if (!match.route.enter()) {
+                //removed or replaced since we looked, look again
+                continue;
+            }
+            try {
+                if (timing != null && timing.isShapingBody()) {
+                    shaper.service(match.route.servlet, new RoutedRequest(req, match), req, res, timing);
+                } else {
+                    match.route.servlet.service(new RoutedRequest(req, match), res);
+                }
+            } finally {
+                if (req.isAsyncStarted()) {
+                    //still using the servlet until it completes the request
+                    req.getAsyncContext().addListener(new RouteExit(match.route));
+                } else {
+                    match.route.exit();
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Exits the route once a request the servlet suspended completes, so the servlet isn't destroyed under it
+     */
+    private static class RouteExit implements AsyncListener {
+        private final RouteTable.Route route;
+
+        RouteExit(final RouteTable.Route route) {
+            this.route = route;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+            route.exit();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+            //always followed by onComplete
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            //always followed by onComplete
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+            //suspended again after a redispatch, listeners have to re-register
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    private static class RoutedRequest extends HttpServletRequestWrapper {
+        private final RouteTable.Match match;
+
+        RoutedRequest(final HttpServletRequest req, final RouteTable.Match match) {
+            super(req);
+            this.match = match;
+        }
+
+        @Override
+        public String getServletPath() {
+            return match.servletPath;
+        }
+
+        @Override
+        public String getPathInfo() {
+            return match.pathInfo;
+        }
+
+        @Override
+        public String getPathTranslated() {
+            return match.pathInfo == null ? null : getServletContext().getRealPath(match.pathInfo);
+        }
+    }
+}
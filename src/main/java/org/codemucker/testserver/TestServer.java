@@ -19,20 +19,28 @@ import static org.codemucker.lang.Check.checkNotBlank;
 import static org.codemucker.lang.Check.checkNotEmpty;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.URLEncoder;
 import java.net.UnknownHostException;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.Servlet;
+import javax.servlet.ServletException;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.NetworkConnector;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.unixsocket.UnixSocketConnector;
 /**
  * I make it easy to startup a server and mock out http responses. This is useful when
  * testing web clients
@@ -45,9 +53,21 @@ public class TestServer implements org.codemucker.testserver.Server {
 	private static final Logger LOG = Logger.getLogger(TestServer.class);
 
 	/**
-	 * The servlets we want to register when starting up the server
+	 * The servlets by path spec. Replaced wholesale on change so requests never lock, and kept across restarts
 	 */
-	private final Map<String, Servlet> servletsToRegisterOnStartup = new LinkedHashMap<String, Servlet>();
+	private final AtomicReference<RouteTable> routes = new AtomicReference<RouteTable>(RouteTable.EMPTY);
+	/**
+	 * Dispatches to the current routes. Null when not running
+	 */
+	private volatile RoutingServlet router;
+	/**
+	 * Response timings by path spec
+	 */
+	private final ConcurrentMap<String, ResponseTiming> timings = new ConcurrentHashMap<String, ResponseTiming>();
+	/**
+	 * Times delayed responses. Null when not running
+	 */
+	private TimerWheel timerWheel;
 
 	private Server server;
 	/**
@@ -55,32 +75,82 @@ public class TestServer implements org.codemucker.testserver.Server {
 	 */
 	private String host = "127.0.0.1";
 	/**
-	 * The port to use. Zero or less means find an available port
+	 * The port to use. Zero or less means bind any free port, a new one on each start
 	 */
 	private int httpPort = 0;
+	/**
+	 * The port the OS picked when the port isn't set
+	 */
+	private volatile int boundHttpPort;
+	/**
+	 * Whether to listen on TCP at the host and port
+	 */
+	private boolean tcpEnabled = true;
+	/**
+	 * The Unix domain socket to also listen on. Null means don't
+	 */
+	private String unixSocketPath;
+	/**
+	 * The threads requests are handled on
+	 */
+	private ThreadPoolConfig threadPool = ThreadPoolConfig.defaults();
+	/**
+	 * How connections are accepted and handled
+	 */
+	private ConnectorConfig connectorConfig = ConnectorConfig.defaults();
+	/**
+	 * Reset on each start
+	 */
+	private final ConnectionStats connectionStats = new ConnectionStats();
 
 	@Override
     public void start() throws Exception {
 		LOG.debug("starting jetty mock server");
 		checkNotRunning();
-		if (httpPort <= 0) {
-            httpPort = findFreePort(host);
-        }
-		server = new Server(new InetSocketAddress(host, httpPort));
+		if (!tcpEnabled && unixSocketPath == null) {
+			throw new IllegalStateException("TCP is disabled and no unix socket set, nothing to listen on");
+		}
+		server = new Server(threadPool.newThreadPool());
+		connectionStats.reset();
+		ServerConnector connector = null;
+		if (tcpEnabled) {
+			connector = connectorConfig.newConnector(server);
+			connector.addBean(connectionStats);
+			connector.setHost(host);
+			// zero has the OS pick a free port as it binds, so there's no window for another server to take it
+			connector.setPort(httpPort > 0 ? httpPort : 0);
+			server.addConnector(connector);
+		}
+		if (unixSocketPath != null) {
+			final UnixSocketConnector unixConnector = connectorConfig.newUnixSocketConnector(server, unixSocketPath);
+			unixConnector.addBean(connectionStats);
+			server.addConnector(unixConnector);
+		}
 		// set up the handler which will matching incoming requests to
 		// configured paths
 		final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS| ServletContextHandler.NO_SECURITY);
 		context.setContextPath("/");
 		server.setHandler(context);
 
-		// add the servlets to the servlet handler
-		for (final String path : servletsToRegisterOnStartup.keySet()) {
-			context.addServlet(new ServletHolder(servletsToRegisterOnStartup.get(path)), path);
-		}
+		// a single servlet routes to the current servlets, so they can be changed without a restart
+		timerWheel = new TimerWheel("testserver-timer", 5, 512);
+		router = new RoutingServlet(routes, timings, new ResponseShaper(timerWheel));
+		final ServletHolder holder = new ServletHolder(router);
+		holder.setAsyncSupported(true);
+		holder.setInitOrder(0);
+		context.addServlet(holder, "/*");
 		// start the server! Will not block once the server is up
 		server.start();
+		if (connector != null) {
+			boundHttpPort = connector.getLocalPort();
+		}
 	}
 
+	/**
+	 * @deprecated the port is free when checked but may be taken before it's used. Leave the port unset to have
+	 *             the server bind any free port, or use a {@link PortAllocator} for predictable ports
+	 */
+	@Deprecated
 	public static int findFreePortOnLocalhost() {
 		try {
 			return findFreePort("127.0.0.1");
@@ -91,6 +161,11 @@ public class TestServer implements org.codemucker.testserver.Server {
 		}
 	}
 
+	/**
+	 * @deprecated the port is free when checked but may be taken before it's used. Leave the port unset to have
+	 *             the server bind any free port, or use a {@link PortAllocator} for predictable ports
+	 */
+	@Deprecated
 	public static int findFreePort(String hostNameOrIP) throws UnknownHostException {
 		if (hostNameOrIP != null && hostNameOrIP.trim().length() == 0) {
 			hostNameOrIP = null;
@@ -126,10 +201,31 @@ public class TestServer implements org.codemucker.testserver.Server {
 				LOG.warn("Unable to stop the server", e);
 			} finally {
 				server = null;
+				router = null;
+				if (timerWheel != null) {
+					timerWheel.stop();
+					timerWheel = null;
+				}
 			}
 		}
 	}
 
+	/**
+	 * Whether the server has been started and is accepting requests, that is its listening sockets are still open
+	 */
+	public boolean isRunning() {
+	    final Server s = server;
+	    if (s == null || !s.isStarted()) {
+	        return false;
+	    }
+	    for (final Connector c : s.getConnectors()) {
+	        if (c instanceof NetworkConnector && !((NetworkConnector) c).isOpen()) {
+	            return false;
+	        }
+	    }
+	    return true;
+	}
+
 	private boolean isServerRunning() {
 	    return server !=null;
 	}
@@ -141,23 +237,112 @@ public class TestServer implements org.codemucker.testserver.Server {
 		}
 	}
 
+    /**
+     * Add a servlet, replacing any already at the given path. Can be called while running, in which case requests
+     * already in the replaced servlet complete before it is destroyed and new requests go to the new servlet. Adding
+     * the servlet already at the path does nothing
+     */
     public void addServlet(final String path, final Servlet servlet) {
-        String p = StringUtils.trimToNull(path);
-        checkNotEmpty("path", p);
-        if (!p.startsWith("/")) {
-            p = "/" + p;
-        }
+        final String trimmed = StringUtils.trimToNull(path);
+        checkNotEmpty("path", trimmed);
+        final String p = RouteTable.normalise(trimmed);
         if (LOG.isDebugEnabled()) {
             LOG.debug(String.format("Adding mock servlet with path '%s'", p));
         }
-        if (isServerRunning()) {
-            ((ServletContextHandler) server.getHandler()).addServlet(
-                    new ServletHolder(servlet), p);
+        final RouteTable.Route route = new RouteTable.Route(p, servlet);
+        RouteTable current;
+        //the router inits the existing routes under the same lock, so a route is either in the table it inits
+        //or is initialised here before being published
+        synchronized (routes) {
+            final RouteTable.Route existing = routes.get().get(p);
+            if (existing != null && existing.servlet == servlet) {
+                return;
+            }
+            final RoutingServlet r = router;
+            if (r != null) {
+                //ready before any request can see it
+                try {
+                    r.initRoute(route);
+                } catch (final ServletException e) {
+                    throw new RuntimeException("Error initialising servlet for path '" + p + "'", e);
+                }
+            }
+            do {
+                current = routes.get();
+            } while (!routes.compareAndSet(current, current.with(route)));
+        }
+        final RouteTable.Route replaced = current.get(p);
+        if (replaced != null) {
+            replaced.retire();
         }
+    }
 
-        // save the servlet for later if we decide to restart the server, or the
-        // server has not yet been started
-        servletsToRegisterOnStartup.put(p, servlet);
+    /**
+     * Remove the servlet at the given path. Can be called while running, requests already in the servlet complete
+     * before it is destroyed
+     *
+     * @return true if there was a servlet at the path
+     */
+    public boolean removeServlet(final String path) {
+        final String trimmed = StringUtils.trimToNull(path);
+        checkNotEmpty("path", trimmed);
+        final String p = RouteTable.normalise(trimmed);
+        RouteTable current;
+        RouteTable updated;
+        do {
+            current = routes.get();
+            updated = current.without(p);
+            if (updated == current) {
+                return false;
+            }
+        } while (!routes.compareAndSet(current, updated));
+        current.get(p).retire();
+        return true;
+    }
+
+    /**
+     * Remove all the servlets in one swap. Can be called while running, requests already in a servlet complete
+     * before it is destroyed
+     */
+    public void removeAllServlets() {
+        for (final RouteTable.Route route : routes.getAndSet(RouteTable.EMPTY).routes()) {
+            route.retire();
+        }
+    }
+
+    /**
+     * Delay or throttle responses for the given path spec, which needn't have a servlet yet. Replaces any timing
+     * already set for the path. Can be called while running
+     */
+    public void setResponseTiming(final String path, final ResponseTiming timing) {
+        final String trimmed = StringUtils.trimToNull(path);
+        checkNotEmpty("path", trimmed);
+        if (timing == null) {
+            throw new IllegalArgumentException("Must provide a response timing, use removeResponseTiming(path) to remove");
+        }
+        timings.put(RouteTable.normalise(trimmed), timing.copy());
+    }
+
+    /**
+     * Respond to the given path spec as fast as possible again
+     *
+     * @return true if there was a timing for the path
+     */
+    public boolean removeResponseTiming(final String path) {
+        final String trimmed = StringUtils.trimToNull(path);
+        checkNotEmpty("path", trimmed);
+        return timings.remove(RouteTable.normalise(trimmed)) != null;
+    }
+
+    public void removeAllResponseTimings() {
+        timings.clear();
+    }
+
+    /**
+     * The path specs servlets are currently registered at, in the order they were added
+     */
+    public List<String> getServletPaths() {
+        return routes.get().pathSpecs();
     }
 
 	public void setHttpPort(final int port) {
@@ -165,6 +350,56 @@ public class TestServer implements org.codemucker.testserver.Server {
 		this.httpPort = port;
 	}
 
+	/**
+	 * Set the threads requests are handled on. Defaults to {@link ThreadPoolConfig#defaults()}
+	 */
+	public void setThreadPool(final ThreadPoolConfig threadPool) {
+		checkNotRunning();
+		if (threadPool == null) {
+			throw new IllegalArgumentException("Must provide a thread pool config. Use ThreadPoolConfig.defaults() for Jetty's default");
+		}
+		this.threadPool = threadPool.copy();
+	}
+
+	/**
+	 * Tune the connector. Defaults to {@link ConnectorConfig#defaults()}
+	 */
+	public void setConnector(final ConnectorConfig connectorConfig) {
+		checkNotRunning();
+		if (connectorConfig == null) {
+			throw new IllegalArgumentException("Must provide a connector config. Use ConnectorConfig.defaults() for Jetty's default");
+		}
+		this.connectorConfig = connectorConfig.copy();
+	}
+
+	/**
+	 * Whether to listen on TCP at the host and port. On by default. Turn off to only serve over a unix socket, see
+	 * {@link #setUnixSocket(String)}
+	 */
+	public void setTcpEnabled(final boolean tcpEnabled) {
+		checkNotRunning();
+		this.tcpEnabled = tcpEnabled;
+	}
+
+	/**
+	 * Also listen on a Unix domain socket at the given path, avoiding the loopback TCP stack and ephemeral ports
+	 * for local clients. Any existing file at the path is replaced. Null to not listen on a unix socket
+	 */
+	public void setUnixSocket(final String path) {
+		checkNotRunning();
+		if (path != null && path.length() > UnixSocketConnector.MAX_UNIX_SOCKET_PATH_LENGTH) {
+			throw new IllegalArgumentException("Unix socket path is longer than the max of " + UnixSocketConnector.MAX_UNIX_SOCKET_PATH_LENGTH + " chars, '" + path + "'");
+		}
+		this.unixSocketPath = StringUtils.trimToNull(path);
+	}
+
+	/**
+	 * The Unix domain socket path listened on, or null if not
+	 */
+	public String getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
 	public void setHost(final String host) {
 		checkNotRunning();
 		checkNotBlank("host", host);
@@ -177,21 +412,49 @@ public class TestServer implements org.codemucker.testserver.Server {
 	}
 
 	/**
-	 * Return the port the server is running on, or 0 if the server is not yet running
-	 * @return
+	 * The port set, or if not set the port the server bound when last started. A restart binds a new free port
+	 * rather than wait for the old one, which another server could take in between
 	 */
 	@Override
     public int getHttpPort() {
-		return httpPort;
+		return httpPort > 0 ? httpPort : boundHttpPort;
 	}
 
 	public String getBaseHttpUrl(){
-	    if( httpPort <= 0){
+	    if (!tcpEnabled) {
+	        throw new IllegalStateException("TCP is disabled, use getBaseUnixSocketUrl() instead");
+	    }
+	    final int port = getHttpPort();
+	    if( port <= 0){
 	        throw new IllegalStateException( "port not manually set and server not started (auto find a free port), so don't know the port number yet" );
 	    }
-		return "http://" + host + ":" + httpPort;
+		return "http://" + host + ":" + port;
+	}
+
+	/**
+	 * The unix socket equivalent of {@link #getBaseHttpUrl()}, in the 'http+unix' form with the socket path percent
+	 * encoded as the authority, as in 'http+unix://%2Ftmp%2Fserver.sock'. Clients which connect by socket path can
+	 * use {@link #getUnixSocketPath()} with any host instead
+	 */
+	public String getBaseUnixSocketUrl() {
+		if (unixSocketPath == null) {
+			throw new IllegalStateException("No unix socket set, see setUnixSocket(path)");
+		}
+		try {
+			//form encoding turns spaces into '+', which is a literal '+' in an authority
+			return "http+unix://" + URLEncoder.encode(unixSocketPath, "UTF-8").replace("+", "%20");
+		} catch (final UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 not supported by this JVM", e);
+		}
 	}
 	
+	/**
+	 * Connection level statistics since the server was last started
+	 */
+	public ConnectionStats getConnectionStats() {
+		return connectionStats;
+	}
+
 	/**
 	 * Return the underlying jetty server
 	 */
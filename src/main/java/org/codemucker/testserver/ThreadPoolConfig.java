@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Controls the threads a {@link TestServer} handles requests on. Either a bounded pool of platform threads with an
+ * optionally bounded queue of waiting requests, or a new virtual thread per task so thousands of slow or blocking
+ * servlets can be in flight without thousands of OS threads.
+ *
+ * <p>
+ * Jetty's acceptors and selectors run on the same threads, so a bounded pool needs a few threads over the number of
+ * concurrent requests wanted. Jetty will refuse to start if the max is too small
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class ThreadPoolConfig {
+
+    private int minThreads = 8;
+    private int maxThreads = 200;
+    private int maxQueued;
+    private long idleTimeoutMs = 60 * 1000;
+    private String name = "testserver";
+    private boolean virtualThreads;
+
+    /**
+     * Jetty's default pool of 8 to 200 threads with an unbounded queue. This is the default
+     */
+    public static ThreadPoolConfig defaults() {
+        return new ThreadPoolConfig();
+    }
+
+    public static ThreadPoolConfig bounded(final int minThreads, final int maxThreads) {
+        return new ThreadPoolConfig().setMinThreads(minThreads).setMaxThreads(maxThreads);
+    }
+
+    /**
+     * Run every task on a new virtual thread. Requires a Java 21 or later runtime, the server will fail to start
+     * otherwise
+     */
+    public static ThreadPoolConfig virtualThreads() {
+        final ThreadPoolConfig config = new ThreadPoolConfig();
+        config.virtualThreads = true;
+        return config;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public ThreadPoolConfig setMinThreads(final int minThreads) {
+        if (minThreads < 1) {
+            throw new IllegalArgumentException("Need at least one thread, got " + minThreads);
+        }
+        this.minThreads = minThreads;
+        return this;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public ThreadPoolConfig setMaxThreads(final int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("Need at least one thread, got " + maxThreads);
+        }
+        this.maxThreads = maxThreads;
+        return this;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * The max number of tasks waiting for a thread. Once full, further tasks are rejected and their connections
+     * closed. Zero or less means unbounded, which is the default
+     */
+    public ThreadPoolConfig setMaxQueued(final int maxQueued) {
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    /**
+     * How long a thread over the min can be idle before it's stopped
+     */
+    public ThreadPoolConfig setIdleTimeout(final long duration, final TimeUnit unit) {
+        this.idleTimeoutMs = unit.toMillis(duration);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The prefix for the thread names
+     */
+    public ThreadPoolConfig setName(final String name) {
+        this.name = name;
+        return this;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    ThreadPool newThreadPool() {
+        if (virtualThreads) {
+            return new VirtualThreadPool(name);
+        }
+        if (minThreads > maxThreads) {
+            throw new IllegalStateException("Min threads " + minThreads + " is more than max threads " + maxThreads);
+        }
+        final BlockingArrayQueue<Runnable> queue = maxQueued > 0
+                ? new BlockingArrayQueue<Runnable>(Math.min(minThreads, maxQueued), minThreads, maxQueued)
+                : new BlockingArrayQueue<Runnable>(minThreads, minThreads);
+        final QueuedThreadPool pool = new QueuedThreadPool(maxThreads, minThreads, (int) Math.min(idleTimeoutMs, Integer.MAX_VALUE), queue);
+        pool.setName(name);
+        return pool;
+    }
+
+    ThreadPoolConfig copy() {
+        final ThreadPoolConfig copy = new ThreadPoolConfig();
+        copy.minThreads = minThreads;
+        copy.maxThreads = maxThreads;
+        copy.maxQueued = maxQueued;
+        copy.idleTimeoutMs = idleTimeoutMs;
+        copy.name = name;
+        copy.virtualThreads = virtualThreads;
+        return copy;
+    }
+}
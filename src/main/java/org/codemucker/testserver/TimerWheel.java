@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timer wheel. Scheduling is a lock free queue append and every tick only looks at one slot, so many
+ * thousands of pending timeouts cost almost nothing and need only the one thread. Timings are accurate to a tick.
+ *
+ * <p>
+ * Tasks run on the wheel's thread so must be short and never block, typically handing off to something else, like
+ * resuming a suspended request
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+class TimerWheel {
+
+    private static final Logger LOG = Logger.getLogger(TimerWheel.class);
+
+    private final long tickNanos;
+    private final List<Entry>[] slots;
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+    private final Thread worker;
+    private final long startNanos = System.nanoTime();
+    private volatile boolean stopped;
+    //only touched by the worker
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(final String name, final long tickMs, final int numSlots) {
+        if (tickMs < 1) {
+            throw new IllegalArgumentException("Expect a tick of at least 1ms but was " + tickMs);
+        }
+        if (numSlots < 1) {
+            throw new IllegalArgumentException("Expect at least one slot but was " + numSlots);
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.slots = new List[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            slots[i] = new ArrayList<Entry>();
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run the task once the delay has passed. Tasks due at once are run in no particular order
+     */
+    void schedule(final Runnable task, final long delayMs) {
+        if (stopped) {
+            throw new IllegalStateException("Timer wheel has been stopped");
+        }
+        final long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        pending.add(new Entry(task, deadline));
+    }
+
+    /**
+     * Stop the wheel, dropping any pending tasks
+     */
+    void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private void runWheel() {
+        while (!stopped) {
+            final long nextTickNanos = (tick + 1) * tickNanos;
+            final long sleepNanos = nextTickNanos - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (final InterruptedException e) {
+                    //stopped
+                    return;
+                }
+            }
+            tick++;
+            transferPending();
+            expire(slots[(int) (tick % slots.length)]);
+        }
+    }
+
+    private void transferPending() {
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            //never schedule into the past, due now means the current tick
+            final long dueTick = Math.max(tick, (entry.deadlineNanos + tickNanos - 1) / tickNanos);
+            entry.rounds = (dueTick - tick) / slots.length;
+            slots[(int) (dueTick % slots.length)].add(entry);
+        }
+    }
+
+    private void expire(final List<Entry> slot) {
+        int keep = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            final Entry entry = slot.get(i);
+            if (entry.rounds > 0) {
+                entry.rounds--;
+                slot.set(keep++, entry);
+                continue;
+            }
+            try {
+                entry.task.run();
+            } catch (final Throwable t) {
+                LOG.warn("Timer task failed", t);
+            }
+        }
+        while (slot.size() > keep) {
+            slot.remove(slot.size() - 1);
+        }
+    }
+
+    private static class Entry {
+        final Runnable task;
+        final long deadlineNanos;
+        long rounds;
+
+        Entry(final Runnable task, final long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Runs every task on its own virtual thread. Looked up reflectively so we still build and run on runtimes without
+ * virtual threads, only failing if this pool is actually started on one
+ *
+ * @author Bert van Brakel
+ */
+class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    private final String name;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile ExecutorService executor;
+
+    VirtualThreadPool(final String name) {
+        this.name = name;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        executor = newVirtualThreadExecutor(name);
+        super.doStart();
+    }
+
+    private static ExecutorService newVirtualThreadExecutor(final String name) {
+        try {
+            //Thread.ofVirtual().name(name + "-", 0).factory(). Use the public builder interface, the builder
+            //implementations aren't accessible
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Object named = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            final ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(named);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (final ClassNotFoundException e) {
+            throw new IllegalStateException("Virtual threads need a Java 21 or later runtime, running on " + System.getProperty("java.version"), e);
+        } catch (final NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads need a Java 21 or later runtime, running on " + System.getProperty("java.version"), e);
+        } catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof UnsupportedOperationException) {
+                //Java 19 and 20 without --enable-preview
+                throw new IllegalStateException("Virtual threads are a preview feature on Java " + System.getProperty("java.version")
+                        + ", run with --enable-preview or on Java 21 or later", e.getCause());
+            }
+            throw new IllegalStateException("Couldn't create a virtual thread executor", e.getCause());
+        } catch (final Exception e) {
+            throw new IllegalStateException("Couldn't create a virtual thread executor", e);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        final ExecutorService exec = executor;
+        if (exec != null) {
+            exec.shutdown();
+            if (!exec.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                exec.shutdownNow();
+            }
+        }
+        super.doStop();
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        final ExecutorService exec = executor;
+        if (exec == null) {
+            throw new IllegalStateException("Virtual thread pool not started");
+        }
+        exec.execute(new Runnable() {
+            @Override
+            public void run() {
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        final ExecutorService exec = executor;
+        if (exec != null) {
+            exec.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The number of tasks currently running
+     */
+    @Override
+    public int getThreads() {
+        return active.get();
+    }
+
+    /**
+     * Virtual threads are never kept idle
+     */
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
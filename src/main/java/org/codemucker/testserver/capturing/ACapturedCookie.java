@@ -15,9 +15,6 @@
  */
 package org.codemucker.testserver.capturing;
 
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.ToStringBuilder;
-import org.apache.commons.lang.builder.ToStringStyle;
 import org.codemucker.jmatch.AbstractMatcher;
 import org.codemucker.jmatch.Description;
 import org.codemucker.jmatch.MatchDiagnostics;
@@ -32,12 +29,12 @@ public class ACapturedCookie extends AbstractMatcher<CapturedCookie> {
 
     @Override
     public boolean matchesSafely(final CapturedCookie actual, MatchDiagnostics diag) {
-        return EqualsBuilder.reflectionEquals(expect, actual);
+        return expect.equals(actual);
     }
 
     @Override
     public void describeTo(final Description desc) {
-        desc.value("expect",ToStringBuilder.reflectionToString(expect,ToStringStyle.SHORT_PREFIX_STYLE));
+        desc.value("expect",expect);
     }
 
     /**
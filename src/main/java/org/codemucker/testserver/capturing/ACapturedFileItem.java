@@ -15,7 +15,6 @@
  */
 package org.codemucker.testserver.capturing;
 
-import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.codemucker.jmatch.AbstractMatcher;
@@ -33,7 +32,8 @@ public class ACapturedFileItem extends AbstractMatcher<CapturedFileItem> {
 
     @Override
     public boolean matchesSafely(final CapturedFileItem actual, MatchDiagnostics diag) {
-        return EqualsBuilder.reflectionEquals(expect, actual);
+        //compares the payloads through their buffers so large payloads aren't loaded onto the heap
+        return expect.equals(actual);
     }
 
     @Override
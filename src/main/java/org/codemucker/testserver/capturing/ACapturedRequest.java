@@ -15,15 +15,18 @@
  */
 package org.codemucker.testserver.capturing;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.Cookie;
 
 import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.ToStringBuilder;
-import org.apache.commons.lang.builder.ToStringStyle;
+import org.apache.commons.lang.ObjectUtils;
 import org.codemucker.jmatch.AList;
 import org.codemucker.jmatch.AbstractNotNullMatcher;
 import org.codemucker.jmatch.Description;
@@ -31,13 +34,24 @@ import org.codemucker.jmatch.MatchDiagnostics;
 import org.codemucker.jmatch.Matcher;
 import org.codemucker.testserver.Server;
 
-//TODO:the bulder methods currently modify the captured request. Use the Property matcher!
-
+/**
+ * Matches captured requests against an expected request. The expectation is compiled on first use into a list of
+ * checks ordered cheapest first, so most mismatches are found on an int or short string compare without decoding
+ * the actual request. Header, cookie and file item sets are compared via hashed lookups.
+ *
+ * <p>
+ * When created from an expected request every field is compared, as per {@link CapturedRequest#equals(Object)} but
+ * ignoring any extra headers and cookies if loose. The expected request is copied, so changing it afterwards doesn't
+ * change what's matched. When built via {@link #with()} only the fields set are compared
+ * </p>
+ */
 public class ACapturedRequest extends AbstractNotNullMatcher<CapturedRequest> {
     private final CapturedRequest expect;
-    private final AList.IAcceptMoreMatchers<CapturedCookie> cookieMatchers;
-    private final AList.IAcceptMoreMatchers<CapturedHeader> headerMatchers;
-    private final AList.IAcceptMoreMatchers<CapturedFileItem> fileItemMatchers;
+    private final boolean isStrictMatch;
+    //null if all fields are compared
+    private final EnumSet<Field> fieldsSet;
+    //rebuilt when the builder methods change the expectation
+    private volatile Check[] compiled;
 
     public static enum MATCH {
         /**
@@ -50,117 +64,313 @@ public class ACapturedRequest extends AbstractNotNullMatcher<CapturedRequest> {
         LOOSE;
     }
 
+    private static enum Field {
+        SCHEME, PROTOCOL, HOST, PORT, CONTEXT_PATH, SERVLET_PATH, PATH_INFO, CHARACTER_ENCODING, METHOD, COOKIES, HEADERS, FILE_ITEMS, PARAMETERS;
+    }
+
     public static ACapturedRequest with(){
-    	return new ACapturedRequest(new CapturedRequest());
+    	return new ACapturedRequest(new CapturedRequest(), MATCH.LOOSE, EnumSet.noneOf(Field.class));
     }
     
+    /**
+     * @param expect copied, later changes to it are not seen
+     */
     public ACapturedRequest(final CapturedRequest expect) {
         this(expect,MATCH.LOOSE);
     }
 
+    /**
+     * @param expect copied, later changes to it are not seen
+     */
     public ACapturedRequest(final CapturedRequest expect, final MATCH match) {
+        this(expect == null ? null : expect.copy(), match, null);
+    }
+
+    private ACapturedRequest(final CapturedRequest expect, final MATCH match, final EnumSet<Field> fieldsSet) {
         if( expect == null ){
             throw new IllegalArgumentException( "Must provide a request to compare to" );
         }
         if( match == null ){
             throw new IllegalArgumentException( "Must provide a match type. One of " + Arrays.toString(MATCH.values()) );
         }
-
         //if set to strict we don't expect any more cookies or headers than specified
         //if not strict we only look for a set of cookies and headers and ignore the rest
-        final boolean isStrictMatch = MATCH.STRICT==match;
-
+        this.isStrictMatch = MATCH.STRICT==match;
         this.expect = expect;
-        //determine whether we do strict or loose matching
-        if( isStrictMatch){
-            cookieMatchers = AList.of(CapturedCookie.class).inAnyOrder().withOnly();
-            headerMatchers = AList.of(CapturedHeader.class).inAnyOrder().withOnly();
-        } else {
-            cookieMatchers = AList.of(CapturedCookie.class).inAnyOrder().withAtLeast();
-            headerMatchers = AList.of(CapturedHeader.class).inAnyOrder().withAtLeast();
-        }
-        //todo:do we want to be able to set this to order exact? We may be expecting certain fields first so
-        //we can handle other fields (streaming file for example)
-        fileItemMatchers =  AList.of(CapturedFileItem.class).inAnyOrder().withOnly();
+        this.fieldsSet = fieldsSet;
+    }
 
-        for (final CapturedCookie c : expect.getCookies()) {
-            cookieMatchers.item(new ACapturedCookie(c));
-        }
-        for (final CapturedHeader h : expect.getHeaders()) {
-            headerMatchers.item(new ACapturedHeader(h));
+    @Override
+    public boolean matchesSafely(final CapturedRequest actual, final MatchDiagnostics diag) {
+        for (final Check check : compile()) {
+            if (!check.matches(actual)) {
+                check.diagnose(this, actual, diag);
+                return false;
+            }
         }
-        for (final CapturedFileItem item : expect.getMultiPartFileItems()) {
-            fileItemMatchers.item(new ACapturedFileItem(item));
+        return true;
+    }
+
+    private Check[] compile() {
+        Check[] checks = compiled;
+        if (checks == null) {
+            checks = newChecks();
+            compiled = checks;
         }
+        return checks;
     }
 
-    @Override
-    public boolean matchesSafely(final CapturedRequest actual, MatchDiagnostics diag) {
-        if (!EqualsBuilder.reflectionEquals(expect, actual, new String[] {
-                "cookies", "headers" })) {
-            return false;
+    /**
+     * Build the checks for the fields to compare, cheapest first
+     */
+    private Check[] newChecks() {
+        final List<Check> checks = new ArrayList<Check>();
+        if (isSet(Field.PORT)) {
+            final int port = expect.port;
+            checks.add(new Check() {
+                @Override
+                boolean matches(final CapturedRequest actual) {
+                    return actual.port == port;
+                }
+            });
         }
-        if(!diag.tryMatch(this,actual.getCookies(), cookieMatchers)){
-        	return false;
+        if (fieldsSet == null) {
+            final long bodySize = expect.bodySize;
+            checks.add(new Check() {
+                @Override
+                boolean matches(final CapturedRequest actual) {
+                    return actual.bodySize == bodySize;
+                }
+            });
         }
-        if(!diag.tryMatch(this,actual.getHeaders(), headerMatchers)){
-        	return false;
+        if (isSet(Field.METHOD)) {
+            checks.add(new StringCheck(expect.method) {
+                @Override
+                String get(final CapturedRequest actual) {
+                    return actual.method;
+                }
+            });
         }
-        if(!diag.tryMatch(this,actual.getMultiPartFileItems(), fileItemMatchers)){
-        	return false;
+        if (isSet(Field.SERVLET_PATH)) {
+            checks.add(new StringCheck(expect.servletPath) {
+                @Override
+                String get(final CapturedRequest actual) {
+                    return actual.servletPath;
+                }
+            });
         }
-        return true;
+        if (isSet(Field.PATH_INFO)) {
+            checks.add(new StringCheck(expect.pathInfo) {
+                @Override
+                String get(final CapturedRequest actual) {
+                    return actual.pathInfo;
+                }
+            });
+        }
+        if (isSet(Field.HOST)) {
+            checks.add(new StringCheck(expect.host) {
+                @Override
+                String get(final CapturedRequest actual) {
+                    return actual.host;
+                }
+            });
+        }
+        if (isSet(Field.SCHEME)) {
+            checks.add(new StringCheck(expect.scheme) {
+                @Override
+                String get(final CapturedRequest actual) {
+                    return actual.scheme;
+                }
+            });
+        }
+        if (isSet(Field.CONTEXT_PATH)) {
+            checks.add(new StringCheck(expect.contextPath) {
+                @Override
+                String get(final CapturedRequest actual) {
+                    return actual.contextPath;
+                }
+            });
+        }
+        if (isSet(Field.CHARACTER_ENCODING)) {
+            checks.add(new StringCheck(expect.characterEncoding) {
+                @Override
+                String get(final CapturedRequest actual) {
+                    return actual.characterEncoding;
+                }
+            });
+        }
+        //the protocol describes the transport, so only compared if asked for
+        if (fieldsSet == null ? expect.protocol != null : fieldsSet.contains(Field.PROTOCOL)) {
+            checks.add(new StringCheck(expect.protocol) {
+                @Override
+                String get(final CapturedRequest actual) {
+                    return actual.protocol;
+                }
+            });
+        }
+        if (isSet(Field.HEADERS)) {
+            final AnyOrder<CapturedHeader> headers = new AnyOrder<CapturedHeader>(expect.getHeaders(), isStrictMatch);
+            checks.add(new Check() {
+                @Override
+                boolean matches(final CapturedRequest actual) {
+                    return headers.matches(actual.getHeaders());
+                }
+
+                @Override
+                void diagnose(final ACapturedRequest self, final CapturedRequest actual, final MatchDiagnostics diag) {
+                    final AList.IAcceptMoreMatchers<CapturedHeader> matchers = newListMatcher(CapturedHeader.class, isStrictMatch);
+                    for (final CapturedHeader h : expect.getHeaders()) {
+                        matchers.item(new ACapturedHeader(h));
+                    }
+                    diag.tryMatch(self, actual.getHeaders(), matchers);
+                }
+            });
+        }
+        if (isSet(Field.COOKIES)) {
+            final AnyOrder<CapturedCookie> cookies = new AnyOrder<CapturedCookie>(expect.getCookies(), isStrictMatch);
+            checks.add(new Check() {
+                @Override
+                boolean matches(final CapturedRequest actual) {
+                    return cookies.matches(actual.getCookies());
+                }
+
+                @Override
+                void diagnose(final ACapturedRequest self, final CapturedRequest actual, final MatchDiagnostics diag) {
+                    final AList.IAcceptMoreMatchers<CapturedCookie> matchers = newListMatcher(CapturedCookie.class, isStrictMatch);
+                    for (final CapturedCookie c : expect.getCookies()) {
+                        matchers.item(new ACapturedCookie(c));
+                    }
+                    diag.tryMatch(self, actual.getCookies(), matchers);
+                }
+            });
+        }
+        if (isSet(Field.PARAMETERS)) {
+            final Map<String, Collection<String>> params = new HashMap<String, Collection<String>>(expect.getParameters());
+            final boolean all = fieldsSet == null;
+            checks.add(new Check() {
+                @Override
+                boolean matches(final CapturedRequest actual) {
+                    final Map<String, Collection<String>> actualParams = actual.getParameters();
+                    if (all) {
+                        return params.equals(actualParams);
+                    }
+                    for (final Map.Entry<String, Collection<String>> param : params.entrySet()) {
+                        if (!param.getValue().equals(actualParams.get(param.getKey()))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+        if (isSet(Field.FILE_ITEMS)) {
+            //todo:do we want to be able to set this to order exact? We may be expecting certain fields first so
+            //we can handle other fields (streaming file for example)
+            final AnyOrder<CapturedFileItem> fileItems = new AnyOrder<CapturedFileItem>(expect.getMultiPartFileItems(), true);
+            checks.add(new Check() {
+                @Override
+                boolean matches(final CapturedRequest actual) {
+                    return fileItems.matches(actual.getMultiPartFileItems());
+                }
+
+                @Override
+                void diagnose(final ACapturedRequest self, final CapturedRequest actual, final MatchDiagnostics diag) {
+                    final AList.IAcceptMoreMatchers<CapturedFileItem> matchers = newListMatcher(CapturedFileItem.class, true);
+                    for (final CapturedFileItem item : expect.getMultiPartFileItems()) {
+                        matchers.item(new ACapturedFileItem(item));
+                    }
+                    diag.tryMatch(self, actual.getMultiPartFileItems(), matchers);
+                }
+            });
+        }
+        if (fieldsSet == null) {
+            final List<CapturedPartDigest> partDigests = new ArrayList<CapturedPartDigest>(expect.getMultiPartDigests());
+            final CapturedPayload body = expect.body;
+            checks.add(new Check() {
+                @Override
+                boolean matches(final CapturedRequest actual) {
+                    return partDigests.equals(actual.getMultiPartDigests()) && ObjectUtils.equals(body, actual.body);
+                }
+            });
+        }
+        return checks.toArray(new Check[checks.size()]);
+    }
+
+    private boolean isSet(final Field field) {
+        return fieldsSet == null || fieldsSet.contains(field);
+    }
+
+    private static <T> AList.IAcceptMoreMatchers<T> newListMatcher(final Class<T> type, final boolean only) {
+        return only ? AList.of(type).inAnyOrder().withOnly() : AList.of(type).inAnyOrder().withAtLeast();
+    }
+
+    private ACapturedRequest set(final Field field) {
+        if (fieldsSet != null) {
+            fieldsSet.add(field);
+        }
+        compiled = null;
+        return this;
     }
 
     @Override
     public void describeTo(final Description desc) {
     	super.describeTo(desc);
-    	desc.text(ToStringBuilder.reflectionToString(expect,ToStringStyle.MULTI_LINE_STYLE));
-        desc.value("cookies",cookieMatchers);
-        desc.value("headers",headerMatchers);
-        desc.value("multiPartContent fileItems",fileItemMatchers);
+    	desc.text(expect.toString());
+    	desc.value("match", isStrictMatch ? MATCH.STRICT : MATCH.LOOSE);
+    	if (fieldsSet != null) {
+    	    desc.value("fields", fieldsSet);
+    	}
     }
     
     public ACapturedRequest scheme(final String scheme) {
         expect.scheme = scheme;
-        return this;
+        return set(Field.SCHEME);
+    }
+
+    /**
+     * The protocol and version, as in 'HTTP/1.1' or 'HTTP/2.0'
+     */
+    public ACapturedRequest protocol(final String protocol) {
+        expect.protocol = protocol;
+        return set(Field.PROTOCOL);
     }
 
     public ACapturedRequest server(final Server server) {
         expect.host = server.getHost();
         expect.port = server.getHttpPort();
-        return this;
+        set(Field.HOST);
+        return set(Field.PORT);
     }
 
     public ACapturedRequest host(final String host) {
         expect.host = host;
-        return this;
+        return set(Field.HOST);
     }
 
     public ACapturedRequest port(final int port) {
         expect.port = port;
-        return this;
+        return set(Field.PORT);
     }
 
     public ACapturedRequest contextPath(final String contextPath) {
         expect.contextPath = contextPath;
-        return this;
+        return set(Field.CONTEXT_PATH);
     }
 
     public ACapturedRequest servletPath(final String servletPath) {
         expect.servletPath = servletPath;
-        return this;
+        return set(Field.SERVLET_PATH);
     }
 
     public ACapturedRequest pathInfo(final String pathInfo) {
         expect.pathInfo = pathInfo;
-        return this;
+        return set(Field.PATH_INFO);
     }
 
     public ACapturedRequest characterEncoding(
             final String characterEncoding) {
         expect.characterEncoding = characterEncoding;
-        return this;
+        return set(Field.CHARACTER_ENCODING);
     }
 
     public ACapturedRequest methodGET() {
@@ -173,50 +383,49 @@ public class ACapturedRequest extends AbstractNotNullMatcher<CapturedRequest> {
 
     public ACapturedRequest method(final String method) {
         expect.method = method;
-
-        return this;
+        return set(Field.METHOD);
     }
 
     public ACapturedRequest cookie(final Cookie cookie) {
         expect.addCookie(cookie);
-        return this;
+        return set(Field.COOKIES);
     }
 
     public ACapturedRequest cookie(final org.apache.http.cookie.Cookie cookie) {
         expect.addCookie(cookie);
-        return this;
+        return set(Field.COOKIES);
     }
 
     public ACapturedRequest header(final CapturedHeader header) {
         expect.addHeader(header);
-        return this;
+        return set(Field.HEADERS);
     }
 
     public ACapturedRequest header(final String name,final String value) {
         expect.addHeader(name, value);
-        return this;
+        return set(Field.HEADERS);
     }
 
     public ACapturedRequest headers(final Map<String,String> headers) {
         for( final String name:headers.keySet()){
             expect.addHeader(name, headers.get(name));
         }
-        return this;
+        return set(Field.HEADERS);
     }
 
     public ACapturedRequest fileItem(final FileItem item) {
         expect.addFileItem(item);
-        return this;
+        return set(Field.FILE_ITEMS);
     }
 
     public ACapturedRequest fileItem(final FileItemBuilder item) {
         expect.addFileItem(item);
-        return this;
+        return set(Field.FILE_ITEMS);
     }
 
     public ACapturedRequest paramValues(final String name,final String... paramValues) {
         expect.setParamValues(name, paramValues);
-        return this;
+        return set(Field.PARAMETERS);
     }
 
     /**
@@ -230,5 +439,85 @@ public class ACapturedRequest extends AbstractNotNullMatcher<CapturedRequest> {
         return new ACapturedRequest(request);
     }
 
+    /**
+     * A single compiled comparison
+     */
+    private abstract static class Check {
+        abstract boolean matches(CapturedRequest actual);
+
+        /**
+         * Record why the match failed, only called on a mismatch so free to be slow
+         */
+        void diagnose(final ACapturedRequest self, final CapturedRequest actual, final MatchDiagnostics diag) {
+            //nothing more to add by default
+        }
+    }
+
+    private abstract static class StringCheck extends Check {
+        private final String expect;
+
+        StringCheck(final String expect) {
+            this.expect = expect;
+        }
+
+        abstract String get(CapturedRequest actual);
 
-}
\ No newline at end of file
+        @Override
+        boolean matches(final CapturedRequest actual) {
+            final String value = get(actual);
+            return expect == null ? value == null : expect.equals(value);
+        }
+    }
+
+    /**
+     * Matches a collection against the expected items in any order, using a hash lookup per actual item rather
+     * than trying every expected item against every actual one
+     */
+    private static class AnyOrder<T> {
+        //each distinct expected item to its slot in the counts
+        private final Map<T, Integer> slots = new HashMap<T, Integer>();
+        private final int[] counts;
+        private final int size;
+        //whether the actual items can't contain anything extra
+        private final boolean only;
+
+        AnyOrder(final Collection<T> expect, final boolean only) {
+            final int[] tmp = new int[expect.size()];
+            for (final T item : expect) {
+                Integer slot = slots.get(item);
+                if (slot == null) {
+                    slot = slots.size();
+                    slots.put(item, slot);
+                }
+                tmp[slot]++;
+            }
+            this.counts = Arrays.copyOf(tmp, slots.size());
+            this.size = expect.size();
+            this.only = only;
+        }
+
+        boolean matches(final Collection<T> actual) {
+            if (only ? actual.size() != size : actual.size() < size) {
+                return false;
+            }
+            if (size == 0) {
+                return true;
+            }
+            final int[] remaining = counts.clone();
+            int unmatched = size;
+            for (final T item : actual) {
+                final Integer slot = slots.get(item);
+                if (slot != null && remaining[slot] > 0) {
+                    remaining[slot]--;
+                    if (--unmatched == 0) {
+                        //if only, the size check means everything has now been matched
+                        return true;
+                    }
+                } else if (only) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+}
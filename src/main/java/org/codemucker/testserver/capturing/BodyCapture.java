@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+/**
+ * Controls whether a {@link CapturingTestServer} captures raw request bodies. The body is copied as the wrapped
+ * servlet reads it, so the servlet still sees the full body. Off by default.
+ *
+ * <p>
+ * Bodies are kept up to the max bytes, anything after that is either dropped, in which case the capture is marked
+ * as truncated, or written on to a temp file which is memory mapped once the request completes
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class BodyCapture {
+
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private boolean enabled;
+    private int maxBytes = DEFAULT_MAX_BYTES;
+    private boolean overflowToFile;
+
+    /**
+     * Don't capture request bodies. This is the default
+     */
+    public static BodyCapture none() {
+        return new BodyCapture();
+    }
+
+    /**
+     * Capture up to the given number of bytes of each request body
+     */
+    public static BodyCapture upTo(final int maxBytes) {
+        final BodyCapture capture = new BodyCapture().setMaxBytes(maxBytes);
+        capture.enabled = true;
+        return capture;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public BodyCapture setMaxBytes(final int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Max body bytes can't be negative, got " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public boolean isOverflowToFile() {
+        return overflowToFile;
+    }
+
+    /**
+     * If set, bytes past the max are written to a temp file rather than dropped, so the whole body is captured
+     */
+    public BodyCapture setOverflowToFile(final boolean overflowToFile) {
+        this.overflowToFile = overflowToFile;
+        return this;
+    }
+
+    BodyCapture copy() {
+        final BodyCapture copy = new BodyCapture();
+        copy.enabled = enabled;
+        copy.maxBytes = maxBytes;
+        copy.overflowToFile = overflowToFile;
+        return copy;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Copies the request body as the wrapped servlet reads it. Bytes are copied into pooled chunks up to the capture
+ * limit, then either dropped or written on to a temp file. Once the servlet is done the chunks are copied once into
+ * an exactly sized payload and returned to the pool.
+ *
+ * @author Bert van Brakel
+ */
+class BodyTee {
+
+    private static final Logger LOG = Logger.getLogger(BodyTee.class);
+
+    private final ServletInputStream body;
+    private final TeeInputStream tee;
+    private final HttpServletRequest request;
+
+    private final int maxBytes;
+    private final boolean overflowToFile;
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    //bytes used in the last chunk
+    private int chunkPos = ChunkPool.CHUNK_SIZE;
+    //bytes held in the chunks
+    private int buffered;
+    //bytes read by the servlet, whether kept or not
+    private long total;
+    private File overflowFile;
+    private OutputStream overflow;
+    private boolean overflowFailed;
+    //set once the servlet switches to non blocking reads
+    private volatile boolean nonBlocking;
+
+    BodyTee(final HttpServletRequest req, final BodyCapture config) throws IOException {
+        body = req.getInputStream();
+        tee = new TeeInputStream();
+        maxBytes = config.getMaxBytes();
+        overflowToFile = config.isOverflowToFile();
+        request = new HttpServletRequestWrapper(req) {
+            private BufferedReader reader;
+
+            @Override
+            public ServletInputStream getInputStream() {
+                return tee;
+            }
+
+            @Override
+            public BufferedReader getReader() throws IOException {
+                if (reader == null) {
+                    final String encoding = getCharacterEncoding();
+                    reader = new BufferedReader(new InputStreamReader(tee, encoding == null ? "ISO-8859-1" : encoding));
+                }
+                return reader;
+            }
+        };
+    }
+
+    /**
+     * The request to pass to the wrapped servlet
+     */
+    HttpServletRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Drain any of the body the servlet didn't read and set the captured body on the given capture. If the servlet
+     * switched to non blocking reads only what's already arrived is drained. Releases any pooled chunks
+     */
+    void finish(final CapturedRequest capture) throws IOException {
+        try {
+            final byte[] buf = ChunkPool.acquire();
+            try {
+                while ((!nonBlocking || body.isReady()) && tee.read(buf, 0, buf.length) != -1) {
+                    //keep draining
+                }
+            } finally {
+                ChunkPool.release(buf);
+            }
+            capture.setCapturedBody(toPayload(), total);
+        } finally {
+            releaseChunks();
+            closeOverflow();
+        }
+    }
+
+    private CapturedPayload toPayload() throws IOException {
+        if (overflow != null && !overflowFailed) {
+            closeOverflow();
+            return MappedFilePayload.mapAndDelete(overflowFile);
+        }
+        final byte[] bytes = new byte[buffered];
+        int offset = 0;
+        for (final byte[] chunk : chunks) {
+            final int n = Math.min(chunk.length, buffered - offset);
+            System.arraycopy(chunk, 0, bytes, offset, n);
+            offset += n;
+        }
+        return CapturedPayload.inline(bytes);
+    }
+
+    private void record(final byte[] b, int off, int len) {
+        total += len;
+        if (overflow != null) {
+            writeOverflow(b, off, len);
+            return;
+        }
+        while (len > 0 && buffered < maxBytes) {
+            if (chunkPos == ChunkPool.CHUNK_SIZE) {
+                chunks.add(ChunkPool.acquire());
+                chunkPos = 0;
+            }
+            final int n = Math.min(len, Math.min(ChunkPool.CHUNK_SIZE - chunkPos, maxBytes - buffered));
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), chunkPos, n);
+            chunkPos += n;
+            buffered += n;
+            off += n;
+            len -= n;
+        }
+        if (len > 0 && overflowToFile && !overflowFailed) {
+            startOverflow();
+            writeOverflow(b, off, len);
+        }
+    }
+
+    /**
+     * Move what's been buffered so far to a temp file, all further bytes are appended to it
+     */
+    private void startOverflow() {
+        try {
+            overflowFile = File.createTempFile("captured-body", ".bin");
+            overflow = new FileOutputStream(overflowFile);
+            int remaining = buffered;
+            for (final byte[] chunk : chunks) {
+                final int n = Math.min(chunk.length, remaining);
+                overflow.write(chunk, 0, n);
+                remaining -= n;
+            }
+        } catch (final IOException e) {
+            overflowFailed(e);
+        }
+    }
+
+    private void writeOverflow(final byte[] b, final int off, final int len) {
+        if (overflowFailed) {
+            return;
+        }
+        try {
+            overflow.write(b, off, len);
+        } catch (final IOException e) {
+            overflowFailed(e);
+        }
+    }
+
+    /**
+     * Never fail the servlet's read because we couldn't keep a copy, just keep what's in memory
+     */
+    private void overflowFailed(final IOException e) {
+        LOG.warn("couldn't write captured body overflow to " + overflowFile + ", body will be truncated", e);
+        overflowFailed = true;
+        closeOverflow();
+    }
+
+    private void closeOverflow() {
+        if (overflow != null) {
+            try {
+                overflow.close();
+            } catch (final IOException e) {
+                LOG.debug("error closing captured body overflow " + overflowFile, e);
+            }
+        }
+        if (overflowFailed && overflowFile != null) {
+            overflowFile.delete();
+        }
+    }
+
+    private void releaseChunks() {
+        for (final byte[] chunk : chunks) {
+            ChunkPool.release(chunk);
+        }
+        chunks.clear();
+    }
+
+    private class TeeInputStream extends ServletInputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = body.read(b, off, len);
+            if (n > 0) {
+                record(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return body.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return body.isReady();
+        }
+
+        @Override
+        public void setReadListener(final ReadListener listener) {
+            nonBlocking = true;
+            body.setReadListener(listener);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed size pipe between a writing thread and a reading thread. Unlike the JDK piped streams it doesn't
+ * care which threads are used, and once the reader gives up writes are silently dropped rather than
+ * blocking the writer forever
+ *
+ * @author Bert van Brakel
+ */
+class BytePipe {
+
+    private final byte[] buf;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private int readPos;
+    private int count;
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    BytePipe(final int size) {
+        buf = new byte[size];
+    }
+
+    void write(final byte[] b, int off, int len) {
+        lock.lock();
+        try {
+            while (len > 0) {
+                while (count == buf.length && !readerClosed) {
+                    //the writer is a request thread, don't lose its bytes because of an interrupt
+                    notFull.awaitUninterruptibly();
+                }
+                if (readerClosed) {
+                    return;
+                }
+                final int writePos = (readPos + count) % buf.length;
+                final int n = Math.min(len, Math.min(buf.length - count, buf.length - writePos));
+                System.arraycopy(b, off, buf, writePos, n);
+                count += n;
+                off += n;
+                len -= n;
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * No more bytes to come, the reader will see the end of the stream once it has read what's buffered
+     */
+    void closeWriter() {
+        lock.lock();
+        try {
+            writerClosed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The reader is not interested in any more bytes, any further writes are dropped
+     */
+    void closeReader() {
+        lock.lock();
+        try {
+            readerClosed = true;
+            count = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int read(final byte[] b, final int off, final int len) throws InterruptedIOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (count == 0 && !writerClosed) {
+                try {
+                    notEmpty.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting on pipe");
+                }
+            }
+            if (count == 0) {
+                return -1;
+            }
+            final int n = Math.min(len, Math.min(count, buf.length - readPos));
+            System.arraycopy(buf, readPos, b, off, n);
+            readPos = (readPos + n) % buf.length;
+            count -= n;
+            notFull.signal();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    InputStream source() {
+        return new InputStream() {
+            private final byte[] single = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return BytePipe.this.read(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+    }
+}
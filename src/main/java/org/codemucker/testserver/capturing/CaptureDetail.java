@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+/**
+ * How much of each sampled request a {@link CapturingTestServer} captures
+ *
+ * @author Bert van Brakel
+ */
+public enum CaptureDetail {
+    /**
+     * Everything, including cookies, parameters and multi part content. The default
+     */
+    FULL,
+    /**
+     * The request line and headers only. No cookies, parameters or multi part content, so the body is never read
+     */
+    HEADERS,
+    /**
+     * The request line only, the scheme, host, port, paths, method and encoding
+     */
+    METADATA;
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Secondary indexes over captured requests, maintained as each request is captured. Each index entry is its own
+ * lock free {@link CaptureLog} following the main log, so queries can walk an entry without copying it and an entry
+ * never returns a capture the main log has evicted.
+ *
+ * <p>
+ * Keys whose captures have all been evicted are dropped in an occasional sweep, so unique values such as request
+ * ids don't grow the index without limit. Adding to the index only waits while a sweep is running
+ * </p>
+ *
+ * <p>
+ * Indexed by method, header name, header name and value, parameter name, parameter name and value and cookie
+ * name. Header names are case insensitive
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+class CaptureIndex {
+
+    /**
+     * The least number of captures to index between sweeps. Sweeps are also spaced by the number of keys left after
+     * the last sweep, so the cost per capture stays constant however many keys are retained
+     */
+    private static final int MIN_CAPTURES_PER_SWEEP = 1024;
+
+    private final ConcurrentMap<String, CaptureLog> entries = new ConcurrentHashMap<String, CaptureLog>();
+    private final CaptureLog source;
+    /**
+     * Shared by writers, held exclusively to remove keys so a capture is never added to an entry being dropped
+     */
+    private final ReadWriteLock sweepLock = new ReentrantReadWriteLock();
+    private final AtomicLong indexedSinceSweep = new AtomicLong();
+    private volatile int capturesPerSweep = MIN_CAPTURES_PER_SWEEP;
+
+    /**
+     * @param source the main log, the index only returns captures it still retains
+     */
+    CaptureIndex(final CaptureLog source) {
+        this.source = source;
+    }
+
+    static String methodKey(final String method) {
+        return "m:" + method;
+    }
+
+    static String headerKey(final String name) {
+        return "h:" + name.toLowerCase();
+    }
+
+    static String headerKey(final String name, final String value) {
+        return "hv:" + name.toLowerCase() + "=" + value;
+    }
+
+    static String paramKey(final String name) {
+        return "p:" + name;
+    }
+
+    static String paramKey(final String name, final String value) {
+        return "pv:" + name + "=" + value;
+    }
+
+    static String cookieKey(final String name) {
+        return "c:" + name;
+    }
+
+    /**
+     * @param log the log the capture was appended to. Ignored if not the log this index follows, as it was
+     *            captured before a reset
+     * @param position where the capture was appended in the log
+     */
+    void index(final CaptureLog log, final CapturedRequest capture, final long position) {
+        if (log != source) {
+            return;
+        }
+        //a request could repeat a header or cookie, only index it once per key
+        final Set<String> keys = new HashSet<String>();
+        if (capture.method != null) {
+            keys.add(methodKey(capture.method));
+        }
+        for (final CapturedHeader header : capture.getHeaders()) {
+            keys.add(headerKey(header.getName()));
+            keys.add(headerKey(header.getName(), header.getValue()));
+        }
+        for (final Map.Entry<String, Collection<String>> param : capture.getParameters().entrySet()) {
+            keys.add(paramKey(param.getKey()));
+            for (final String value : param.getValue()) {
+                keys.add(paramKey(param.getKey(), value));
+            }
+        }
+        for (final CapturedCookie cookie : capture.getCookies()) {
+            keys.add(cookieKey(cookie.name));
+        }
+        sweepLock.readLock().lock();
+        try {
+            for (final String key : keys) {
+                entryFor(key).append(capture, position);
+            }
+        } finally {
+            sweepLock.readLock().unlock();
+        }
+        if (indexedSinceSweep.incrementAndGet() >= capturesPerSweep) {
+            sweep();
+        }
+    }
+
+    /**
+     * Drop the keys which no longer have any retained captures. Skipped if others are indexing or sweeping, it's
+     * tried again after the next capture
+     */
+    void sweep() {
+        if (!sweepLock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            indexedSinceSweep.set(0);
+            for (final Iterator<CaptureLog> it = entries.values().iterator(); it.hasNext();) {
+                final CaptureLog log = it.next();
+                log.trim();
+                if (log.getNumRetained() == 0) {
+                    it.remove();
+                }
+            }
+            capturesPerSweep = Math.max(MIN_CAPTURES_PER_SWEEP, entries.size());
+        } finally {
+            sweepLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The number of keys currently indexed
+     */
+    int getNumKeys() {
+        return entries.size();
+    }
+
+    /**
+     * The captures for the given key, or null if none
+     */
+    CaptureLog get(final String key) {
+        return entries.get(key);
+    }
+
+    private CaptureLog entryFor(final String key) {
+        CaptureLog log = entries.get(key);
+        if (log == null) {
+            final CaptureLog newLog = new CaptureLog(source);
+            log = entries.putIfAbsent(key, newLog);
+            if (log == null) {
+                log = newLog;
+            }
+        }
+        return log;
+    }
+}
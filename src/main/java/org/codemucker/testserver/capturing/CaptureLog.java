@@ -0,0 +1,417 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An append only log of captured requests which never blocks writers. Each append claims a slot
+ * via a single atomic increment and then publishes the capture into that slot. Slots live in
+ * fixed size segments which are chained together as the log grows, so appending never copies
+ * previously captured requests.
+ *
+ * <p>
+ * Readers take snapshots without blocking writers. A snapshot contains every capture whose
+ * append completed before the snapshot was taken, in the order the slots were claimed
+ * </p>
+ *
+ * <p>
+ * If limits are given the oldest captures are evicted from the head of the log, one slot at a time,
+ * so the cost of eviction does not depend on how much is retained. Segments the head has moved past
+ * are unlinked and left for the garbage collector
+ * </p>
+ *
+ * <p>
+ * A log can instead follow another log, as the index entries do. It then has no limits of its own, a capture is
+ * only retained while it is still retained by the log being followed
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+class CaptureLog {
+
+    private static final int SEGMENT_SIZE = 256;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long timeToLiveNanos;
+    /**
+     * The log this one follows, or null
+     */
+    private final CaptureLog source;
+
+    /**
+     * The first segment still holding live entries
+     */
+    private final AtomicReference<Segment> headSegment;
+    /**
+     * A hint to the last segment so writers don't need to walk the chain from the head
+     */
+    private final AtomicReference<Segment> tailSegment;
+    /**
+     * The oldest slot not yet evicted
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * The next slot to be claimed by a writer
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    /**
+     * The number of slots which have had their capture written
+     */
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    CaptureLog() {
+        this(0, 0, 0);
+    }
+
+    /**
+     * @param maxEntries the max number of captures to keep, zero or less for unlimited
+     * @param maxBytes the max estimated bytes of captures to keep, zero or less for unlimited
+     * @param timeToLiveNanos how long to keep captures for, zero or less for forever
+     */
+    CaptureLog(final int maxEntries, final long maxBytes, final long timeToLiveNanos) {
+        this(maxEntries, maxBytes, timeToLiveNanos, null);
+    }
+
+    /**
+     * A log which only retains captures while the given log does
+     *
+     * @param source the log to follow. Captures are appended with their position in it
+     */
+    CaptureLog(final CaptureLog source) {
+        this(0, 0, 0, source);
+    }
+
+    private CaptureLog(final int maxEntries, final long maxBytes, final long timeToLiveNanos, final CaptureLog source) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.timeToLiveNanos = timeToLiveNanos;
+        this.source = source;
+        final Segment first = new Segment(0);
+        headSegment = new AtomicReference<Segment>(first);
+        tailSegment = new AtomicReference<Segment>(first);
+    }
+
+    private boolean isBounded() {
+        return maxEntries > 0 || maxBytes > 0 || timeToLiveNanos > 0 || source != null;
+    }
+
+    /**
+     * @return the position of the capture in this log, for logs following this one
+     */
+    public long append(final CapturedRequest capture) {
+        return append(new Entry(capture, maxBytes > 0 ? capture.estimateSize() : 0, -1));
+    }
+
+    /**
+     * Append to a log following another
+     *
+     * @param sourcePosition the position the capture was appended at in the followed log
+     */
+    void append(final CapturedRequest capture, final long sourcePosition) {
+        append(new Entry(capture, 0, sourcePosition));
+    }
+
+    private long append(final Entry entry) {
+        final long idx = claimed.getAndIncrement();
+        if (maxBytes > 0) {
+            liveBytes.addAndGet(entry.bytes);
+        }
+        segmentFor(idx).slots.set(slot(idx), entry);
+        published.incrementAndGet();
+        if (isBounded()) {
+            evictExcess(System.nanoTime());
+        }
+        return idx;
+    }
+
+    private static int slot(final long idx) {
+        return (int) (idx % SEGMENT_SIZE);
+    }
+
+    private Segment segmentFor(final long idx) {
+        final long base = idx - slot(idx);
+        Segment seg = tailSegment.get();
+        if (seg.base > base) {
+            //a slow writer, other writers have already moved the tail on. As our slot
+            //is not yet published it can't have been evicted, so the head is before us
+            seg = headSegment.get();
+        }
+        while (seg.base < base) {
+            Segment next = seg.next.get();
+            if (next == null) {
+                //if we lose the race to link in the next segment, use the winner's
+                seg.next.compareAndSet(null, new Segment(seg.base + SEGMENT_SIZE));
+                next = seg.next.get();
+            }
+            seg = next;
+        }
+        //move the tail hint forward, never back
+        Segment current = tailSegment.get();
+        while (current.base < seg.base && !tailSegment.compareAndSet(current, seg)) {
+            current = tailSegment.get();
+        }
+        return seg;
+    }
+
+    /**
+     * Evict from the head until we are back within our limits. Stops early at a slot which has been claimed
+     * but not yet written, the log is allowed to briefly exceed its limits rather than wait on a writer
+     */
+    private void evictExcess(final long now) {
+        while (true) {
+            final long h = head.get();
+            if (h >= claimed.get()) {
+                return;
+            }
+            final Segment seg = headSegment.get();
+            if (seg.base + SEGMENT_SIZE <= h) {
+                //the head has moved past this segment but it hasn't been unlinked yet
+                if (!advanceHeadSegment(seg)) {
+                    //next segment not linked in yet by its writer
+                    return;
+                }
+                continue;
+            }
+            if (seg.base > h) {
+                //stale head, another evictor got in first
+                continue;
+            }
+            final Entry entry = seg.slots.get(slot(h));
+            if (entry == null || !isExcess(entry, now)) {
+                return;
+            }
+            if (head.compareAndSet(h, h + 1)) {
+                seg.slots.set(slot(h), null);
+                evicted.incrementAndGet();
+                if (maxBytes > 0) {
+                    liveBytes.addAndGet(-entry.bytes);
+                }
+            }
+        }
+    }
+
+    private boolean advanceHeadSegment(final Segment seg) {
+        final Segment next = seg.next.get();
+        if (next == null) {
+            return false;
+        }
+        headSegment.compareAndSet(seg, next);
+        return true;
+    }
+
+    /**
+     * Evict anything over this log's limits, or no longer retained by the log followed, without waiting for the
+     * next append
+     */
+    void trim() {
+        if (isBounded()) {
+            evictExcess(System.nanoTime());
+        }
+    }
+
+    /**
+     * Whether the capture appended at the given position is still retained
+     */
+    boolean isRetained(final long position, final long now) {
+        if (position < head.get()) {
+            return false;
+        }
+        if (timeToLiveNanos <= 0) {
+            return true;
+        }
+        final long base = position - slot(position);
+        Segment seg = headSegment.get();
+        while (seg != null && seg.base < base) {
+            seg = seg.next.get();
+        }
+        if (seg == null || seg.base != base) {
+            //evicted and unlinked since we checked the head
+            return false;
+        }
+        final Entry entry = seg.slots.get(slot(position));
+        return entry != null && !isExpired(entry, now);
+    }
+
+    private boolean isLive(final Entry entry, final long now) {
+        return !isExpired(entry, now) && (source == null || source.isRetained(entry.sourcePosition, now));
+    }
+
+    private boolean isExcess(final Entry entry, final long now) {
+        if (maxEntries > 0 && published.get() - evicted.get() > maxEntries) {
+            return true;
+        }
+        if (maxBytes > 0 && liveBytes.get() > maxBytes) {
+            return true;
+        }
+        return !isLive(entry, now);
+    }
+
+    private boolean isExpired(final Entry entry, final long now) {
+        return timeToLiveNanos > 0 && now - entry.capturedAtNanos > timeToLiveNanos;
+    }
+
+    /**
+     * Return a copy of all the published and retained captures, in the order they were appended
+     */
+    public List<CapturedRequest> snapshot() {
+        final List<CapturedRequest> copy = new ArrayList<CapturedRequest>();
+        copy(0, copy, false);
+        return copy;
+    }
+
+    /**
+     * Copy the published and retained captures from the given position onwards, in the order they were appended.
+     * Lets callers pick up where they left off without copying the whole log again
+     *
+     * @param from the position to start from, zero for the start of the log
+     * @param into where to copy the captures to
+     * @return the position to pass in next time to only get captures appended since
+     */
+    public long copyFrom(final long from, final List<CapturedRequest> into) {
+        return copy(from, into, true);
+    }
+
+    private long copy(final long from, final List<CapturedRequest> into, final boolean stopAtUnpublished) {
+        final long now = System.nanoTime();
+        if (timeToLiveNanos > 0) {
+            evictExcess(now);
+        }
+        Segment seg = headSegment.get();
+        final long limit = claimed.get();
+        long idx = Math.max(from, Math.max(head.get(), seg.base));
+        while (seg != null && idx < limit) {
+            if (idx >= seg.base + SEGMENT_SIZE) {
+                seg = seg.next.get();
+                continue;
+            }
+            final Entry entry = seg.slots.get(slot(idx));
+            if (entry == null) {
+                if (stopAtUnpublished && idx >= head.get()) {
+                    //claimed but not yet written, pick it up next time
+                    return idx;
+                }
+                //else evicted since we started, or skipping slots not yet written
+            } else if (isLive(entry, now)) {
+                into.add(entry.capture);
+            }
+            idx++;
+        }
+        return idx;
+    }
+
+    /**
+     * A weakly consistent iterator over the retained captures, in the order they were appended. Walks the log
+     * in place rather than copying it. Sees every capture appended before this call which hasn't since been
+     * evicted, and none appended after
+     */
+    public Iterator<CapturedRequest> iterator() {
+        final long limit = claimed.get();
+        final long now = System.nanoTime();
+        return new Iterator<CapturedRequest>() {
+            private Segment seg = headSegment.get();
+            private long idx = Math.max(head.get(), seg.base);
+            private CapturedRequest next = advance();
+
+            private CapturedRequest advance() {
+                while (seg != null && idx < limit) {
+                    if (idx >= seg.base + SEGMENT_SIZE) {
+                        seg = seg.next.get();
+                        continue;
+                    }
+                    final Entry entry = seg.slots.get(slot(idx++));
+                    if (entry != null && isLive(entry, now)) {
+                        return entry.capture;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public CapturedRequest next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final CapturedRequest current = next;
+                next = advance();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("capture logs are append only");
+            }
+        };
+    }
+
+    /**
+     * The approximate number of captures currently retained
+     */
+    public long getNumRetained() {
+        return published.get() - evicted.get();
+    }
+
+    /**
+     * The number of captures fully appended to this log, including those since evicted
+     */
+    public long getNumAppended() {
+        return published.get();
+    }
+
+    /**
+     * The number of captures evicted to stay within this log's limits
+     */
+    public long getNumEvicted() {
+        return evicted.get();
+    }
+
+    private static class Entry {
+        final CapturedRequest capture;
+        final long bytes;
+        final long sourcePosition;
+        final long capturedAtNanos = System.nanoTime();
+
+        Entry(final CapturedRequest capture, final long bytes, final long sourcePosition) {
+            this.capture = capture;
+            this.bytes = bytes;
+            this.sourcePosition = sourcePosition;
+        }
+    }
+
+    private static class Segment {
+        final long base;
+        final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<Entry>(SEGMENT_SIZE);
+        final AtomicReference<Segment> next = new AtomicReference<Segment>();
+
+        Segment(final long base) {
+            this.base = base;
+        }
+    }
+}
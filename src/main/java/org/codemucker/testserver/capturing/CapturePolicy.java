@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+/**
+ * Controls which requests a {@link CapturingTestServer} captures and how much of each. Requests which aren't
+ * captured are still counted, but no {@link CapturedRequest} is built for them, so load tests can run through the
+ * server at close to full speed while still checking exact request counts.
+ *
+ * <p>
+ * Sampling is per servlet path and deterministic, 1 in N captures the first request then every Nth after that.
+ * Zero or less means no limit, which is the default
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class CapturePolicy {
+
+    private int sampleOneIn = 1;
+    private long maxPerPath;
+    private CaptureDetail detail = CaptureDetail.FULL;
+
+    /**
+     * Capture every request in full. This is the default
+     */
+    public static CapturePolicy all() {
+        return new CapturePolicy();
+    }
+
+    /**
+     * Capture only 1 in every given number of requests for each path
+     */
+    public static CapturePolicy sampleOneIn(final int n) {
+        return new CapturePolicy().setSampleOneIn(n);
+    }
+
+    /**
+     * Capture only the first given number of requests for each path
+     */
+    public static CapturePolicy firstPerPath(final long max) {
+        return new CapturePolicy().setMaxPerPath(max);
+    }
+
+    public int getSampleOneIn() {
+        return sampleOneIn;
+    }
+
+    public CapturePolicy setSampleOneIn(final int sampleOneIn) {
+        this.sampleOneIn = sampleOneIn;
+        return this;
+    }
+
+    public long getMaxPerPath() {
+        return maxPerPath;
+    }
+
+    public CapturePolicy setMaxPerPath(final long maxPerPath) {
+        this.maxPerPath = maxPerPath;
+        return this;
+    }
+
+    public CaptureDetail getDetail() {
+        return detail;
+    }
+
+    public CapturePolicy setDetail(final CaptureDetail detail) {
+        if (detail == null) {
+            throw new IllegalArgumentException("Must provide a capture detail level");
+        }
+        this.detail = detail;
+        return this;
+    }
+
+    /**
+     * Whether the nth request (starting at 1) for a path should be captured
+     */
+    boolean isSampled(final long nth) {
+        if (maxPerPath > 0 && nth > maxPerPath) {
+            return false;
+        }
+        return sampleOneIn <= 1 || (nth - 1) % sampleOneIn == 0;
+    }
+
+    CapturePolicy copy() {
+        final CapturePolicy copy = new CapturePolicy();
+        copy.sampleOneIn = sampleOneIn;
+        copy.maxPerPath = maxPerPath;
+        copy.detail = detail;
+        return copy;
+    }
+}
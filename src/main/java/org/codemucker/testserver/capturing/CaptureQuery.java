@@ -0,0 +1,273 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A query over the requests captured by a {@link CapturingTestServer}. Results are a lazy view, nothing is copied
+ * until iterated, and each iteration sees the captures made up to when it started.
+ *
+ * <p>
+ * If indexing is enabled on the server the query walks the smallest matching index entry and checks the remaining
+ * criteria against each capture, otherwise it walks all the captures (or those of the given path)
+ * </p>
+ *
+ * <pre>
+ * for (CapturedRequest req : server.query().methodPOST().header("X-Tenant", "42")) {
+ *    ...
+ * }
+ * </pre>
+ *
+ * @author Bert van Brakel
+ */
+public class CaptureQuery implements Iterable<CapturedRequest> {
+
+    private final CaptureLog allRequests;
+    private final CaptureIndex index;
+    private final boolean pathScoped;
+    private final CaptureLog pathRequests;
+    private final List<Criterion> criteria = new ArrayList<Criterion>();
+
+    /**
+     * @param index null if indexing is off
+     */
+    CaptureQuery(final CaptureLog allRequests, final CaptureIndex index) {
+        this.allRequests = allRequests;
+        this.index = index;
+        this.pathScoped = false;
+        this.pathRequests = null;
+    }
+
+    /**
+     * Restrict to the requests captured for a single servlet path
+     *
+     * @param pathRequests null if nothing has been captured for the path
+     */
+    CaptureQuery(final CaptureLog pathRequests) {
+        this.allRequests = null;
+        this.index = null;
+        this.pathScoped = true;
+        this.pathRequests = pathRequests;
+    }
+
+    public CaptureQuery methodGET() {
+        return method("GET");
+    }
+
+    public CaptureQuery methodPOST() {
+        return method("POST");
+    }
+
+    public CaptureQuery method(final String method) {
+        criteria.add(new Criterion(CaptureIndex.methodKey(method)) {
+            @Override
+            boolean matches(final CapturedRequest capture) {
+                return method.equals(capture.method);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Requests with the given header, whatever its value. Header names are case insensitive
+     */
+    public CaptureQuery hasHeader(final String name) {
+        criteria.add(new Criterion(CaptureIndex.headerKey(name)) {
+            @Override
+            boolean matches(final CapturedRequest capture) {
+                for (final CapturedHeader header : capture.getHeaders()) {
+                    if (name.equalsIgnoreCase(header.getName())) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Requests with the given header value. Header names are case insensitive, values are not
+     */
+    public CaptureQuery header(final String name, final String value) {
+        criteria.add(new Criterion(CaptureIndex.headerKey(name, value)) {
+            @Override
+            boolean matches(final CapturedRequest capture) {
+                for (final CapturedHeader header : capture.getHeaders()) {
+                    if (name.equalsIgnoreCase(header.getName()) && value.equals(header.getValue())) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        return this;
+    }
+
+    public CaptureQuery hasParam(final String name) {
+        criteria.add(new Criterion(CaptureIndex.paramKey(name)) {
+            @Override
+            boolean matches(final CapturedRequest capture) {
+                return capture.getParameters().containsKey(name);
+            }
+        });
+        return this;
+    }
+
+    public CaptureQuery param(final String name, final String value) {
+        criteria.add(new Criterion(CaptureIndex.paramKey(name, value)) {
+            @Override
+            boolean matches(final CapturedRequest capture) {
+                final Collection<String> values = capture.getParameters().get(name);
+                return values != null && values.contains(value);
+            }
+        });
+        return this;
+    }
+
+    public CaptureQuery hasCookie(final String name) {
+        criteria.add(new Criterion(CaptureIndex.cookieKey(name)) {
+            @Override
+            boolean matches(final CapturedRequest capture) {
+                for (final CapturedCookie cookie : capture.getCookies()) {
+                    if (name.equals(cookie.name)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        return this;
+    }
+
+    @Override
+    public Iterator<CapturedRequest> iterator() {
+        final CaptureLog source = chooseSource();
+        if (source == null) {
+            return Collections.<CapturedRequest> emptyList().iterator();
+        }
+        final Iterator<CapturedRequest> candidates = source.iterator();
+        return new Iterator<CapturedRequest>() {
+            private CapturedRequest next = advance();
+
+            private CapturedRequest advance() {
+                while (candidates.hasNext()) {
+                    final CapturedRequest candidate = candidates.next();
+                    if (matchesAll(candidate)) {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public CapturedRequest next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final CapturedRequest current = next;
+                next = advance();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("query results are read only");
+            }
+        };
+    }
+
+    /**
+     * Pick the smallest set of captures to walk
+     */
+    private CaptureLog chooseSource() {
+        if (pathScoped) {
+            //can't tell a capture's registered path from the capture, so must walk the path's own log
+            return pathRequests;
+        }
+        CaptureLog smallest = allRequests;
+        if (index != null) {
+            for (final Criterion criterion : criteria) {
+                final CaptureLog entry = index.get(criterion.indexKey);
+                if (entry == null) {
+                    //nothing has ever matched
+                    return null;
+                }
+                if (entry.getNumRetained() < smallest.getNumRetained()) {
+                    smallest = entry;
+                }
+            }
+        }
+        return smallest;
+    }
+
+    private boolean matchesAll(final CapturedRequest capture) {
+        for (final Criterion criterion : criteria) {
+            if (!criterion.matches(capture)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The first matching request, or null if none
+     */
+    public CapturedRequest first() {
+        final Iterator<CapturedRequest> it = iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    public int count() {
+        int count = 0;
+        for (final Iterator<CapturedRequest> it = iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Copy the matching requests into a new list. Modifiable, but changes are not reflected
+     */
+    public List<CapturedRequest> toList() {
+        final List<CapturedRequest> list = new ArrayList<CapturedRequest>();
+        for (final CapturedRequest capture : this) {
+            list.add(capture);
+        }
+        return list;
+    }
+
+    private abstract static class Criterion {
+        final String indexKey;
+
+        Criterion(final String indexKey) {
+            this.indexKey = indexKey;
+        }
+
+        abstract boolean matches(CapturedRequest capture);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.nio.charset.Charset;
+
+/**
+ * The layout of a capture recording, shared by {@link CaptureRecordingWriter} and {@link CaptureRecordingReader}.
+ *
+ * <p>
+ * A recording starts with {@link #MAGIC} and {@link #VERSION}, then holds one record per capture with nothing in
+ * between, so it can only ever be appended to. Numbers are unsigned LEB128 varints, signed ones zig-zag encoded
+ * first. Strings are written as a reference: {@link #NULL_STRING}, a {@link #LITERAL_STRING} or
+ * {@link #INTERN_STRING} followed by the length and UTF-8 bytes, or {@link #FIRST_STRING_ID} plus the id of an
+ * already interned string. Ids are handed out in the order strings are interned, so the reader rebuilds the same
+ * table as it goes. Only short strings are interned and the table is capped, so neither side grows without bound
+ * when every request carries a unique value.
+ * </p>
+ *
+ * <p>
+ * A request record is its {@link #REQUEST} type byte, then the microseconds since the previous record's capture
+ * (signed as concurrent captures can be appended out of order), then method, scheme, host, port, context path,
+ * servlet path, path info, character encoding and protocol, then the headers, parameters and cookies each
+ * preceded by their count, and finally the body size, whether the body was captured and if so its length and bytes
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+final class CaptureRecording {
+
+    static final int MAGIC = 0x434d4352;//'CMCR'
+    static final int VERSION = 1;
+
+    static final int REQUEST = 1;
+
+    static final int NULL_STRING = 0;
+    static final int LITERAL_STRING = 1;
+    static final int INTERN_STRING = 2;
+    static final int FIRST_STRING_ID = 3;
+
+    /**
+     * Longer strings are always written out in full, they are unlikely to repeat
+     */
+    static final int MAX_INTERNED_LENGTH = 256;
+    static final int MAX_INTERNED = 64 * 1024;
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private CaptureRecording() {
+        //constants only
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Reads back a recording made by {@link CaptureRecordingWriter}, one capture at a time. Only the string table and
+ * the current capture are held on to, bodies over {@link CapturedPayload#DEFAULT_INLINE_THRESHOLD} are spilled to
+ * memory mapped files rather than the heap, so a recording of any length can be streamed.
+ *
+ * <p>
+ * Each capture's {@link CapturedRequest#capturedAtNanos} is the time since the first capture in the recording
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class CaptureRecordingReader implements Closeable {
+
+    private final DataInputStream in;
+    private final List<String> interned = new ArrayList<String>();
+
+    private long capturedAtMicros;
+    private long numRead;
+
+    private CaptureRecordingReader(final DataInputStream in) {
+        this.in = in;
+    }
+
+    public static CaptureRecordingReader open(final File recording) throws IOException {
+        if (recording == null) {
+            throw new IllegalArgumentException("Must provide a recording file");
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(recording), CaptureRecording.BUFFER_SIZE));
+        try {
+            if (in.readInt() != CaptureRecording.MAGIC) {
+                throw new IOException("Not a capture recording: " + recording);
+            }
+            final int version = in.readUnsignedByte();
+            if (version != CaptureRecording.VERSION) {
+                throw new IOException("Unsupported capture recording version " + version + " in " + recording + ", expected " + CaptureRecording.VERSION);
+            }
+        } catch (final IOException e) {
+            in.close();
+            throw e;
+        }
+        return new CaptureRecordingReader(in);
+    }
+
+    /**
+     * The next capture in the recording
+     *
+     * @return the capture, or null at the end of the recording
+     */
+    public CapturedRequest next() throws IOException {
+        final int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        if (type != CaptureRecording.REQUEST) {
+            throw new IOException("Corrupt capture recording, unknown record type " + type + " after " + numRead + " captures");
+        }
+        try {
+            final CapturedRequest capture = readRequest();
+            numRead++;
+            return capture;
+        } catch (final EOFException e) {
+            throw new IOException("Capture recording truncated after " + numRead + " captures", e);
+        }
+    }
+
+    /**
+     * The number of captures read so far
+     */
+    public long getNumRead() {
+        return numRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private CapturedRequest readRequest() throws IOException {
+        final CapturedRequest capture = new CapturedRequest();
+        capturedAtMicros += readSignedVarLong();
+        capture.capturedAtNanos = capturedAtMicros * 1000;
+        capture.method = readString();
+        capture.scheme = readString();
+        capture.host = readString();
+        capture.port = (int) readVarLong();
+        capture.contextPath = readString();
+        capture.servletPath = readString();
+        capture.pathInfo = readString();
+        capture.characterEncoding = readString();
+        capture.protocol = readString();
+
+        for (long i = readVarLong(); i > 0; i--) {
+            capture.headers.add(new CapturedHeader(readString(), readString()));
+        }
+        for (long i = readVarLong(); i > 0; i--) {
+            final String name = readString();
+            final int numValues = (int) readVarLong();
+            final Collection<String> values = new ArrayList<String>(numValues);
+            for (int j = 0; j < numValues; j++) {
+                values.add(readString());
+            }
+            capture.parameters.put(name, values);
+        }
+        for (long i = readVarLong(); i > 0; i--) {
+            final String name = readString();
+            final String value = readString();
+            final String domain = readString();
+            final String path = readString();
+            final int maxAge = (int) readSignedVarLong();
+            final int version = (int) readVarLong();
+            final boolean secure = in.readUnsignedByte() != 0;
+            capture.cookies.add(new CapturedCookie(name, value, domain, path, maxAge, version, secure));
+        }
+
+        final long bodySize = readVarLong();
+        if (in.readUnsignedByte() != 0) {
+            final long length = readVarLong();
+            final CapturedPayload body = CapturedPayload.from(new BoundedInputStream(in, length), length, CapturedPayload.DEFAULT_INLINE_THRESHOLD);
+            if (body.size() != length) {
+                throw new EOFException("expected " + length + " body bytes but only got " + body.size());
+            }
+            capture.setCapturedBody(body, bodySize);
+        } else {
+            capture.bodySize = bodySize;
+        }
+        return capture;
+    }
+
+    private long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Corrupt capture recording, varint too long after " + numRead + " captures");
+    }
+
+    private long readSignedVarLong() throws IOException {
+        final long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private String readString() throws IOException {
+        final long ref = readVarLong();
+        if (ref == CaptureRecording.NULL_STRING) {
+            return null;
+        }
+        if (ref >= CaptureRecording.FIRST_STRING_ID) {
+            final long id = ref - CaptureRecording.FIRST_STRING_ID;
+            if (id >= interned.size()) {
+                throw new IOException("Corrupt capture recording, unknown string id " + id + " after " + numRead + " captures");
+            }
+            return interned.get((int) id);
+        }
+        final byte[] utf8 = new byte[(int) readVarLong()];
+        in.readFully(utf8);
+        final String s = new String(utf8, CaptureRecording.UTF8);
+        if (ref == CaptureRecording.INTERN_STRING) {
+            interned.add(s);
+        }
+        return s;
+    }
+}
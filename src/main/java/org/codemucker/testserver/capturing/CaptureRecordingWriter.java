@@ -0,0 +1,244 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Appends captured requests to a compact binary recording for later replay, see {@link CaptureReplayer}. Repeated
+ * strings such as header names, paths and user agents are written once and then referred to by id. Records are
+ * built up in a direct buffer and written to the file channel as it fills, so a burst of captures costs little more
+ * than the copy. See {@link CaptureRecording} for the layout.
+ *
+ * <p>
+ * Safe to share between request threads, records are never interleaved. Multi part file items and digests are
+ * not recorded
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class CaptureRecordingWriter implements Closeable {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(CaptureRecording.BUFFER_SIZE);
+    private final Map<String, Integer> interned = new HashMap<String, Integer>();
+
+    private long lastCapturedAtMicros;
+    private long numWritten;
+    private boolean closed;
+
+    private CaptureRecordingWriter(final File recording) throws IOException {
+        file = new RandomAccessFile(recording, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        buf.putInt(CaptureRecording.MAGIC);
+        buf.put((byte) CaptureRecording.VERSION);
+    }
+
+    /**
+     * Start a new recording, replacing any existing file
+     */
+    public static CaptureRecordingWriter create(final File recording) throws IOException {
+        if (recording == null) {
+            throw new IllegalArgumentException("Must provide a recording file");
+        }
+        return new CaptureRecordingWriter(recording);
+    }
+
+    /**
+     * Append the given capture. Lazily captured requests are decoded first
+     */
+    public synchronized void write(final CapturedRequest capture) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Recording is closed");
+        }
+        final long capturedAtMicros = capture.capturedAtNanos / 1000;
+        //the first capture is the start of the recording
+        final long delta = numWritten == 0 ? 0 : capturedAtMicros - lastCapturedAtMicros;
+        lastCapturedAtMicros = capturedAtMicros;
+
+        writeByte(CaptureRecording.REQUEST);
+        writeSignedVarLong(delta);
+        writeString(capture.method);
+        writeString(capture.scheme);
+        writeString(capture.host);
+        writeVarLong(capture.port);
+        writeString(capture.contextPath);
+        writeString(capture.servletPath);
+        writeString(capture.pathInfo);
+        writeString(capture.characterEncoding);
+        writeString(capture.protocol);
+
+        final Collection<CapturedHeader> headers = capture.getHeaders();
+        writeVarLong(headers.size());
+        for (final CapturedHeader header : headers) {
+            writeString(header.getName());
+            writeString(header.getValue());
+        }
+        final Map<String, Collection<String>> params = capture.getParameters();
+        writeVarLong(params.size());
+        for (final Map.Entry<String, Collection<String>> param : params.entrySet()) {
+            writeString(param.getKey());
+            writeVarLong(param.getValue().size());
+            for (final String value : param.getValue()) {
+                writeString(value);
+            }
+        }
+        final Collection<CapturedCookie> cookies = capture.getCookies();
+        writeVarLong(cookies.size());
+        for (final CapturedCookie cookie : cookies) {
+            writeString(cookie.name);
+            writeString(cookie.value);
+            writeString(cookie.domain);
+            writeString(cookie.path);
+            writeSignedVarLong(cookie.maxAge);
+            writeVarLong(cookie.version);
+            writeByte(cookie.secure ? 1 : 0);
+        }
+
+        writeVarLong(capture.bodySize);
+        final CapturedPayload body = capture.body;
+        if (body == null) {
+            writeByte(0);
+        } else {
+            writeByte(1);
+            writeVarLong(body.size());
+            for (final ByteBuffer region : body.buffers()) {
+                writeBytes(region);
+            }
+        }
+        numWritten++;
+    }
+
+    /**
+     * Append the given capture unless the recording has already been closed, as a capture made while the recording
+     * is being stopped may be missed
+     *
+     * @return true if the capture was written
+     */
+    synchronized boolean writeUnlessClosed(final CapturedRequest capture) throws IOException {
+        if (closed) {
+            return false;
+        }
+        write(capture);
+        return true;
+    }
+
+    /**
+     * The number of captures written so far
+     */
+    public synchronized long getNumWritten() {
+        return numWritten;
+    }
+
+    /**
+     * Write out any buffered records
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            drain();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drain();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    private void ensure(final int n) throws IOException {
+        if (buf.remaining() < n) {
+            drain();
+        }
+    }
+
+    private void writeByte(final int b) throws IOException {
+        ensure(1);
+        buf.put((byte) b);
+    }
+
+    private void writeVarLong(long v) throws IOException {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    private void writeSignedVarLong(final long v) throws IOException {
+        writeVarLong((v << 1) ^ (v >> 63));
+    }
+
+    private void writeString(final String s) throws IOException {
+        if (s == null) {
+            writeVarLong(CaptureRecording.NULL_STRING);
+            return;
+        }
+        final Integer id = interned.get(s);
+        if (id != null) {
+            writeVarLong(CaptureRecording.FIRST_STRING_ID + id);
+            return;
+        }
+        if (s.length() <= CaptureRecording.MAX_INTERNED_LENGTH && interned.size() < CaptureRecording.MAX_INTERNED) {
+            interned.put(s, interned.size());
+            writeVarLong(CaptureRecording.INTERN_STRING);
+        } else {
+            writeVarLong(CaptureRecording.LITERAL_STRING);
+        }
+        final byte[] utf8 = s.getBytes(CaptureRecording.UTF8);
+        writeVarLong(utf8.length);
+        writeBytes(ByteBuffer.wrap(utf8));
+    }
+
+    private void writeBytes(final ByteBuffer src) throws IOException {
+        final ByteBuffer bytes = src.duplicate();
+        if (bytes.remaining() > buf.capacity()) {
+            //too big to be worth copying, write it straight out
+            drain();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            return;
+        }
+        ensure(bytes.remaining());
+        buf.put(bytes);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Re-issues the requests in a recording made by {@link CaptureRecordingWriter} (or
+ * {@link CapturingTestServer#startRecording(File)}) against any server, at the original pacing, faster or slower,
+ * or as fast as possible.
+ *
+ * <p>
+ * The recording is streamed, so memory use depends on the number of requests allowed in flight rather than the
+ * length of the recording. When all the allowed requests are in flight the replay falls behind schedule rather
+ * than queueing, see {@link ReplayResult#getMaxLagMillis()}.
+ * </p>
+ *
+ * <p>
+ * Requests go to the same context, servlet path and path info as captured, with the captured headers. Parameters
+ * are sent as the body of form posts and on the query string otherwise. Captured bodies are sent as is, truncated
+ * bodies included, so enable {@link CapturingTestServer#setBodyCapture(BodyCapture)} when recording requests with
+ * bodies. Multi part content isn't recorded so isn't replayed
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class CaptureReplayer {
+
+    /**
+     * Send each request as soon as one can be put in flight, ignoring the recorded timings
+     */
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+    /**
+     * Set by the client or describe the original connection, so not replayed
+     */
+    private static final Set<String> SKIPPED_HEADERS = new HashSet<String>(Arrays.asList(
+            "host", "content-length", "transfer-encoding", "connection", "keep-alive", "expect", "upgrade", "te"));
+
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private final File recording;
+    private double speed = 1;
+    private int maxInFlight = 16;
+
+    public CaptureReplayer(final File recording) {
+        if (recording == null) {
+            throw new IllegalArgumentException("Must provide a recording file");
+        }
+        this.recording = recording;
+    }
+
+    /**
+     * How fast to replay relative to the original pacing. 1 for the original pacing (the default), 2 for twice as
+     * fast, 0.5 for half speed, {@link #AS_FAST_AS_POSSIBLE} to ignore the recorded timings
+     *
+     * @param speed
+     */
+    public CaptureReplayer setSpeed(final double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be more than zero, was " + speed);
+        }
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * The most requests to have outstanding at once, which is also the number of connections used. Defaults to 16
+     *
+     * @param maxInFlight
+     */
+    public CaptureReplayer setMaxInFlight(final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Must allow at least one request in flight, was " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Replay the recording against the given server, returning once every response has been received
+     *
+     * @param baseUrl scheme, host and port to send to, as in 'http://localhost:8080'
+     */
+    public ReplayResult replay(final String baseUrl) throws IOException, InterruptedException {
+        final String base = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        final ReplayResult result = new ReplayResult();
+        final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(maxInFlight);
+        connections.setDefaultMaxPerRoute(maxInFlight);
+        final CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(connections)
+                .disableCookieManagement()
+                .disableRedirectHandling()
+                .disableAutomaticRetries()
+                .disableContentCompression()
+                .build();
+        final ExecutorService senders = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "capture-replayer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final CaptureRecordingReader reader = CaptureRecordingReader.open(recording);
+        final long start = System.nanoTime();
+        try {
+            final boolean paced = speed != AS_FAST_AS_POSSIBLE;
+            CapturedRequest capture;
+            while ((capture = reader.next()) != null) {
+                final HttpRequestBase request = toRequest(base, capture);
+                long lag = 0;
+                if (paced) {
+                    final long due = start + (long) (capture.capturedAtNanos / speed);
+                    final long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    inFlight.acquire();
+                    lag = Math.max(0, System.nanoTime() - due);
+                } else {
+                    inFlight.acquire();
+                }
+                result.sent(lag);
+                senders.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            send(client, request, result);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+            //wait for the stragglers
+            inFlight.acquire(maxInFlight);
+            result.finished(System.nanoTime() - start);
+        } finally {
+            senders.shutdownNow();
+            reader.close();
+            client.close();
+        }
+        return result;
+    }
+
+    private static void send(final CloseableHttpClient client, final HttpRequestBase request, final ReplayResult result) {
+        try {
+            final CloseableHttpResponse response = client.execute(request);
+            try {
+                EntityUtils.consume(response.getEntity());
+                result.completed(response.getStatusLine().getStatusCode());
+            } finally {
+                response.close();
+            }
+        } catch (final IOException e) {
+            result.failed();
+        }
+    }
+
+    private static HttpRequestBase toRequest(final String base, final CapturedRequest capture) throws UnsupportedEncodingException {
+        final String method = capture.method;
+        final Map<String, Collection<String>> params = capture.getParameters();
+        final boolean form = capture.body == null && !params.isEmpty() && isForm(capture);
+        final String query = form ? null : encode(params);
+        final HttpRequestBase request;
+        if (capture.body != null || form) {
+            final HttpEntityEnclosingRequestBase withBody = new HttpEntityEnclosingRequestBase() {
+                @Override
+                public String getMethod() {
+                    return method;
+                }
+            };
+            withBody.setEntity(capture.body != null
+                    ? new InputStreamEntity(capture.body.openStream(), capture.body.size())
+                    : new StringEntity(encode(params), "ISO-8859-1"));
+            request = withBody;
+        } else {
+            request = new HttpRequestBase() {
+                @Override
+                public String getMethod() {
+                    return method;
+                }
+            };
+        }
+        request.setURI(toUri(base, capture, query));
+        for (final CapturedHeader header : capture.getHeaders()) {
+            if (!SKIPPED_HEADERS.contains(header.getName().toLowerCase())) {
+                request.addHeader(header.getName(), header.getValue());
+            }
+        }
+        return request;
+    }
+
+    private static boolean isForm(final CapturedRequest capture) {
+        for (final CapturedHeader header : capture.getHeaders()) {
+            if ("Content-Type".equalsIgnoreCase(header.getName())) {
+                return header.getValue().toLowerCase().startsWith(FORM_CONTENT_TYPE);
+            }
+        }
+        return false;
+    }
+
+    private static URI toUri(final String base, final CapturedRequest capture, final String query) {
+        final StringBuilder path = new StringBuilder();
+        append(path, capture.contextPath);
+        append(path, capture.servletPath);
+        append(path, capture.pathInfo);
+        if (path.length() == 0) {
+            path.append('/');
+        }
+        try {
+            //quote anything the decoded path has which isn't allowed in a uri
+            final String rawPath = new URI(null, null, path.toString(), null).getRawPath();
+            return URI.create(base + rawPath + (query == null ? "" : "?" + query));
+        } catch (final URISyntaxException e) {
+            throw new IllegalArgumentException("Can't replay request for path '" + path + "'", e);
+        }
+    }
+
+    private static void append(final StringBuilder sb, final String s) {
+        if (s != null) {
+            sb.append(s);
+        }
+    }
+
+    /**
+     * Url encode the parameters, or null if there are none
+     */
+    private static String encode(final Map<String, Collection<String>> params) throws UnsupportedEncodingException {
+        if (params.isEmpty()) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, Collection<String>> param : params.entrySet()) {
+            final String name = URLEncoder.encode(param.getKey(), "UTF-8");
+            for (final String value : param.getValue()) {
+                if (sb.length() > 0) {
+                    sb.append('&');
+                }
+                sb.append(name).append('=').append(URLEncoder.encode(value, "UTF-8"));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls how much captured history a {@link CapturingTestServer} keeps. Once a limit is exceeded the
+ * oldest captures are evicted first. Zero or less for any limit means unlimited, which is the default.
+ *
+ * <p>
+ * The per path limit only applies to the history kept for each servlet path. The other limits apply
+ * to the total history and to each path's history separately, so a capture is only released once it
+ * has been evicted from both
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public class CaptureRetention {
+
+    private int maxRequests;
+    private int maxRequestsPerPath;
+    private long maxBytes;
+    private long timeToLiveNanos;
+
+    /**
+     * Keep everything. This is the default
+     */
+    public static CaptureRetention unbounded() {
+        return new CaptureRetention();
+    }
+
+    /**
+     * Keep only the last given number of requests, like a ring buffer
+     */
+    public static CaptureRetention lastRequests(final int maxRequests) {
+        return new CaptureRetention().setMaxRequests(maxRequests);
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public CaptureRetention setMaxRequests(final int maxRequests) {
+        this.maxRequests = maxRequests;
+        return this;
+    }
+
+    public int getMaxRequestsPerPath() {
+        return maxRequestsPerPath;
+    }
+
+    public CaptureRetention setMaxRequestsPerPath(final int maxRequestsPerPath) {
+        this.maxRequestsPerPath = maxRequestsPerPath;
+        return this;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * The approximate number of bytes of captured data to keep. See {@link CapturedRequest#estimateSize()}
+     */
+    public CaptureRetention setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public long getTimeToLiveNanos() {
+        return timeToLiveNanos;
+    }
+
+    public CaptureRetention setTimeToLive(final long duration, final TimeUnit unit) {
+        this.timeToLiveNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    CaptureRetention copy() {
+        final CaptureRetention copy = new CaptureRetention();
+        copy.maxRequests = maxRequests;
+        copy.maxRequestsPerPath = maxRequestsPerPath;
+        copy.maxBytes = maxBytes;
+        copy.timeToLiveNanos = timeToLiveNanos;
+        return copy;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads waiting on captures. The capturing thread only wakes the waiters registered for the path captured
+ * (plus those waiting on any path), and each waiter then checks its own condition on its own thread. When
+ * nobody is waiting signalling costs a single volatile read.
+ *
+ * @author Bert van Brakel
+ */
+class CaptureWaiters {
+
+    /**
+     * Used to register waiters interested in captures on any path
+     */
+    static final String ANY_PATH = "*any*";
+
+    private final ConcurrentMap<String, Queue<Waiter>> waitersByPath = new ConcurrentHashMap<String, Queue<Waiter>>();
+    private final AtomicInteger numWaiters = new AtomicInteger();
+
+    /**
+     * The condition a waiter is waiting on. Evaluated on the waiting thread
+     */
+    interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * Called by the capturing thread after a capture has been appended
+     */
+    void signal(final String servletPath) {
+        if (numWaiters.get() == 0) {
+            return;
+        }
+        wake(waitersByPath.get(servletPath));
+        wake(waitersByPath.get(ANY_PATH));
+    }
+
+    private static void wake(final Queue<Waiter> waiters) {
+        if (waiters == null) {
+            return;
+        }
+        for (final Waiter waiter : waiters) {
+            waiter.wake();
+        }
+    }
+
+    /**
+     * Block until the condition is met or the timeout expires
+     *
+     * @return true if the condition was met, false if timed out
+     */
+    boolean await(final String servletPath, final Condition condition, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final Waiter waiter = new Waiter();
+        final Queue<Waiter> waiters = waitersFor(servletPath);
+        waiters.add(waiter);
+        numWaiters.incrementAndGet();
+        try {
+            while (true) {
+                //registered before checking, so a capture after this check is guaranteed to wake us
+                if (condition.isMet()) {
+                    return true;
+                }
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                waiter.awaitWake(remaining);
+            }
+        } finally {
+            numWaiters.decrementAndGet();
+            waiters.remove(waiter);
+        }
+    }
+
+    private Queue<Waiter> waitersFor(final String servletPath) {
+        Queue<Waiter> waiters = waitersByPath.get(servletPath);
+        if (waiters == null) {
+            final Queue<Waiter> newWaiters = new ConcurrentLinkedQueue<Waiter>();
+            waiters = waitersByPath.putIfAbsent(servletPath, newWaiters);
+            if (waiters == null) {
+                waiters = newWaiters;
+            }
+        }
+        return waiters;
+    }
+
+    private static class Waiter {
+        private final Semaphore wakeups = new Semaphore(0);
+
+        void wake() {
+            //a single outstanding wake up is enough, the waiter rechecks everything when it wakes
+            if (wakeups.availablePermits() == 0) {
+                wakeups.release();
+            }
+        }
+
+        void awaitWake(final long timeoutNanos) throws InterruptedException {
+            if (wakeups.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                wakeups.drainPermits();
+            }
+        }
+    }
+}
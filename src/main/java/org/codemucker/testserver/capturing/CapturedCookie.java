@@ -17,8 +17,7 @@ package org.codemucker.testserver.capturing;
 
 import javax.servlet.http.Cookie;
 
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 
@@ -58,19 +57,70 @@ public class CapturedCookie {
 		version = c.getVersion();
 	}
 
+	/**
+	 * A cookie decoded from a request's 'Cookie' header, which carries no attributes
+	 */
+	CapturedCookie(final String name, final String value) {
+		this.domain = null;
+		this.path = null;
+		this.name = name;
+		this.value = value;
+		this.secure = false;
+		this.maxAge = -1;
+		this.version = 0;
+	}
+
+	/**
+	 * A cookie read back from a recording, see {@link CaptureRecordingReader}
+	 */
+	CapturedCookie(final String name, final String value, final String domain, final String path, final int maxAge, final int version, final boolean secure) {
+		this.domain = domain;
+		this.path = path;
+		this.name = name;
+		this.value = value;
+		this.secure = secure;
+		this.maxAge = maxAge;
+		this.version = version;
+	}
+
 	@Override
 	public String toString() {
-		return ToStringBuilder.reflectionToString(this,
-				ToStringStyle.MULTI_LINE_STYLE);
+		return new ToStringBuilder(this, ToStringStyle.MULTI_LINE_STYLE)
+				.append("domain", domain)
+				.append("path", path)
+				.append("name", name)
+				.append("value", value)
+				.append("maxAge", maxAge)
+				.append("version", version)
+				.append("secure", secure)
+				.toString();
 	}
 
 	@Override
 	public int hashCode() {
-		return HashCodeBuilder.reflectionHashCode(13, 5, this);
+		int hash = ObjectUtils.hashCode(name);
+		hash = 31 * hash + ObjectUtils.hashCode(value);
+		hash = 31 * hash + ObjectUtils.hashCode(domain);
+		hash = 31 * hash + ObjectUtils.hashCode(path);
+		return hash;
 	}
 
 	@Override
 	public boolean equals(Object other) {
-		return EqualsBuilder.reflectionEquals(other, this);
+		if (other == this) {
+			return true;
+		}
+		if (other == null || other.getClass() != getClass()) {
+			return false;
+		}
+		final CapturedCookie cookie = (CapturedCookie) other;
+		//cheapest first
+		return maxAge == cookie.maxAge
+				&& version == cookie.version
+				&& secure == cookie.secure
+				&& ObjectUtils.equals(name, cookie.name)
+				&& ObjectUtils.equals(value, cookie.value)
+				&& ObjectUtils.equals(domain, cookie.domain)
+				&& ObjectUtils.equals(path, cookie.path);
 	}
 }
@@ -15,8 +15,11 @@
  */
 package org.codemucker.testserver.capturing;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
@@ -42,6 +45,17 @@ public class CapturedFileItem {
 
     public final long size;
     public final String contentType;
+    /**
+     * The uploaded bytes. Large uploads are kept off heap. Null if none were set
+     */
+    public final CapturedPayload payload;
+    /**
+     * The uploaded bytes if they're kept on the heap, shared with {@link #payload}. Null if spilled off heap or none
+     * were set
+     *
+     * @deprecated use {@link #payload}, or {@link #getPayloadBytes()} for a copy, which hold payloads of any size
+     */
+    @Deprecated
     public final byte[] payloadBytes;
 
     public CapturedFileItem(final FileItemBuilder item) {
@@ -50,14 +64,46 @@ public class CapturedFileItem {
         size = item.getSize();
         contentType = item.getContentType();
         payloadBytes = item.getPayloadBytes();
+        payload = payloadBytes == null ? null : CapturedPayload.inline(payloadBytes);
     }
 
     public CapturedFileItem(final FileItem item) {
+        this(item, CapturedPayload.DEFAULT_INLINE_THRESHOLD);
+    }
+
+    /**
+     * @param item the item to capture
+     * @param inlineThreshold payloads larger than this many bytes are spilled off heap
+     */
+    public CapturedFileItem(final FileItem item, final int inlineThreshold) {
         fieldName = item.getFieldName();
         fileName = item.getName();
         size = item.getSize();
         contentType = item.getContentType();
-        payloadBytes = item.get();
+        if (item.isInMemory()) {
+            //already on the heap, no point copying it again
+            payloadBytes = item.get();
+            payload = CapturedPayload.inline(payloadBytes);
+        } else {
+            payloadBytes = null;
+            try {
+                final InputStream in = item.getInputStream();
+                try {
+                    payload = CapturedPayload.from(in, size, inlineThreshold);
+                } finally {
+                    in.close();
+                }
+            } catch (final IOException e) {
+                throw new RuntimeException("Error capturing payload of file item " + fieldName, e);
+            }
+        }
+    }
+
+    /**
+     * Return a copy of the payload bytes. Avoid for large payloads, use {@link #payload} instead
+     */
+    public byte[] getPayloadBytes() {
+        return payload == null ? null : payload.toBytes();
     }
 
     @Override
@@ -68,11 +114,28 @@ public class CapturedFileItem {
 
     @Override
     public int hashCode() {
-        return HashCodeBuilder.reflectionHashCode(23, 9, this);
+        return new HashCodeBuilder(23, 9)
+                .append(fieldName)
+                .append(fileName)
+                .append(size)
+                .append(contentType)
+                .toHashCode();
     }
 
     @Override
     public boolean equals(final Object other) {
-        return EqualsBuilder.reflectionEquals(other, this);
+        if (other == this) {
+            return true;
+        }
+        if (!(other instanceof CapturedFileItem)) {
+            return false;
+        }
+        final CapturedFileItem item = (CapturedFileItem) other;
+        //cheapest first, payload last as it may mean reading the whole thing
+        return size == item.size
+                && ObjectUtils.equals(fieldName, item.fieldName)
+                && ObjectUtils.equals(fileName, item.fileName)
+                && ObjectUtils.equals(contentType, item.contentType)
+                && (payload == null ? item.payload == null : payload.contentEquals(item.payload));
     }
 }
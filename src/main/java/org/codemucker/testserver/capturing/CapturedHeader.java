@@ -15,8 +15,7 @@
  */
 package org.codemucker.testserver.capturing;
 
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 
@@ -41,18 +40,27 @@ public class CapturedHeader {
 
 	@Override
 	public String toString() {
-		return ToStringBuilder.reflectionToString(this,
-				ToStringStyle.SHORT_PREFIX_STYLE);
+		return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+				.append("name", name)
+				.append("value", value)
+				.toString();
 	}
 
 	@Override
 	public int hashCode() {
-		return HashCodeBuilder.reflectionHashCode(7, 11, this);
+		return 31 * ObjectUtils.hashCode(name) + ObjectUtils.hashCode(value);
 	}
 
 	@Override
 	public boolean equals(final Object other) {
-		return EqualsBuilder.reflectionEquals(other, this);
+		if (other == this) {
+			return true;
+		}
+		if (other == null || other.getClass() != getClass()) {
+			return false;
+		}
+		final CapturedHeader header = (CapturedHeader) other;
+		return ObjectUtils.equals(value, header.value) && ObjectUtils.equals(name, header.name);
 	}
 
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * A multi part content item captured as it streamed past, keeping only its description and digests of its
+ * bytes rather than the bytes themselves. Lets very large uploads be verified in constant memory
+ *
+ * @author Bert van Brakel
+ */
+public class CapturedPartDigest {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Name as set by the form field
+     */
+    public final String fieldName;
+    /**
+     * Name of the file uploaded. Null for plain form fields
+     */
+    public final String fileName;
+    public final String contentType;
+    public final long size;
+    /**
+     * Lower case hex SHA-256 of the part's bytes
+     */
+    public final String sha256;
+    public final long crc32;
+
+    /**
+     * Create the expected digest of the given bytes
+     */
+    public CapturedPartDigest(final String fieldName, final String fileName, final String contentType, final byte[] payload) {
+        this.fieldName = fieldName;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        final Digester digester = new Digester();
+        digester.update(payload, 0, payload.length);
+        this.size = payload.length;
+        this.sha256 = digester.sha256Hex();
+        this.crc32 = digester.crc32();
+    }
+
+    private CapturedPartDigest(final String fieldName, final String fileName, final String contentType, final long size, final Digester digester) {
+        this.fieldName = fieldName;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.size = size;
+        this.sha256 = digester.sha256Hex();
+        this.crc32 = digester.crc32();
+    }
+
+    /**
+     * Read the part's stream to the end, digesting as we go. Only a small fixed buffer is used regardless of the part size
+     */
+    static CapturedPartDigest digest(final String fieldName, final String fileName, final String contentType, final InputStream in) throws IOException {
+        final Digester digester = new Digester();
+        final byte[] buf = new byte[8 * 1024];
+        long size = 0;
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            digester.update(buf, 0, n);
+            size += n;
+        }
+        return new CapturedPartDigest(fieldName, fileName, contentType, size, digester);
+    }
+
+    @Override
+    public String toString() {
+        return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(17, 31)
+                .append(fieldName)
+                .append(size)
+                .append(crc32)
+                .toHashCode();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (other == this) {
+            return true;
+        }
+        if (!(other instanceof CapturedPartDigest)) {
+            return false;
+        }
+        final CapturedPartDigest part = (CapturedPartDigest) other;
+        return size == part.size
+                && crc32 == part.crc32
+                && ObjectUtils.equals(sha256, part.sha256)
+                && ObjectUtils.equals(fieldName, part.fieldName)
+                && ObjectUtils.equals(fileName, part.fileName)
+                && ObjectUtils.equals(contentType, part.contentType);
+    }
+
+    private static class Digester {
+        private final MessageDigest sha256;
+        private final CRC32 crc32 = new CRC32();
+
+        Digester() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 not supported by this JVM", e);
+            }
+        }
+
+        void update(final byte[] buf, final int off, final int len) {
+            sha256.update(buf, off, len);
+            crc32.update(buf, off, len);
+        }
+
+        String sha256Hex() {
+            final byte[] hash = sha256.digest();
+            final char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+            }
+            return new String(hex);
+        }
+
+        long crc32() {
+            return crc32.getValue();
+        }
+    }
+}
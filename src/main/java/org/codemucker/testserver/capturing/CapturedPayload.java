@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The captured bytes of an uploaded file or request body. Small payloads are kept inline on the heap, large
+ * ones are spilled to a memory mapped temp file so they don't bloat the heap or lengthen GC pauses.
+ *
+ * <p>
+ * Payloads can be compared and read through read only buffer views without copying the whole payload onto
+ * the heap
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+public abstract class CapturedPayload {
+
+    /**
+     * Payloads larger than this are spilled off heap by default
+     */
+    public static final int DEFAULT_INLINE_THRESHOLD = 64 * 1024;
+
+    private static final int COMPARE_CHUNK = 8 * 1024;
+
+    /**
+     * Keep the given bytes on the heap. The bytes are not copied so should not be modified afterwards
+     */
+    public static CapturedPayload inline(final byte[] bytes) {
+        return new InlinePayload(bytes);
+    }
+
+    /**
+     * Read the stream fully, keeping the bytes inline if no more than the threshold, otherwise
+     * spill to a memory mapped temp file.
+     *
+     * @param in the stream to read. Not closed
+     * @param size the number of bytes expected, or less than zero if unknown
+     * @param inlineThreshold max bytes to keep on the heap
+     */
+    public static CapturedPayload from(final InputStream in, final long size, final int inlineThreshold) throws IOException {
+        if (size >= 0 && size <= inlineThreshold) {
+            return inline(readInline(in, (int) size));
+        }
+        return MappedFilePayload.spill(in);
+    }
+
+    private static byte[] readInline(final InputStream in, final int size) throws IOException {
+        final byte[] bytes = new byte[size];
+        int read = 0;
+        while (read < size) {
+            final int n = in.read(bytes, read, size - read);
+            if (n < 0) {
+                final byte[] truncated = new byte[read];
+                System.arraycopy(bytes, 0, truncated, 0, read);
+                return truncated;
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * The number of bytes in this payload
+     */
+    public abstract long size();
+
+    /**
+     * The number of bytes this payload holds on the heap
+     */
+    public abstract long heapSize();
+
+    /**
+     * Read only views over the payload in order. Each call returns new views so callers are free to change
+     * their position and limit
+     */
+    public abstract ByteBuffer[] buffers();
+
+    public InputStream openStream() {
+        return new BuffersInputStream(buffers());
+    }
+
+    /**
+     * Copy the whole payload onto the heap. Avoid for large payloads
+     */
+    public byte[] toBytes() {
+        if (size() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Payload of " + size() + " bytes is too large to copy into a byte array");
+        }
+        final byte[] bytes = new byte[(int) size()];
+        int offset = 0;
+        for (final ByteBuffer buf : buffers()) {
+            final int len = buf.remaining();
+            buf.get(bytes, offset, len);
+            offset += len;
+        }
+        return bytes;
+    }
+
+    /**
+     * Compare the bytes of this payload with another, chunk by chunk, without copying either onto the heap
+     */
+    public boolean contentEquals(final CapturedPayload other) {
+        if (other == this) {
+            return true;
+        }
+        if (other == null || other.size() != size()) {
+            return false;
+        }
+        final ByteBuffer[] ours = buffers();
+        final ByteBuffer[] theirs = other.buffers();
+        int i = 0;
+        int j = 0;
+        while (i < ours.length && j < theirs.length) {
+            final ByteBuffer a = ours[i];
+            final ByteBuffer b = theirs[j];
+            if (!a.hasRemaining()) {
+                i++;
+                continue;
+            }
+            if (!b.hasRemaining()) {
+                j++;
+                continue;
+            }
+            final int len = Math.min(COMPARE_CHUNK, Math.min(a.remaining(), b.remaining()));
+            final ByteBuffer sliceA = a.slice();
+            sliceA.limit(len);
+            final ByteBuffer sliceB = b.slice();
+            sliceB.limit(len);
+            if (!sliceA.equals(sliceB)) {
+                return false;
+            }
+            a.position(a.position() + len);
+            b.position(b.position() + len);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof CapturedPayload && contentEquals((CapturedPayload) other);
+    }
+
+    @Override
+    public int hashCode() {
+        //content hashing would mean reading the whole payload
+        return (int) (size() ^ (size() >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[size=" + size() + "]";
+    }
+
+    private static class BuffersInputStream extends InputStream {
+        private final ByteBuffer[] buffers;
+        private int current;
+
+        BuffersInputStream(final ByteBuffer[] buffers) {
+            this.buffers = buffers;
+        }
+
+        private ByteBuffer next() {
+            while (current < buffers.length && !buffers[current].hasRemaining()) {
+                current++;
+            }
+            return current < buffers.length ? buffers[current] : null;
+        }
+
+        @Override
+        public int read() {
+            final ByteBuffer buf = next();
+            return buf == null ? -1 : buf.get() & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            final ByteBuffer buf = next();
+            if (buf == null) {
+                return -1;
+            }
+            final int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            final ByteBuffer buf = next();
+            return buf == null ? 0 : buf.remaining();
+        }
+    }
+
+    static class InlinePayload extends CapturedPayload {
+        private final byte[] bytes;
+
+        InlinePayload(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long size() {
+            return bytes.length;
+        }
+
+        @Override
+        public long heapSize() {
+            return bytes.length;
+        }
+
+        @Override
+        public ByteBuffer[] buffers() {
+            return new ByteBuffer[] { ByteBuffer.wrap(bytes).asReadOnlyBuffer() };
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return bytes.clone();
+        }
+    }
+}
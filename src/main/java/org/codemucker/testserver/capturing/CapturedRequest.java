@@ -15,6 +15,8 @@
  */
 package org.codemucker.testserver.capturing;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -31,10 +33,15 @@ import org.apache.commons.fileupload.FileItemFactory;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
+import org.codemucker.testserver.ConnectionStats;
+import org.eclipse.jetty.http.CookieCompliance;
+import org.eclipse.jetty.server.CookieCutter;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.MultiMap;
+import org.eclipse.jetty.util.UrlEncoded;
 
 /**
  * A captured http request for later analysis and verification. We can't keep
@@ -45,6 +52,8 @@ import org.apache.commons.lang.builder.ToStringStyle;
  */
 public class CapturedRequest {
 
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
     public String scheme;
     public String host;
     public int port;
@@ -55,6 +64,26 @@ public class CapturedRequest {
     public String characterEncoding;
     public String method;
 
+    /**
+     * The protocol and version, as in 'HTTP/1.1' or 'HTTP/2.0'. Describes the transport rather than the request so
+     * isn't part of equals
+     */
+    public String protocol;
+    /**
+     * The HTTP/2 stream the request arrived on, or -1 if not HTTP/2. Not part of equals
+     */
+    public int streamId = -1;
+    /**
+     * The id of the connection the request arrived on, see {@link ConnectionStats}. -1 if not known. Not part of
+     * equals
+     */
+    public long connectionId = -1;
+    /**
+     * When the request arrived, as {@link System#nanoTime()}, so only meaningful relative to other captures. For
+     * captures read back from a recording it's the time since the first capture recorded. Not part of equals
+     */
+    public long capturedAtNanos;
+
     /**
      * The request parameters we got coming in
      */
@@ -73,10 +102,95 @@ public class CapturedRequest {
      */
     final Collection<CapturedFileItem> fileItems = new ArrayList<CapturedFileItem>();
 
+    /**
+     * The digests of the multi part content we received, when not buffering the parts
+     */
+    final Collection<CapturedPartDigest> partDigests = new ArrayList<CapturedPartDigest>();
+
+    /**
+     * The raw request body, or null if not captured
+     */
+    CapturedPayload body;
+    /**
+     * The number of body bytes the request had, which is more than the captured body if truncated
+     */
+    long bodySize;
+
+    /**
+     * The undecoded cookies, headers and parameters when captured lazily. Null once decoded
+     */
+    private transient volatile RawRequest raw;
+
     public CapturedRequest() {
     }
 
+    /**
+     * Capture the request, but only keep the raw header block and query string. The cookies, headers and
+     * parameters are decoded the first time they are asked for. This keeps the cost of capturing on the request
+     * thread down when most of the captured detail is never looked at.
+     *
+     * <p>
+     * Form posts have their parameters captured up front as the body can't be read again later
+     * </p>
+     *
+     * @param req the request to capture
+     * @param multipartCapture how to capture any multi part content
+     */
+    public static CapturedRequest lazy(final HttpServletRequest req, final MultipartCapture multipartCapture) {
+        final CapturedRequest capture = new CapturedRequest();
+        capture.captureRequestLine(req);
+        capture.raw = new RawRequest(req);
+        if (!capture.raw.queryOnly) {
+            capture.captureParameters(req);
+        }
+        capture.captureMultipart(req, multipartCapture);
+        return capture;
+    }
+
     public CapturedRequest(final HttpServletRequest req) {
+        this(req, MultipartCapture.BUFFERED);
+    }
+
+    /**
+     * @param req the request to capture
+     * @param multipartCapture how to capture any multi part content. For {@link MultipartCapture#DIGEST_PASS_THROUGH}
+     * the parts are not captured here, the caller adds them via {@link #addPartDigest(CapturedPartDigest)} once done
+     */
+    public CapturedRequest(final HttpServletRequest req, final MultipartCapture multipartCapture) {
+        captureRequestLine(req);
+        final Cookie[] cookies = req.getCookies();
+
+        // cookies
+        if (cookies != null) {
+            for (final Cookie cookie : cookies) {
+                this.cookies.add(new CapturedCookie(cookie));
+            }
+        }
+        captureHeaders(req);
+        captureParameters(req);
+        captureMultipart(req, multipartCapture);
+    }
+
+    /**
+     * Capture only the request line and headers. Cookies, parameters and any body are ignored
+     */
+    public static CapturedRequest headersOnly(final HttpServletRequest req) {
+        final CapturedRequest capture = new CapturedRequest();
+        capture.captureRequestLine(req);
+        capture.captureHeaders(req);
+        return capture;
+    }
+
+    /**
+     * Capture only the request line
+     */
+    public static CapturedRequest requestLineOnly(final HttpServletRequest req) {
+        final CapturedRequest capture = new CapturedRequest();
+        capture.captureRequestLine(req);
+        return capture;
+    }
+
+    private void captureRequestLine(final HttpServletRequest req) {
         scheme = req.getScheme();
         host = req.getServerName();
         port = req.getServerPort();
@@ -85,15 +199,12 @@ public class CapturedRequest {
         pathInfo = req.getPathInfo();
         characterEncoding = req.getCharacterEncoding();
         method = req.getMethod();
-        final Cookie[] cookies = req.getCookies();
+        protocol = req.getProtocol();
+        streamId = Http2Streams.streamIdOf(req);
+        capturedAtNanos = System.nanoTime();
+    }
 
-        // cookies
-        if (cookies != null) {
-            for (final Cookie cookie : cookies) {
-                this.cookies.add(new CapturedCookie(cookie));
-            }
-        }
-        // headers
+    private void captureHeaders(final HttpServletRequest req) {
         for (@SuppressWarnings("unchecked")
         final Enumeration<String> names = req.getHeaderNames(); names
                 .hasMoreElements();) {
@@ -102,11 +213,14 @@ public class CapturedRequest {
             final Enumeration<String> values = req.getHeaders(name);
             if (values != null) {
                 for (; values.hasMoreElements();) {
-                    this.addHeader(new CapturedHeader(name, values
+                    headers.add(new CapturedHeader(name, values
                             .nextElement()));
                 }
             }
         }
+    }
+
+    private void captureParameters(final HttpServletRequest req) {
         // if we use the normal 'toString' on maps, and arrays, we get pretty
         // poor results
         // Use ArrayLists instead to get a nice output
@@ -119,8 +233,11 @@ public class CapturedRequest {
                         new ArrayList<String>(Arrays.asList(vals)));
             }
         }
+    }
+
+    private void captureMultipart(final HttpServletRequest req, final MultipartCapture multipartCapture) {
         // handle multipart posts
-        if (ServletFileUpload.isMultipartContent(req)) {
+        if (multipartCapture == MultipartCapture.BUFFERED && ServletFileUpload.isMultipartContent(req)) {
             // Create a factory for disk-based file items
             final FileItemFactory factory = new DiskFileItemFactory();
 
@@ -132,28 +249,97 @@ public class CapturedRequest {
                 final List<FileItem> items = upload.parseRequest(req);
                 for (final FileItem item : items) {
                     fileItems.add(new CapturedFileItem(item));
+                    //release any temp file now we have our own copy
+                    item.delete();
                 }
             } catch (final FileUploadException e) {
                 throw new RuntimeException("Error handling multipart content",
                         e);
             }
         }
+        if (multipartCapture == MultipartCapture.DIGEST && ServletFileUpload.isMultipartContent(req)) {
+            try {
+                partDigests.addAll(MultipartDigestTee.digestParts(new ServletFileUpload().getItemIterator(req)));
+            } catch (final FileUploadException e) {
+                throw new RuntimeException("Error handling multipart content", e);
+            } catch (final IOException e) {
+                throw new RuntimeException("Error handling multipart content", e);
+            }
+        }
+    }
+
+    /**
+     * Decode the raw cookies, headers and parameters if captured lazily. Safe to call many times
+     */
+    void decode() {
+        if (raw == null) {
+            return;
+        }
+        synchronized (this) {
+            final RawRequest r = raw;
+            if (r == null) {
+                return;
+            }
+            r.decodeInto(this);
+            //volatile write publishes the decoded collections
+            raw = null;
+        }
+    }
 
+    /**
+     * Whether the cookies, headers and parameters are still to be decoded
+     */
+    public boolean isDecoded() {
+        return raw == null;
+    }
+
+    /**
+     * A decoded copy which can be changed without changing this one. The captured items themselves are shared
+     */
+    CapturedRequest copy() {
+        decode();
+        final CapturedRequest copy = new CapturedRequest();
+        copy.scheme = scheme;
+        copy.host = host;
+        copy.port = port;
+        copy.contextPath = contextPath;
+        copy.servletPath = servletPath;
+        copy.pathInfo = pathInfo;
+        copy.characterEncoding = characterEncoding;
+        copy.method = method;
+        copy.protocol = protocol;
+        copy.streamId = streamId;
+        copy.connectionId = connectionId;
+        copy.capturedAtNanos = capturedAtNanos;
+        for (final Map.Entry<String, Collection<String>> param : parameters.entrySet()) {
+            copy.parameters.put(param.getKey(), new ArrayList<String>(param.getValue()));
+        }
+        copy.cookies.addAll(cookies);
+        copy.headers.addAll(headers);
+        copy.fileItems.addAll(fileItems);
+        copy.partDigests.addAll(partDigests);
+        copy.body = body;
+        copy.bodySize = bodySize;
+        return copy;
     }
 
     public void addCookie(final Cookie cookie) {
+        decode();
         cookies.add(new CapturedCookie(cookie));
     }
 
     public void addCookie(final org.apache.http.cookie.Cookie cookie) {
+        decode();
         cookies.add(new CapturedCookie(cookie));
     }
 
     public void addHeader(final CapturedHeader header) {
+        decode();
         headers.add(header);
     }
 
     public void addHeader(final String name, final String value) {
+        decode();
         headers.add(new CapturedHeader(name, value));
     }
 
@@ -165,31 +351,141 @@ public class CapturedRequest {
         fileItems.add(new CapturedFileItem(item));
     }
 
+    public void addPartDigest(final CapturedPartDigest part) {
+        partDigests.add(part);
+    }
+
+    /**
+     * Set the expected body
+     */
+    public void setBody(final byte[] body) {
+        setCapturedBody(CapturedPayload.inline(body), body.length);
+    }
+
+    void setCapturedBody(final CapturedPayload body, final long bodySize) {
+        this.body = body;
+        this.bodySize = bodySize;
+    }
+
     public void setParamValues(final String name, final String... paramValues) {
+        decode();
         parameters.put(name, new ArrayList<String>(Arrays.asList(paramValues)));
     }
 
+    /**
+     * A rough estimate of the number of bytes this capture holds on to. Used to enforce retention limits so only
+     * needs to be cheap and in the right ballpark
+     */
+    public long estimateSize() {
+        long size = 64 + sizeOf(scheme) + sizeOf(host) + sizeOf(contextPath) + sizeOf(servletPath) + sizeOf(pathInfo)
+                + sizeOf(characterEncoding) + sizeOf(method);
+        final RawRequest r = raw;
+        if (r != null) {
+            //don't force a decode just to find out how big we are
+            size += sizeOf(r.headerBlock) + sizeOf(r.queryString);
+        }
+        for (final Map.Entry<String, Collection<String>> param : parameters.entrySet()) {
+            size += 32 + sizeOf(param.getKey());
+            for (final String val : param.getValue()) {
+                size += sizeOf(val);
+            }
+        }
+        for (final CapturedCookie cookie : cookies) {
+            size += 48 + sizeOf(cookie.name) + sizeOf(cookie.value) + sizeOf(cookie.domain) + sizeOf(cookie.path);
+        }
+        for (final CapturedHeader header : headers) {
+            size += 32 + sizeOf(header.getName()) + sizeOf(header.getValue());
+        }
+        size += partDigests.size() * 200L;
+        if (body != null) {
+            size += 32 + body.heapSize();
+        }
+        for (final CapturedFileItem item : fileItems) {
+            size += 48 + sizeOf(item.fieldName) + sizeOf(item.fileName) + sizeOf(item.contentType)
+                    + (item.payload == null ? 0 : item.payload.heapSize());
+        }
+        return size;
+    }
+
+    private static long sizeOf(final String s) {
+        return s == null ? 0 : 40 + 2 * s.length();
+    }
+
     @Override
     public String toString() {
-        return ToStringBuilder.reflectionToString(this,
-                ToStringStyle.MULTI_LINE_STYLE);
+        decode();
+        return new ToStringBuilder(this, ToStringStyle.MULTI_LINE_STYLE)
+                .append("scheme", scheme)
+                .append("host", host)
+                .append("port", port)
+                .append("contextPath", contextPath)
+                .append("servletPath", servletPath)
+                .append("pathInfo", pathInfo)
+                .append("characterEncoding", characterEncoding)
+                .append("method", method)
+                .append("protocol", protocol)
+                .append("streamId", streamId)
+                .append("connectionId", connectionId)
+                .append("capturedAtNanos", capturedAtNanos)
+                .append("parameters", parameters)
+                .append("cookies", cookies)
+                .append("headers", headers)
+                .append("fileItems", fileItems)
+                .append("partDigests", partDigests)
+                .append("body", body)
+                .append("bodySize", bodySize)
+                .toString();
     }
 
     @Override
     public int hashCode() {
-        return HashCodeBuilder.reflectionHashCode(21, 7, this);
+        //only the cheap request line, equal requests still hash equal
+        int hash = port;
+        hash = 31 * hash + ObjectUtils.hashCode(method);
+        hash = 31 * hash + ObjectUtils.hashCode(servletPath);
+        hash = 31 * hash + ObjectUtils.hashCode(pathInfo);
+        hash = 31 * hash + ObjectUtils.hashCode(host);
+        return 31 * hash + (int) (bodySize ^ (bodySize >>> 32));
     }
 
     @Override
     public boolean equals(final Object other) {
-        return EqualsBuilder.reflectionEquals(other, this);
+        if (other == this) {
+            return true;
+        }
+        if (other == null || other.getClass() != getClass()) {
+            return false;
+        }
+        final CapturedRequest req = (CapturedRequest) other;
+        //cheapest first, only decode if the request lines match
+        if (port != req.port
+                || bodySize != req.bodySize
+                || !ObjectUtils.equals(method, req.method)
+                || !ObjectUtils.equals(servletPath, req.servletPath)
+                || !ObjectUtils.equals(pathInfo, req.pathInfo)
+                || !ObjectUtils.equals(host, req.host)
+                || !ObjectUtils.equals(scheme, req.scheme)
+                || !ObjectUtils.equals(contextPath, req.contextPath)
+                || !ObjectUtils.equals(characterEncoding, req.characterEncoding)) {
+            return false;
+        }
+        decode();
+        req.decode();
+        return headers.equals(req.headers)
+                && cookies.equals(req.cookies)
+                && parameters.equals(req.parameters)
+                && fileItems.equals(req.fileItems)
+                && partDigests.equals(req.partDigests)
+                && ObjectUtils.equals(body, req.body);
     }
 
     public Collection<CapturedCookie> getCookies() {
+        decode();
         return cookies;
     }
 
     public Collection<CapturedHeader> getHeaders() {
+        decode();
         return headers;
     }
 
@@ -197,7 +493,141 @@ public class CapturedRequest {
         return fileItems;
     }
 
+    public Collection<CapturedPartDigest> getMultiPartDigests() {
+        return partDigests;
+    }
+
+    /**
+     * The raw request body, or null if body capture was off or the body was captured as parameters or multi part
+     * content
+     */
+    public CapturedPayload getBody() {
+        return body;
+    }
+
+    /**
+     * The raw request body copied onto the heap, or null if not captured. Avoid for large bodies
+     */
+    public byte[] getBodyBytes() {
+        return body == null ? null : body.toBytes();
+    }
+
+    /**
+     * The raw request body decoded using the request's character encoding, or ISO-8859-1 if none given. Null if
+     * not captured
+     */
+    public String getBodyAsString() throws UnsupportedEncodingException {
+        return body == null ? null : new String(body.toBytes(), characterEncoding == null ? "ISO-8859-1" : characterEncoding);
+    }
+
+    /**
+     * The number of bytes in the request body, whether captured in full or not
+     */
+    public long getBodySize() {
+        return bodySize;
+    }
+
+    /**
+     * Whether only the start of the body was captured because it exceeded the capture limit
+     */
+    public boolean isBodyTruncated() {
+        return body != null && body.size() < bodySize;
+    }
+
     public Map<String, Collection<String>> getParameters() {
+        decode();
         return parameters;
     }
+
+    /**
+     * Whether the parameters come from a url encoded form body
+     */
+    static boolean isFormPost(final HttpServletRequest req) {
+        final String contentType = req.getContentType();
+        return contentType != null && contentType.toLowerCase().startsWith(FORM_CONTENT_TYPE);
+    }
+
+    /**
+     * The raw header block and query string of a lazily captured request. Decoded with the same settings Jetty
+     * decodes the request with, so a lazy capture equals an eager one
+     */
+    private static class RawRequest {
+        /**
+         * Each header as 'name: value' on its own line, in the order received
+         */
+        final String headerBlock;
+        final String queryString;
+        /**
+         * If all the parameters can be decoded from the query string
+         */
+        final boolean queryOnly;
+        /**
+         * The charset Jetty decodes the query string with, null for its default of UTF-8
+         */
+        final String queryEncoding;
+        /**
+         * How Jetty parses the cookie headers, null for its default
+         */
+        final CookieCompliance cookieCompliance;
+
+        RawRequest(final HttpServletRequest req) {
+            final StringBuilder sb = new StringBuilder(512);
+            for (@SuppressWarnings("unchecked")
+            final Enumeration<String> names = req.getHeaderNames(); names.hasMoreElements();) {
+                final String name = names.nextElement();
+                @SuppressWarnings("unchecked")
+                final Enumeration<String> values = req.getHeaders(name);
+                if (values != null) {
+                    while (values.hasMoreElements()) {
+                        sb.append(name).append(": ").append(values.nextElement()).append('\n');
+                    }
+                }
+            }
+            headerBlock = sb.toString();
+            queryString = req.getQueryString();
+            queryOnly = !isFormPost(req);
+            final Request base = Request.getBaseRequest(req);
+            queryEncoding = base == null ? null : base.getQueryEncoding();
+            cookieCompliance = base == null || base.getHttpChannel() == null ? null
+                    : base.getHttpChannel().getHttpConfiguration().getRequestCookieCompliance();
+        }
+
+        void decodeInto(final CapturedRequest capture) {
+            final CookieCutter cookies = cookieCompliance == null ? new CookieCutter() : new CookieCutter(cookieCompliance);
+            boolean hasCookies = false;
+            int start = 0;
+            int end;
+            while ((end = headerBlock.indexOf('\n', start)) != -1) {
+                final int sep = headerBlock.indexOf(": ", start);
+                final String name = headerBlock.substring(start, sep);
+                final String value = headerBlock.substring(sep + 2, end);
+                capture.headers.add(new CapturedHeader(name, value));
+                if ("Cookie".equalsIgnoreCase(name)) {
+                    cookies.addCookieField(value);
+                    hasCookies = true;
+                }
+                start = end + 1;
+            }
+            if (hasCookies) {
+                for (final Cookie cookie : cookies.getCookies()) {
+                    capture.cookies.add(new CapturedCookie(cookie));
+                }
+            }
+            if (queryOnly && queryString != null) {
+                decodeQuery(capture.parameters);
+            }
+        }
+
+        private void decodeQuery(final Map<String, Collection<String>> parameters) {
+            final MultiMap<String> decoded = new MultiMap<String>();
+            if (queryEncoding == null) {
+                UrlEncoded.decodeUtf8To(queryString, decoded);
+            } else {
+                UrlEncoded.decodeTo(queryString, decoded, queryEncoding);
+            }
+            for (final Map.Entry<String, List<String>> param : decoded.entrySet()) {
+                parameters.put(param.getKey(), new ArrayList<String>(param.getValue()));
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -15,22 +15,35 @@
  */
 package org.codemucker.testserver.capturing;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.log4j.Logger;
+import org.codemucker.jmatch.Matcher;
+import org.codemucker.testserver.ConnectionStats;
+import org.codemucker.testserver.ConnectorConfig;
+import org.codemucker.testserver.ResponseTiming;
 import org.codemucker.testserver.Server;
 import org.codemucker.testserver.TestServer;
 import org.codemucker.testserver.TestServlet;
+import org.codemucker.testserver.ThreadPoolConfig;
 /**
  * A MockServer which captures all requests for later analysis
  * of correct client behaviour
@@ -40,50 +53,288 @@ import org.codemucker.testserver.TestServlet;
  */
 public class CapturingTestServer implements Server {
 
-	private final Object LOCK  = new Object();
+	private static final Logger LOG = Logger.getLogger(CapturingTestServer.class);
+
+	/**
+	 * Request attribute holding the {@link InFlightCapture} of a suspended request, so a redispatch isn't captured twice
+	 */
+	private static final String IN_FLIGHT_ATTRIBUTE = CapturingTestServer.class.getName() + ".inFlight";
 
 	private final TestServer server = new TestServer();
 
-	//needs to be thread safe for concurrent read/write
-	private final Collection<CapturedRequest> allRequests = new Vector<CapturedRequest>();
-	//needs to be thread safe for concurrent read/write
-	private final Map<String, List<CapturedRequest>> allRequestsByServletPath = new ConcurrentHashMap<String, List<CapturedRequest>>();
+	private volatile CaptureRetention retention = CaptureRetention.unbounded();
+	private volatile CapturePolicy policy = CapturePolicy.all();
+	private volatile MultipartCapture multipartCapture = MultipartCapture.BUFFERED;
+	private volatile BodyCapture bodyCapture = BodyCapture.none();
+	private volatile boolean lazyDecoding;
+	private volatile boolean indexing;
+
+	private final CaptureWaiters waiters = new CaptureWaiters();
+	//lock free append, readers take snapshots. Replaced on reset
+	private volatile CaptureLog allRequests = newLog();
+	//lock free append, readers take snapshots
+	private final ConcurrentMap<String, CaptureLog> allRequestsByServletPath = new ConcurrentHashMap<String, CaptureLog>();
+	//every request seen, captured or not. Exact regardless of sampling or eviction. Sampled requests are only
+	//counted once captured, so anyone woken by the count can see the capture
+	private volatile AtomicLong totalNumRequests = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> numRequestsByServletPath = new ConcurrentHashMap<String, AtomicLong>();
+	//the order requests arrived in for each path, to decide which to sample
+	private final ConcurrentMap<String, AtomicLong> numArrivedByServletPath = new ConcurrentHashMap<String, AtomicLong>();
+	//null unless indexing. Replaced on reset
+	private volatile CaptureIndex index;
+	private final PathMetricsRegistry metrics = new PathMetricsRegistry();
+	//null unless recording
+	private volatile CaptureRecordingWriter recording;
 
 	@Override
     public void start() throws Exception {
 		server.start();
+		metrics.registerAll();
 	}
 
 	@Override
     public void stop() throws Exception {
 		server.stop();
+		metrics.unregisterAll();
 	}
 
+	/**
+	 * Add a servlet whose requests are captured. The servlet may suspend requests with
+	 * {@link HttpServletRequest#startAsync()}, in which case no thread is held while suspended. Suspended requests
+	 * are counted and captured once, however often they are redispatched. Captures which wait on the body, and the
+	 * path's service time, are completed when the async context completes rather than when the servlet returns
+	 *
+	 * @param servletPath
+	 * @param servlet
+	 */
 	public void addServlet(final String servletPath, final HttpServlet servlet) {
 		final TestServlet wrapper = new TestServlet() {
             private static final long serialVersionUID = 1L;
             @Override
 			public void service(final HttpServletRequest req, final HttpServletResponse res)
 					throws ServletException, IOException {
-				//capture the request for later analysis
-				captureRequest(servletPath, req);
-				//perform the request
-				servlet.service(req, res);
+				final InFlightCapture resumed = (InFlightCapture) req.getAttribute(IN_FLIGHT_ATTRIBUTE);
+				if (resumed != null) {
+					//redispatched after being suspended, already counted and captured once it completes
+					servlet.service(resumed.requestFor(servletPath, req), res);
+					return;
+				}
+				final InFlightCapture inFlight = new InFlightCapture(servletPath, req);
+				try {
+					captureAndService(inFlight, servlet, req, res);
+				} finally {
+					if (req.isAsyncStarted()) {
+						//don't hold this thread, finish once the servlet completes the request
+						inFlight.suspend(req);
+					} else {
+						inFlight.complete();
+					}
+				}
 			}
 		};
 		server.addServlet(servletPath, wrapper);
 	}
 
-	private void captureRequest(final String key, final HttpServletRequest req) {
-		final CapturedRequest capture = new CapturedRequest(req);
-		synchronized(LOCK){
-			allRequests.add(capture);
-			// ensure we have a list to add to
-			if (!allRequestsByServletPath.containsKey(key)) {
-				allRequestsByServletPath.put(key, new ArrayList<CapturedRequest>());
+	private void captureAndService(final InFlightCapture inFlight, final HttpServlet servlet, final HttpServletRequest req, final HttpServletResponse res)
+			throws ServletException, IOException {
+		final String servletPath = inFlight.servletPath;
+		final CapturePolicy p = policy;
+		if (!p.isSampled(incrementFor(numArrivedByServletPath, servletPath))) {
+			//only counted, don't pay for a capture
+			countRequest(servletPath);
+			waiters.signal(servletPath);
+			servlet.service(req, res);
+			return;
+		}
+		final long connectionId = server.getConnectionStats().connectionIdOf(req);
+		if (p.getDetail() != CaptureDetail.FULL) {
+			captureRequest(servletPath, p.getDetail() == CaptureDetail.HEADERS ? CapturedRequest.headersOnly(req) : CapturedRequest.requestLineOnly(req), connectionId);
+			servlet.service(req, res);
+			return;
+		}
+		final MultipartCapture mode = multipartCapture;
+		if (mode == MultipartCapture.DIGEST_PASS_THROUGH && ServletFileUpload.isMultipartContent(req)) {
+			//digest as the servlet reads, only capture once it's done
+			final CapturedRequest capture = newCapture(req, mode);
+			final MultipartDigestTee tee = new MultipartDigestTee(req);
+			inFlight.captureOnceRead(capture, connectionId, tee);
+			servlet.service(tee.getRequest(), res);
+			return;
+		}
+		final BodyCapture bodyConfig = bodyCapture;
+		if (bodyConfig.isEnabled() && hasBody(req) && !ServletFileUpload.isMultipartContent(req) && !CapturedRequest.isFormPost(req)) {
+			//copy the body as the servlet reads it, only capture once it's done
+			final CapturedRequest capture = newCapture(req, mode);
+			final BodyTee tee = new BodyTee(req, bodyConfig);
+			inFlight.captureOnceRead(capture, connectionId, tee);
+			servlet.service(tee.getRequest(), res);
+			return;
+		}
+		//capture the request for later analysis
+		captureRequest(servletPath, newCapture(req, mode), connectionId);
+		//perform the request
+		servlet.service(req, res);
+	}
+
+	/**
+	 * What the server observed for the given servlet path since the metrics were last reset: request rate,
+	 * service time histogram, concurrency and bytes in and out
+	 *
+	 * @return the metrics, or null if no requests have been seen for the path
+	 */
+	public PathMetrics getMetrics(final String servletPath) {
+		return metrics.snapshot(servletPath);
+	}
+
+	/**
+	 * The metrics for every servlet path with requests, by servlet path
+	 */
+	public Map<String, PathMetrics> getAllMetrics() {
+		return metrics.snapshotAll();
+	}
+
+	public void resetMetrics() {
+		metrics.reset();
+	}
+
+	/**
+	 * Whether to register each path's metrics with the platform MBean server, see {@link PathMetricsMXBean}. Off
+	 * by default. Unregistered while the server is stopped
+	 *
+	 * @param enabled
+	 */
+	public void setMetricsJmxEnabled(final boolean enabled) {
+		metrics.setJmxEnabled(enabled);
+	}
+
+	/**
+	 * Delay or throttle responses for the given path, see {@link ResponseTiming}. Can be called while running
+	 *
+	 * @param servletPath
+	 * @param timing
+	 */
+	public void setResponseTiming(final String servletPath, final ResponseTiming timing) {
+		server.setResponseTiming(servletPath, timing);
+	}
+
+	public boolean removeResponseTiming(final String servletPath) {
+		return server.removeResponseTiming(servletPath);
+	}
+
+	/**
+	 * Remove the servlet at the given path without a restart. Captures already made for the path are kept
+	 *
+	 * @return true if there was a servlet at the path
+	 */
+	public boolean removeServlet(final String servletPath) {
+		return server.removeServlet(servletPath);
+	}
+
+	private static boolean hasBody(final HttpServletRequest req) {
+		return req.getContentLength() > 0 || req.getHeader("Transfer-Encoding") != null;
+	}
+
+	private CapturedRequest newCapture(final HttpServletRequest req, final MultipartCapture mode) {
+		return lazyDecoding ? CapturedRequest.lazy(req, mode) : new CapturedRequest(req, mode);
+	}
+
+	//package visible for the benchmarks
+	void captureRequest(final String key, final CapturedRequest capture, final long connectionId) {
+		capture.connectionId = connectionId;
+		final CaptureLog log = allRequests;
+		final long position = log.append(capture);
+		logForPath(key).append(capture);
+		final CaptureIndex idx = index;
+		if (idx != null) {
+			idx.index(log, capture, position);
+		}
+		final CaptureRecordingWriter rec = recording;
+		if (rec != null) {
+			try {
+				rec.writeUnlessClosed(capture);
+			} catch (final Exception e) {
+				//still captured, only the recording misses it
+				LOG.warn("couldn't record capture of request to " + key, e);
+			}
+		}
+		countRequest(key);
+		waiters.signal(key);
+	}
+
+	/**
+	 * Also append every capture to the given file as it's made, for replaying later with a {@link CaptureReplayer}.
+	 * Only sampled requests are recorded, in as much detail as the capture policy allows. Replaces any existing file
+	 *
+	 * @param file the recording to create
+	 * @throws IllegalStateException if already recording
+	 */
+	public synchronized void startRecording(final File file) throws IOException {
+		if (recording != null) {
+			throw new IllegalStateException("Already recording, call stopRecording() first");
+		}
+		recording = CaptureRecordingWriter.create(file);
+	}
+
+	/**
+	 * Stop recording and close the recording file. Captures still in progress when this is called may be missed
+	 *
+	 * @return the number of captures recorded, or zero if not recording
+	 */
+	public synchronized long stopRecording() throws IOException {
+		final CaptureRecordingWriter rec = recording;
+		if (rec == null) {
+			return 0;
+		}
+		recording = null;
+		rec.close();
+		return rec.getNumWritten();
+	}
+
+	private void countRequest(final String servletPath) {
+		totalNumRequests.incrementAndGet();
+		incrementFor(numRequestsByServletPath, servletPath);
+	}
+
+	/**
+	 * @return the count for the path, including this one
+	 */
+	private static long incrementFor(final ConcurrentMap<String, AtomicLong> counts, final String servletPath) {
+		AtomicLong count = counts.get(servletPath);
+		if (count == null) {
+			final AtomicLong newCount = new AtomicLong();
+			count = counts.putIfAbsent(servletPath, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		return count.incrementAndGet();
+	}
+
+	private CaptureLog logForPath(final String servletPath) {
+		// ensure we have a log to add to
+		CaptureLog log = allRequestsByServletPath.get(servletPath);
+		if (log == null) {
+			final CaptureLog newLog = newPathLog();
+			log = allRequestsByServletPath.putIfAbsent(servletPath, newLog);
+			if (log == null) {
+				log = newLog;
 			}
-			allRequestsByServletPath.get(key).add(capture);
 		}
+		return log;
+	}
+
+	private CaptureLog newLog() {
+		final CaptureRetention r = retention;
+		return new CaptureLog(r.getMaxRequests(), r.getMaxBytes(), r.getTimeToLiveNanos());
+	}
+
+	private CaptureLog newPathLog() {
+		final CaptureRetention r = retention;
+		int max = r.getMaxRequestsPerPath();
+		if (max <= 0 || (r.getMaxRequests() > 0 && r.getMaxRequests() < max)) {
+			max = r.getMaxRequests();
+		}
+		return new CaptureLog(max, r.getMaxBytes(), r.getTimeToLiveNanos());
 	}
 
 	/**
@@ -91,7 +342,143 @@ public class CapturingTestServer implements Server {
 	 */
 	public void resetCaptures() {
 		allRequestsByServletPath.clear();
-		allRequests.clear();
+		final CaptureLog log = newLog();
+		allRequests = log;
+		numRequestsByServletPath.clear();
+		numArrivedByServletPath.clear();
+		totalNumRequests = new AtomicLong();
+		index = indexing ? new CaptureIndex(log) : null;
+	}
+
+	/**
+	 * Return this server to how it was when first started, without a restart. Removes all servlets and response
+	 * timings, stops any recording, drops all captures and statistics, and restores the default capture settings.
+	 * Thread pool and connector settings are kept as they require a restart
+	 */
+	public void reset() {
+		server.removeAllServlets();
+		server.removeAllResponseTimings();
+		try {
+			stopRecording();
+		} catch (final IOException e) {
+			throw new RuntimeException("Error closing capture recording", e);
+		}
+		retention = CaptureRetention.unbounded();
+		policy = CapturePolicy.all();
+		multipartCapture = MultipartCapture.BUFFERED;
+		bodyCapture = BodyCapture.none();
+		lazyDecoding = false;
+		indexing = false;
+		resetCaptures();
+		resetMetrics();
+		server.getConnectionStats().reset();
+	}
+
+	/**
+	 * Set how multi part content is captured. Defaults to {@link MultipartCapture#BUFFERED}
+	 *
+	 * @param multipartCapture
+	 */
+	public void setMultipartCapture(final MultipartCapture multipartCapture) {
+		if (multipartCapture == null) {
+			throw new IllegalArgumentException("Must provide a multipart capture mode. One of " + Arrays.toString(MultipartCapture.values()));
+		}
+		this.multipartCapture = multipartCapture;
+	}
+
+	/**
+	 * Set whether to capture raw request bodies, see {@link CapturedRequest#getBody()}. Off by default. Form posts
+	 * and multi part content are still captured as parameters and parts instead. Requests with bodies are captured
+	 * once the wrapped servlet completes
+	 *
+	 * @param bodyCapture
+	 */
+	public void setBodyCapture(final BodyCapture bodyCapture) {
+		if (bodyCapture == null) {
+			throw new IllegalArgumentException("Must provide a body capture. Use BodyCapture.none() to turn off");
+		}
+		this.bodyCapture = bodyCapture.copy();
+	}
+
+	/**
+	 * If set, only the raw headers and query string are kept at capture time. The cookies, headers and parameters
+	 * are decoded when first asked for. Off by default
+	 *
+	 * @param lazyDecoding
+	 */
+	public void setLazyDecoding(final boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	/**
+	 * If set, captured requests are indexed by method, header, parameter and cookie so {@link #query()} only
+	 * walks the requests which could match. Indexing decodes each request as it is captured, so it undoes
+	 * {@link #setLazyDecoding(boolean)}. Off by default. Clears any existing captures
+	 *
+	 * @param indexing
+	 */
+	public void setIndexing(final boolean indexing) {
+		this.indexing = indexing;
+		resetCaptures();
+	}
+
+	/**
+	 * Set which requests to capture and how much of each. By default every request is captured in full. Requests
+	 * not sampled are still counted. Clears any existing captures and counts
+	 *
+	 * @param policy
+	 */
+	public void setCapturePolicy(final CapturePolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("Must provide a capture policy. Use CapturePolicy.all() to capture everything");
+		}
+		this.policy = policy.copy();
+		resetCaptures();
+	}
+
+	/**
+	 * Set how much captured history to keep. By default everything is kept. Clears any existing captures
+	 *
+	 * @param retention
+	 */
+	public void setRetention(final CaptureRetention retention) {
+		if (retention == null) {
+			throw new IllegalArgumentException("Must provide a retention policy. Use CaptureRetention.unbounded() to keep everything");
+		}
+		this.retention = retention.copy();
+		resetCaptures();
+	}
+
+	/**
+	 * Set the threads requests are handled on. Must be called before the server is started
+	 *
+	 * @param threadPool
+	 */
+	public void setThreadPool(final ThreadPoolConfig threadPool) {
+		server.setThreadPool(threadPool);
+	}
+
+	/**
+	 * Tune the connector. Must be called before the server is started
+	 *
+	 * @param connectorConfig
+	 */
+	public void setConnector(final ConnectorConfig connectorConfig) {
+		server.setConnector(connectorConfig);
+	}
+
+	/**
+	 * Whether the server has been started and is accepting requests
+	 */
+	public boolean isRunning() {
+		return server.isRunning();
+	}
+
+	/**
+	 * Connection level statistics since the server was last started
+	 */
+	public ConnectionStats getConnectionStats() {
+		return server.getConnectionStats();
 	}
 
 	@Override
@@ -109,33 +496,273 @@ public class CapturingTestServer implements Server {
 	}
 
 	/**
-	 * Returns a list of all the requests captured by servlet path. Modifiable, but changes are not reflected
+	 * Whether to listen on TCP. On by default. Must be called before the server is started
+	 *
+	 * @param tcpEnabled
+	 */
+	public void setTcpEnabled(final boolean tcpEnabled) {
+		server.setTcpEnabled(tcpEnabled);
+	}
+
+	/**
+	 * Also listen on a Unix domain socket at the given path. Must be called before the server is started
+	 *
+	 * @param path
+	 */
+	public void setUnixSocket(final String path) {
+		server.setUnixSocket(path);
+	}
+
+	public String getUnixSocketPath() {
+		return server.getUnixSocketPath();
+	}
+
+	public String getBaseUnixSocketUrl() {
+		return server.getBaseUnixSocketUrl();
+	}
+
+	/**
+	 * Returns a snapshot of all the requests captured by servlet path. Modifiable, but changes are not reflected
 	 *
 	 * @return
 	 */
 	public List<CapturedRequest> getRequestsByServletPath(
 			final String servletPath) {
-		final List<CapturedRequest> requests = allRequestsByServletPath
+		final CaptureLog requests = allRequestsByServletPath
 				.get(servletPath);
-		return requests == null ? new ArrayList<CapturedRequest>() : requests;
+		return requests == null ? new ArrayList<CapturedRequest>() : requests.snapshot();
 	}
 
 	/**
-	 * Returns a list of all the requests captured. Modifiable, but changes are not reflected
+	 * Returns a snapshot of all the requests captured. Modifiable, but changes are not reflected
 	 *
 	 * @return
 	 */
 	public List<CapturedRequest> getAllRequests() {
-		return new ArrayList<CapturedRequest>(allRequests);
+		return allRequests.snapshot();
 	}
 
+    /**
+     * The number of requests received since the last reset, including any not sampled or since evicted. A sampled
+     * request is only counted once its capture has been made, which for a captured body is after the servlet has
+     * read it
+     */
     public int getTotalNumRequests() {
-        return allRequests.size();
+        return toInt(totalNumRequests.get());
     }
 
+    /**
+     * The number of requests received for the given path since the last reset, including any not sampled or
+     * since evicted. Counted as for {@link #getTotalNumRequests()}
+     */
     public int getNumRequestsForPath(final String servletPath) {
-        final Collection<CapturedRequest> col = allRequestsByServletPath.get(servletPath);
-        return col==null?0:col.size();
+        final AtomicLong count = numRequestsByServletPath.get(servletPath);
+        return count==null?0:toInt(count.get());
+    }
+
+    /**
+     * The number of requests actually captured since the last reset, including any since evicted
+     */
+    public long getNumCapturedRequests() {
+        return allRequests.getNumAppended();
+    }
+
+    /**
+     * The number of requests dropped from {@link #getAllRequests()} to stay within the retention limits
+     */
+    public long getNumEvictedRequests() {
+        return allRequests.getNumEvicted();
+    }
+
+    /**
+     * The number of requests dropped from {@link #getRequestsByServletPath(String)} to stay within the retention limits
+     */
+    public long getNumEvictedRequestsForPath(final String servletPath) {
+        final CaptureLog log = allRequestsByServletPath.get(servletPath);
+        return log==null?0:log.getNumEvicted();
+    }
+
+    /**
+     * Block until at least the given number of requests have been received for the given servlet path since the
+     * last reset, or the timeout expires. Counts requests whether sampled or not. Woken by the request thread, not
+     * by polling. Sampled requests are only counted once captured, so on return their captures are in
+     * {@link #getAllRequests()}
+     *
+     * @param servletPath the path the servlet was registered with
+     * @param count the number of requests to wait for
+     * @return true if the requests arrived, false if timed out
+     */
+    public boolean awaitRequests(final String servletPath, final int count, final long timeout, final TimeUnit unit) throws InterruptedException {
+        return waiters.await(servletPath, new CaptureWaiters.Condition() {
+            @Override
+            public boolean isMet() {
+                return getNumRequestsForPath(servletPath) >= count;
+            }
+        }, timeout, unit);
+    }
+
+    /**
+     * Block until a retained request matching the given matcher has been captured on any path, or the timeout
+     * expires. Requests captured before this call are also checked. Each captured request is only matched once
+     *
+     * @return the first matching request, or null if timed out
+     */
+    public CapturedRequest awaitMatch(final Matcher<CapturedRequest> matcher, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final CapturedRequest[] found = new CapturedRequest[1];
+        waiters.await(CaptureWaiters.ANY_PATH, new CaptureWaiters.Condition() {
+            private CaptureLog log;
+            private long next;
+            private final List<CapturedRequest> newCaptures = new ArrayList<CapturedRequest>();
+
+            @Override
+            public boolean isMet() {
+                final CaptureLog current = allRequests;
+                if (current != log) {
+                    //reset since we last looked, start again
+                    log = current;
+                    next = 0;
+                }
+                newCaptures.clear();
+                next = log.copyFrom(next, newCaptures);
+                for (final CapturedRequest capture : newCaptures) {
+                    if (matcher.matches(capture)) {
+                        found[0] = capture;
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }, timeout, unit);
+        return found[0];
+    }
+
+    /**
+     * Query all the retained requests. Uses the indexes if {@link #setIndexing(boolean)} is on
+     */
+    public CaptureQuery query() {
+        return new CaptureQuery(allRequests, index);
+    }
+
+    /**
+     * Query the retained requests for the given servlet path
+     */
+    public CaptureQuery queryPath(final String servletPath) {
+        return new CaptureQuery(allRequestsByServletPath.get(servletPath));
+    }
+
+    private static int toInt(final long count) {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * A request from entering the wrapped servlet until it completes. If the servlet suspends the request, any
+     * capture waiting on the body and the path's metrics are finished by the async context's completion rather
+     * than when the servlet returns
+     */
+    private class InFlightCapture implements AsyncListener {
+        final String servletPath;
+        private final HttpServletRequest req;
+        private final PathMetricsRecorder recorder;
+        private final long start;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        //only set if the capture waits on the servlet reading the body
+        private CapturedRequest capture;
+        private long connectionId;
+        private BodyTee bodyTee;
+        private MultipartDigestTee multipartTee;
+        private HttpServletRequest teeRequest;
+
+        InFlightCapture(final String servletPath, final HttpServletRequest req) {
+            this.servletPath = servletPath;
+            this.req = req;
+            this.recorder = metrics.recorderFor(servletPath);
+            this.start = recorder.begin(req);
+        }
+
+        void captureOnceRead(final CapturedRequest capture, final long connectionId, final BodyTee tee) {
+            this.capture = capture;
+            this.connectionId = connectionId;
+            this.bodyTee = tee;
+            this.teeRequest = tee.getRequest();
+        }
+
+        void captureOnceRead(final CapturedRequest capture, final long connectionId, final MultipartDigestTee tee) {
+            this.capture = capture;
+            this.connectionId = connectionId;
+            this.multipartTee = tee;
+            this.teeRequest = tee.getRequest();
+        }
+
+        /**
+         * The request to pass to a servlet the suspended request has been redispatched to. Keeps the body teed
+         * if it's the same servlet
+         */
+        HttpServletRequest requestFor(final String path, final HttpServletRequest redispatched) {
+            return teeRequest != null && servletPath.equals(path) ? teeRequest : redispatched;
+        }
+
+        void suspend(final HttpServletRequest suspended) {
+            suspended.setAttribute(IN_FLIGHT_ATTRIBUTE, this);
+            suspended.getAsyncContext().addListener(this);
+        }
+
+        /**
+         * Finish the capture and metrics. Only the first call has any effect. Called from a finally, so failing to
+         * finish the body is logged rather than thrown, it mustn't hide the servlet's own failure
+         */
+        void complete() {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (multipartTee != null) {
+                    try {
+                        for (final CapturedPartDigest part : multipartTee.finish()) {
+                            capture.addPartDigest(part);
+                        }
+                    } catch (final Exception e) {
+                        //keep what we have
+                        LOG.warn("couldn't digest multipart upload to " + servletPath + ", capturing it without digests", e);
+                    }
+                    captureRequest(servletPath, capture, connectionId);
+                } else if (bodyTee != null) {
+                    try {
+                        bodyTee.finish(capture);
+                    } catch (final Exception e) {
+                        LOG.warn("couldn't read the rest of the body sent to " + servletPath + ", capturing it without its body", e);
+                    }
+                    captureRequest(servletPath, capture, connectionId);
+                }
+            } finally {
+                recorder.end(start, req);
+            }
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+            try {
+                complete();
+            } catch (final Exception e) {
+                LOG.warn("error finishing capture of suspended request to " + servletPath, e);
+            }
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+            //always followed by onComplete
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            //always followed by onComplete
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+            //suspended again after a redispatch, listeners have to re-register
+            event.getAsyncContext().addListener(this);
+        }
     }
 
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of started servers leased out to tests, so each test doesn't pay for starting and stopping Jetty. Servers
+ * are started in parallel up front. On release a server is {@link CapturingTestServer#reset() reset} rather than
+ * restarted, and before being leased again it's checked it's still running with its listening socket open, being
+ * replaced if not. The check doesn't connect, so a leased server starts with no connections counted.
+ *
+ * <pre>
+ * final CapturingTestServer server = CapturingTestServerPool.shared().lease();
+ * try {
+ *     server.addServlet("/my/path", servlet);
+ *     ...
+ * } finally {
+ *     CapturingTestServerPool.shared().release(server);
+ * }
+ * </pre>
+ *
+ * Thread pool and connector settings are kept across leases, so tests needing their own should start their own
+ * server.
+ *
+ * @author Bert van Brakel
+ */
+public class CapturingTestServerPool {
+
+    private static final Logger LOG = Logger.getLogger(CapturingTestServerPool.class);
+
+    /**
+     * System property to set the size of the {@link #shared()} pool. Defaults to the number of processors
+     */
+    public static final String SHARED_SIZE_PROPERTY = "codemucker.testserver.pool.size";
+
+    private static final long DEFAULT_LEASE_TIMEOUT_MS = 30 * 1000;
+
+    private static CapturingTestServerPool shared;
+
+    private final BlockingQueue<CapturingTestServer> idle = new LinkedBlockingQueue<CapturingTestServer>();
+    private final Set<CapturingTestServer> leased = Collections.newSetFromMap(new ConcurrentHashMap<CapturingTestServer, Boolean>());
+    private final int size;
+    private volatile boolean stopped;
+
+    private CapturingTestServerPool(final List<CapturingTestServer> servers) {
+        this.size = servers.size();
+        idle.addAll(servers);
+    }
+
+    /**
+     * The pool shared by all tests in this JVM, started on first use and stopped on exit
+     */
+    public static synchronized CapturingTestServerPool shared() {
+        if (shared == null) {
+            final int size = Integer.getInteger(SHARED_SIZE_PROPERTY, Runtime.getRuntime().availableProcessors());
+            final CapturingTestServerPool pool = start(size);
+            Runtime.getRuntime().addShutdownHook(new Thread("test-server-pool-shutdown") {
+                @Override
+                public void run() {
+                    pool.stop();
+                }
+            });
+            shared = pool;
+        }
+        return shared;
+    }
+
+    /**
+     * Start a pool of the given number of servers, starting them in parallel
+     */
+    public static CapturingTestServerPool start(final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Expect pool size to be at least 1 but was " + size);
+        }
+        return new CapturingTestServerPool(startAll(size));
+    }
+
+    private static List<CapturingTestServer> startAll(final int num) {
+        final ExecutorService starters = Executors.newFixedThreadPool(num, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "test-server-pool-starter-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            final List<Future<CapturingTestServer>> futures = new ArrayList<Future<CapturingTestServer>>(num);
+            for (int i = 0; i < num; i++) {
+                futures.add(starters.submit(new Callable<CapturingTestServer>() {
+                    @Override
+                    public CapturingTestServer call() throws Exception {
+                        return startServer();
+                    }
+                }));
+            }
+            final List<CapturingTestServer> servers = new ArrayList<CapturingTestServer>(num);
+            RuntimeException failure = null;
+            for (final Future<CapturingTestServer> future : futures) {
+                try {
+                    servers.add(future.get());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new RuntimeException("Interrupted starting pooled servers", e);
+                } catch (final ExecutionException e) {
+                    failure = new RuntimeException("Error starting pooled server", e.getCause());
+                }
+            }
+            if (failure != null) {
+                //don't leave the ones which did start running
+                for (final CapturingTestServer server : servers) {
+                    stopQuietly(server);
+                }
+                throw failure;
+            }
+            return servers;
+        } finally {
+            starters.shutdownNow();
+        }
+    }
+
+    private static CapturingTestServer startServer() throws Exception {
+        final CapturingTestServer server = new CapturingTestServer();
+        server.start();
+        return server;
+    }
+
+    private static void stopQuietly(final CapturingTestServer server) {
+        try {
+            server.stop();
+        } catch (final Exception e) {
+            LOG.warn("Unable to stop pooled server", e);
+        }
+    }
+
+    /**
+     * Lease a server, waiting up to 30 seconds for one to be released if none are free
+     */
+    public CapturingTestServer lease() throws InterruptedException {
+        return lease(DEFAULT_LEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Lease a server, waiting up to the given time for one to be released if none are free. The server is running
+     * with no servlets, captures or statistics. Return it with {@link #release(CapturingTestServer)}
+     */
+    public CapturingTestServer lease(final long timeout, final TimeUnit unit) throws InterruptedException {
+        checkNotStopped();
+        CapturingTestServer server = idle.poll(timeout, unit);
+        if (server == null) {
+            throw new IllegalStateException("No pooled server released within " + timeout + " " + unit + ", all " + size + " are leased");
+        }
+        if (!server.isRunning()) {
+            LOG.warn("Pooled server on port " + server.getHttpPort() + " is no longer running, replacing it");
+            stopQuietly(server);
+            try {
+                server = startServer();
+            } catch (final Exception e) {
+                //keep the pool its size, the next lease tries to replace it again
+                idle.add(server);
+                throw new RuntimeException("Error starting replacement pooled server", e);
+            }
+        }
+        leased.add(server);
+        return server;
+    }
+
+    /**
+     * Return a leased server to the pool, resetting it for the next lease
+     */
+    public void release(final CapturingTestServer server) {
+        if (!leased.remove(server)) {
+            throw new IllegalArgumentException("Server was not leased from this pool, or has already been released");
+        }
+        if (stopped) {
+            stopQuietly(server);
+            return;
+        }
+        server.reset();
+        idle.add(server);
+    }
+
+    /**
+     * Stop all the idle servers. Leased servers are stopped as they are released
+     */
+    public void stop() {
+        stopped = true;
+        CapturingTestServer server;
+        while ((server = idle.poll()) != null) {
+            stopQuietly(server);
+        }
+    }
+
+    private void checkNotStopped() {
+        if (stopped) {
+            throw new IllegalStateException("Pool has been stopped");
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getNumIdle() {
+        return idle.size();
+    }
+
+    public int getNumLeased() {
+        return leased.size();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of fixed size byte chunks, so capturing bodies doesn't allocate and grow a buffer per request.
+ * Only a bounded number of chunks are kept, any extra returned are left to the garbage collector
+ *
+ * @author Bert van Brakel
+ */
+class ChunkPool {
+
+    static final int CHUNK_SIZE = 8 * 1024;
+
+    private static final int MAX_POOLED = 1024;
+
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<byte[]>();
+    //the queue's size() is O(n), so track it ourselves
+    private static final AtomicInteger NUM_POOLED = new AtomicInteger();
+
+    private ChunkPool() {
+    }
+
+    static byte[] acquire() {
+        final byte[] chunk = POOL.poll();
+        if (chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        NUM_POOLED.decrementAndGet();
+        return chunk;
+    }
+
+    static void release(final byte[] chunk) {
+        if (NUM_POOLED.incrementAndGet() > MAX_POOLED) {
+            NUM_POOLED.decrementAndGet();
+            return;
+        }
+        POOL.offer(chunk);
+    }
+}
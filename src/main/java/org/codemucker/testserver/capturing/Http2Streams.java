@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.http2.IStream;
+import org.eclipse.jetty.http2.server.HttpTransportOverHTTP2;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * Digs the HTTP/2 stream a request arrived on out of Jetty's internals
+ *
+ * @author Bert van Brakel
+ */
+class Http2Streams {
+
+    private static final Logger LOG = Logger.getLogger(Http2Streams.class);
+
+    private static volatile boolean available = true;
+
+    private Http2Streams() {
+    }
+
+    /**
+     * The HTTP/2 stream id of the request, or -1 if not HTTP/2 or not served by Jetty
+     */
+    static int streamIdOf(final HttpServletRequest req) {
+        if (!available) {
+            return -1;
+        }
+        try {
+            final Request base = Request.getBaseRequest(req);
+            final HttpChannel channel = base == null ? null : base.getHttpChannel();
+            if (channel != null && channel.getHttpTransport() instanceof HttpTransportOverHTTP2) {
+                final IStream stream = ((HttpTransportOverHTTP2) channel.getHttpTransport()).getStream();
+                return stream == null ? -1 : stream.getId();
+            }
+        } catch (final LinkageError e) {
+            //jetty http2 not on the classpath
+            LOG.debug("can't read HTTP/2 stream ids", e);
+            available = false;
+        }
+        return -1;
+    }
+}
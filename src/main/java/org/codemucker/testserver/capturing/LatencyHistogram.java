@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A log linear histogram of durations in nanos, in the style of HdrHistogram. Values under 128 get their own
+ * bucket, above that each power of two is split into 64 buckets, so any value is within about 1.5% of its bucket.
+ * Recording is a few shifts and an atomic increment, no locks or allocation, so it's safe on the request path from
+ * many threads.
+ *
+ * @author Bert van Brakel
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int LINEAR_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = LINEAR_BUCKETS / 2;
+    //enough for any positive long
+    static final int NUM_BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS + 1) * HALF_BUCKETS;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(final long left, final long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(MAX, 0);
+
+    void record(final long valueNanos) {
+        final long value = Math.max(0, valueNanos);
+        counts.incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int bucketOf(final long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = msb - SUB_BUCKET_BITS + 1;
+        final int sub = (int) (value >>> shift) - HALF_BUCKETS;
+        return LINEAR_BUCKETS + (shift - 1) * HALF_BUCKETS + sub;
+    }
+
+    /**
+     * The highest value which lands in the given bucket
+     */
+    static long highestValueIn(final int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        final int k = bucket - LINEAR_BUCKETS;
+        final int shift = k / HALF_BUCKETS + 1;
+        final long sub = k % HALF_BUCKETS + HALF_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Copy the bucket counts. Not atomic with respect to concurrent recording, but each count is exact
+     */
+    long[] copyCounts() {
+        final long[] copy = new long[NUM_BUCKETS];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    long getTotal() {
+        return total.sum();
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The value at or under which the given percentage of the recorded values fall, from copied counts
+     */
+    static long valueAtPercentile(final long[] counts, final double percentile) {
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return highestValueIn(i);
+            }
+        }
+        return highestValueIn(counts.length - 1);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A payload spilled to a temp file and memory mapped, so the bytes live in the OS page cache rather than on the
+ * heap. The temp file is removed as soon as it is mapped (or on exit where the OS won't allow that), the mapping
+ * itself is released when this payload is garbage collected
+ *
+ * @author Bert van Brakel
+ */
+class MappedFilePayload extends CapturedPayload {
+
+    private static final Logger LOG = Logger.getLogger(MappedFilePayload.class);
+
+    /**
+     * Max bytes per mapping. A single mapping can't exceed 2GB
+     */
+    private static final long MAX_REGION = Integer.MAX_VALUE;
+
+    private final MappedByteBuffer[] regions;
+    private final long size;
+
+    private MappedFilePayload(final MappedByteBuffer[] regions, final long size) {
+        this.regions = regions;
+        this.size = size;
+    }
+
+    static MappedFilePayload spill(final InputStream in) throws IOException {
+        final File file = File.createTempFile("captured-payload", ".bin");
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final FileChannel channel = raf.getChannel();
+                final ReadableByteChannel src = Channels.newChannel(in);
+                long size = 0;
+                long n;
+                while ((n = channel.transferFrom(src, size, 1024 * 1024)) > 0) {
+                    size += n;
+                }
+                return map(channel, size);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            delete(file);
+        }
+    }
+
+    /**
+     * Map an already written file, deleting it once mapped
+     */
+    static MappedFilePayload mapAndDelete(final File file) throws IOException {
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                return map(channel, channel.size());
+            } finally {
+                raf.close();
+            }
+        } finally {
+            delete(file);
+        }
+    }
+
+    private static MappedFilePayload map(final FileChannel channel, final long size) throws IOException {
+        final int numRegions = (int) Math.max(1, (size + MAX_REGION - 1) / MAX_REGION);
+        final MappedByteBuffer[] regions = new MappedByteBuffer[numRegions];
+        for (int i = 0; i < numRegions; i++) {
+            final long offset = i * MAX_REGION;
+            regions[i] = channel.map(MapMode.READ_ONLY, offset, Math.min(MAX_REGION, size - offset));
+        }
+        return new MappedFilePayload(regions, size);
+    }
+
+    private static void delete(final File file) {
+        if (!file.delete()) {
+            LOG.debug("couldn't delete mapped payload file " + file + " while mapped, will delete on exit");
+            file.deleteOnExit();
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long heapSize() {
+        return 0;
+    }
+
+    @Override
+    public ByteBuffer[] buffers() {
+        final ByteBuffer[] views = new ByteBuffer[regions.length];
+        for (int i = 0; i < regions.length; i++) {
+            views[i] = regions[i].asReadOnlyBuffer();
+        }
+        return views;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+/**
+ * How multi part content is captured
+ *
+ * @author Bert van Brakel
+ */
+public enum MultipartCapture {
+    /**
+     * Parse all the parts up front and keep their payloads, see {@link CapturedRequest#getMultiPartFileItems()}.
+     * The body is consumed before the wrapped servlet is invoked
+     */
+    BUFFERED,
+    /**
+     * Stream the parts up front keeping only their digests, see {@link CapturedRequest#getMultiPartDigests()}.
+     * Memory use is constant regardless of the upload size. The body is consumed before the wrapped servlet is
+     * invoked
+     */
+    DIGEST,
+    /**
+     * Digest the parts as the wrapped servlet reads the body, so the servlet still gets the full body. Whatever
+     * the servlet doesn't read is drained once it returns. The request is captured after the servlet completes.
+     * Digesting is done on a small bounded set of threads. Uploads arriving while they are all busy are spooled to a
+     * temp file as the servlet reads them and digested on the request thread once it's done
+     */
+    DIGEST_PASS_THROUGH;
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.servlet.ServletRequestContext;
+import org.apache.log4j.Logger;
+
+/**
+ * Digests multi part content as the wrapped servlet reads the request body. Every byte the servlet reads is
+ * copied into a small fixed size pipe which a digesting thread parses, so the servlet sees the full body and
+ * memory use doesn't grow with the upload size.
+ *
+ * <p>
+ * The digesting threads are bounded. When they are all busy the bytes the servlet reads are spooled to a temp file
+ * instead, which is digested on the request thread once the servlet is done. Digests aren't queued, as a queued
+ * upload would stall behind its full pipe until a digester came free
+ * </p>
+ *
+ * @author Bert van Brakel
+ */
+class MultipartDigestTee {
+
+    private static final Logger LOG = Logger.getLogger(MultipartDigestTee.class);
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    //package visible for testing
+    static final int MAX_DIGESTERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final ExecutorService DIGESTERS = newDigesters();
+
+    private final BytePipe pipe = new BytePipe(PIPE_SIZE);
+    private final ServletInputStream body;
+    private final TeeInputStream tee;
+    private final HttpServletRequest source;
+    private final HttpServletRequest request;
+    //null if all the digesters were busy
+    private final Future<List<CapturedPartDigest>> digests;
+    //only used if all the digesters were busy. Null if it couldn't be written
+    private File spoolFile;
+    private OutputStream spool;
+    //set once the servlet switches to non blocking reads
+    private volatile boolean nonBlocking;
+
+    MultipartDigestTee(final HttpServletRequest req) throws IOException {
+        source = req;
+        body = req.getInputStream();
+        tee = new TeeInputStream();
+        final InputStream piped = pipe.source();
+        digests = submit(new Callable<List<CapturedPartDigest>>() {
+            @Override
+            public List<CapturedPartDigest> call() throws Exception {
+                try {
+                    return digestParts(piped);
+                } finally {
+                    piped.close();
+                }
+            }
+        });
+        if (digests == null) {
+            startSpool();
+        }
+        request = new HttpServletRequestWrapper(req) {
+            private BufferedReader reader;
+
+            @Override
+            public ServletInputStream getInputStream() {
+                return tee;
+            }
+
+            @Override
+            public BufferedReader getReader() throws IOException {
+                if (reader == null) {
+                    final String encoding = getCharacterEncoding();
+                    reader = new BufferedReader(new InputStreamReader(tee, encoding == null ? "ISO-8859-1" : encoding));
+                }
+                return reader;
+            }
+        };
+    }
+
+    private static ExecutorService newDigesters() {
+        final ThreadPoolExecutor digesters = new ThreadPoolExecutor(MAX_DIGESTERS, MAX_DIGESTERS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "multipart-digester-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        digesters.allowCoreThreadTimeOut(true);
+        return digesters;
+    }
+
+    private static Future<List<CapturedPartDigest>> submit(final Callable<List<CapturedPartDigest>> digester) {
+        try {
+            return DIGESTERS.submit(digester);
+        } catch (final RejectedExecutionException e) {
+            LOG.debug("all " + MAX_DIGESTERS + " multipart digesters busy, spooling upload to digest once read");
+            return null;
+        }
+    }
+
+    private void startSpool() {
+        try {
+            spoolFile = File.createTempFile("multipart-digest", ".bin");
+            spool = new BufferedOutputStream(new FileOutputStream(spoolFile), PIPE_SIZE);
+        } catch (final IOException e) {
+            dropSpool(e);
+        }
+    }
+
+    private void spool(final byte[] b, final int off, final int len) {
+        try {
+            spool.write(b, off, len);
+        } catch (final IOException e) {
+            dropSpool(e);
+        }
+    }
+
+    /**
+     * Give up on the spool rather than fail the servlet's read
+     */
+    private void dropSpool(final IOException e) {
+        LOG.warn("couldn't spool multipart upload to " + source.getRequestURI() + ", capturing it without digests", e);
+        closeSpool();
+        deleteSpool();
+    }
+
+    private void closeSpool() {
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (final IOException e) {
+                LOG.debug("error closing multipart spool", e);
+            }
+            spool = null;
+        }
+    }
+
+    private void deleteSpool() {
+        if (spoolFile != null) {
+            if (!spoolFile.delete()) {
+                spoolFile.deleteOnExit();
+            }
+            spoolFile = null;
+        }
+    }
+
+    private List<CapturedPartDigest> digestParts(final InputStream in) throws FileUploadException, IOException {
+        final ServletRequestContext ctxt = new ServletRequestContext(source) {
+            @Override
+            public InputStream getInputStream() {
+                return in;
+            }
+        };
+        return digestParts(new ServletFileUpload().getItemIterator(ctxt));
+    }
+
+    static List<CapturedPartDigest> digestParts(final FileItemIterator items) throws FileUploadException, IOException {
+        final List<CapturedPartDigest> parts = new ArrayList<CapturedPartDigest>();
+        while (items.hasNext()) {
+            final FileItemStream item = items.next();
+            final InputStream in = item.openStream();
+            try {
+                parts.add(CapturedPartDigest.digest(item.getFieldName(), item.getName(), item.getContentType(), in));
+            } finally {
+                in.close();
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * The request to pass to the wrapped servlet
+     */
+    HttpServletRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Drain any of the body the servlet didn't read and wait for the digests to complete. If the servlet switched
+     * to non blocking reads only what's already arrived is drained
+     *
+     * @return the digests, empty if the upload couldn't be spooled while the digesters were all busy
+     */
+    List<CapturedPartDigest> finish() throws IOException {
+        try {
+            final byte[] buf = new byte[8 * 1024];
+            while ((!nonBlocking || body.isReady()) && tee.read(buf, 0, buf.length) != -1) {
+                //keep draining
+            }
+        } finally {
+            pipe.closeWriter();
+            closeSpool();
+        }
+        if (digests == null) {
+            return digestSpool();
+        }
+        try {
+            return digests.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting on multipart digests", e);
+        } catch (final ExecutionException e) {
+            throw new RuntimeException("Error handling multipart content", e.getCause());
+        }
+    }
+
+    /**
+     * Digest the spooled upload on this thread
+     */
+    private List<CapturedPartDigest> digestSpool() throws IOException {
+        if (spoolFile == null) {
+            return new ArrayList<CapturedPartDigest>();
+        }
+        try {
+            final InputStream in = new BufferedInputStream(new FileInputStream(spoolFile), PIPE_SIZE);
+            try {
+                return digestParts(in);
+            } finally {
+                in.close();
+            }
+        } catch (final FileUploadException e) {
+            throw new RuntimeException("Error handling multipart content", e);
+        } finally {
+            deleteSpool();
+        }
+    }
+
+    private class TeeInputStream extends ServletInputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = body.read(b, off, len);
+            if (n > 0) {
+                if (digests != null) {
+                    pipe.write(b, off, n);
+                } else if (spool != null) {
+                    spool(b, off, n);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return body.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return body.isReady();
+        }
+
+        @Override
+        public void setReadListener(final ReadListener listener) {
+            nonBlocking = true;
+            body.setReadListener(listener);
+        }
+    }
+}
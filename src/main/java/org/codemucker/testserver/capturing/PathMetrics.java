@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of what the server observed for one servlet path since the metrics were last reset. Lets a load test
+ * assert on the server side view, as in
+ *
+ * <pre>
+ * assertTrue(server.getMetrics("/api/*").getServiceTimeMillis(99) &lt; 5);
+ * </pre>
+ *
+ * Service time is the time spent in the servlet, so excludes any {@link org.codemucker.testserver.ResponseTiming}
+ * latency.
+ *
+ * @author Bert van Brakel
+ */
+public class PathMetrics {
+
+    private final String path;
+    private final long count;
+    private final long elapsedNanos;
+    private final int inFlight;
+    private final int maxInFlight;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final long[] serviceTimeCounts;
+    private final long serviceTimeSumNanos;
+    private final long serviceTimeMaxNanos;
+
+    PathMetrics(final String path, final long count, final long elapsedNanos, final int inFlight, final int maxInFlight, final long bytesIn,
+            final long bytesOut, final long[] serviceTimeCounts, final long serviceTimeSumNanos, final long serviceTimeMaxNanos) {
+        this.path = path;
+        this.count = count;
+        this.elapsedNanos = elapsedNanos;
+        this.inFlight = inFlight;
+        this.maxInFlight = maxInFlight;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.serviceTimeCounts = serviceTimeCounts;
+        this.serviceTimeSumNanos = serviceTimeSumNanos;
+        this.serviceTimeMaxNanos = serviceTimeMaxNanos;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Number of requests completed
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Mean completed requests per second since the metrics were reset
+     */
+    public double getRatePerSecond() {
+        return elapsedNanos <= 0 ? 0 : count * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Requests in the servlet when the snapshot was taken
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Most requests in the servlet at once
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Request body bytes received
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Response body bytes sent, counted as each response completes
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * The service time at or under which the given percentage of requests completed, to within about 1.5%
+     *
+     * @param percentile 0 to 100, as in 99.9
+     */
+    public long getServiceTime(final double percentile, final TimeUnit unit) {
+        return unit.convert(LatencyHistogram.valueAtPercentile(serviceTimeCounts, percentile), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * As {@link #getServiceTime(double, TimeUnit)} in fractional millis, for asserting on sub milli latencies
+     */
+    public double getServiceTimeMillis(final double percentile) {
+        return LatencyHistogram.valueAtPercentile(serviceTimeCounts, percentile) / 1e6;
+    }
+
+    public double getMeanServiceTimeMillis() {
+        return count == 0 ? 0 : serviceTimeSumNanos / 1e6 / count;
+    }
+
+    public double getMaxServiceTimeMillis() {
+        return serviceTimeMaxNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[path=" + path + ",count=" + count + ",ratePerSecond=" + String.format("%.1f", getRatePerSecond())
+                + ",inFlight=" + inFlight + ",maxInFlight=" + maxInFlight + ",bytesIn=" + bytesIn + ",bytesOut=" + bytesOut
+                + ",serviceTimeMs[mean=" + String.format("%.3f", getMeanServiceTimeMillis()) + ",p50=" + getServiceTimeMillis(50)
+                + ",p99=" + getServiceTimeMillis(99) + ",max=" + getMaxServiceTimeMillis() + "]]";
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+/**
+ * The JMX view of a {@link PathMetrics}, registered per servlet path as
+ * 'org.codemucker.testserver:type=PathMetrics,server=&lt;id&gt;,path=&lt;quoted path&gt;' when enabled with
+ * {@link CapturingTestServer#setMetricsJmxEnabled(boolean)}
+ *
+ * @author Bert van Brakel
+ */
+public interface PathMetricsMXBean {
+
+    long getCount();
+
+    double getRatePerSecond();
+
+    int getInFlight();
+
+    int getMaxInFlight();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMeanServiceTimeMillis();
+
+    double getP50ServiceTimeMillis();
+
+    double getP90ServiceTimeMillis();
+
+    double getP99ServiceTimeMillis();
+
+    double getP999ServiceTimeMillis();
+
+    double getMaxServiceTimeMillis();
+}
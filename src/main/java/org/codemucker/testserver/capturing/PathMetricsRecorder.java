@@ -0,0 +1,159 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+
+/**
+ * Records the metrics for one servlet path. Recording is lock and allocation free. Bytes out are recorded once the
+ * response completes, as a delayed, throttled or suspended response is still being sent after the servlet returns
+ *
+ * @author Bert van Brakel
+ */
+class PathMetricsRecorder implements PathMetricsMXBean, RequestLog {
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(final long left, final long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private final String path;
+    private final long startNanos = System.nanoTime();
+    private final LatencyHistogram serviceTimes = new LatencyHistogram();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAccumulator maxInFlight = new LongAccumulator(MAX, 0);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    PathMetricsRecorder(final String path) {
+        this.path = path;
+    }
+
+    /**
+     * A request has entered the servlet
+     *
+     * @return the start time to pass to {@link #end(long, HttpServletRequest)}
+     */
+    long begin(final HttpServletRequest req) {
+        maxInFlight.accumulate(inFlight.incrementAndGet());
+        final Request base = Request.getBaseRequest(req);
+        if (base != null) {
+            //only for this request, the channel drops it when recycled
+            base.getHttpChannel().addRequestLog(this);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * The request has left the servlet, or completed if the servlet suspended it
+     */
+    void end(final long start, final HttpServletRequest req) {
+        serviceTimes.record(System.nanoTime() - start);
+        inFlight.decrementAndGet();
+        final Request base = Request.getBaseRequest(req);
+        final long contentLength = req.getContentLengthLong();
+        if (contentLength > 0) {
+            bytesIn.add(contentLength);
+        } else if (base != null) {
+            bytesIn.add(base.getHttpInput().getContentReceived());
+        }
+    }
+
+    /**
+     * The response has been sent in full
+     */
+    @Override
+    public void log(final Request request, final Response response) {
+        bytesOut.add(response.getHttpOutput().getWritten());
+    }
+
+    PathMetrics snapshot() {
+        return new PathMetrics(path, serviceTimes.getTotal(), System.nanoTime() - startNanos, inFlight.get(), (int) maxInFlight.get(),
+                bytesIn.sum(), bytesOut.sum(), serviceTimes.copyCounts(), serviceTimes.getSum(), serviceTimes.getMax());
+    }
+
+    @Override
+    public long getCount() {
+        return serviceTimes.getTotal();
+    }
+
+    @Override
+    public double getRatePerSecond() {
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        return elapsedNanos <= 0 ? 0 : getCount() * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return (int) maxInFlight.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMeanServiceTimeMillis() {
+        return snapshot().getMeanServiceTimeMillis();
+    }
+
+    @Override
+    public double getP50ServiceTimeMillis() {
+        return snapshot().getServiceTimeMillis(50);
+    }
+
+    @Override
+    public double getP90ServiceTimeMillis() {
+        return snapshot().getServiceTimeMillis(90);
+    }
+
+    @Override
+    public double getP99ServiceTimeMillis() {
+        return snapshot().getServiceTimeMillis(99);
+    }
+
+    @Override
+    public double getP999ServiceTimeMillis() {
+        return snapshot().getServiceTimeMillis(99.9);
+    }
+
+    @Override
+    public double getMaxServiceTimeMillis() {
+        return serviceTimes.getMax() / 1e6;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The metrics recorders of a server by servlet path, optionally registered with the platform MBean server
+ *
+ * @author Bert van Brakel
+ */
+class PathMetricsRegistry {
+
+    private static final Logger LOG = Logger.getLogger(PathMetricsRegistry.class);
+    private static final AtomicInteger SERVER_IDS = new AtomicInteger();
+
+    private final int serverId = SERVER_IDS.incrementAndGet();
+    private volatile ConcurrentMap<String, PathMetricsRecorder> recorders = new ConcurrentHashMap<String, PathMetricsRecorder>();
+    private volatile boolean jmxEnabled;
+
+    PathMetricsRecorder recorderFor(final String path) {
+        final ConcurrentMap<String, PathMetricsRecorder> current = recorders;
+        PathMetricsRecorder recorder = current.get(path);
+        if (recorder == null) {
+            final PathMetricsRecorder created = new PathMetricsRecorder(path);
+            recorder = current.putIfAbsent(path, created);
+            if (recorder == null) {
+                recorder = created;
+                if (jmxEnabled) {
+                    register(path, created);
+                }
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * @return the snapshot, or null if no requests have been seen for the path
+     */
+    PathMetrics snapshot(final String path) {
+        final PathMetricsRecorder recorder = recorders.get(path);
+        return recorder == null ? null : recorder.snapshot();
+    }
+
+    Map<String, PathMetrics> snapshotAll() {
+        final Map<String, PathMetrics> snapshots = new LinkedHashMap<String, PathMetrics>();
+        for (final Map.Entry<String, PathMetricsRecorder> entry : recorders.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Start again. Requests in flight record into the old recorders
+     */
+    void reset() {
+        final ConcurrentMap<String, PathMetricsRecorder> old = recorders;
+        recorders = new ConcurrentHashMap<String, PathMetricsRecorder>();
+        if (jmxEnabled) {
+            for (final String path : old.keySet()) {
+                unregister(path);
+            }
+        }
+    }
+
+    void setJmxEnabled(final boolean enabled) {
+        if (enabled == jmxEnabled) {
+            return;
+        }
+        jmxEnabled = enabled;
+        for (final Map.Entry<String, PathMetricsRecorder> entry : recorders.entrySet()) {
+            if (enabled) {
+                register(entry.getKey(), entry.getValue());
+            } else {
+                unregister(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Register all the paths if enabled, as when the server starts
+     */
+    void registerAll() {
+        if (jmxEnabled) {
+            for (final Map.Entry<String, PathMetricsRecorder> entry : recorders.entrySet()) {
+                register(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Unregister all the paths, leaving JMX enabled for when the server restarts
+     */
+    void unregisterAll() {
+        if (jmxEnabled) {
+            for (final String path : recorders.keySet()) {
+                unregister(path);
+            }
+        }
+    }
+
+    ObjectName objectNameFor(final String path) throws JMException {
+        return new ObjectName("org.codemucker.testserver:type=PathMetrics,server=" + serverId + ",path=" + ObjectName.quote(path));
+    }
+
+    private void register(final String path, final PathMetricsRecorder recorder) {
+        final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = objectNameFor(path);
+            if (!mbeans.isRegistered(name)) {
+                mbeans.registerMBean(recorder, name);
+            }
+        } catch (final JMException e) {
+            LOG.warn("Unable to register metrics mbean for path " + path, e);
+        }
+    }
+
+    private void unregister(final String path) {
+        final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = objectNameFor(path);
+            if (mbeans.isRegistered(name)) {
+                mbeans.unregisterMBean(name);
+            }
+        } catch (final JMException e) {
+            LOG.warn("Unable to unregister metrics mbean for path " + path, e);
+        }
+    }
+}
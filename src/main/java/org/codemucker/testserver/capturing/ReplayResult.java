@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What happened when a recording was replayed, see {@link CaptureReplayer}
+ *
+ * @author Bert van Brakel
+ */
+public class ReplayResult {
+
+    private final AtomicLong numSent = new AtomicLong();
+    private final AtomicLong numFailed = new AtomicLong();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+    private final ConcurrentMap<Integer, AtomicLong> numByStatus = new ConcurrentHashMap<Integer, AtomicLong>();
+    private volatile long elapsedNanos;
+
+    ReplayResult() {
+    }
+
+    void sent(final long lagNanos) {
+        numSent.incrementAndGet();
+        long max;
+        while (lagNanos > (max = maxLagNanos.get()) && !maxLagNanos.compareAndSet(max, lagNanos)) {
+            //lost the race, try again
+        }
+    }
+
+    void completed(final int status) {
+        AtomicLong count = numByStatus.get(status);
+        if (count == null) {
+            final AtomicLong newCount = new AtomicLong();
+            count = numByStatus.putIfAbsent(status, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    void failed() {
+        numFailed.incrementAndGet();
+    }
+
+    void finished(final long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * The number of requests sent
+     */
+    public long getNumSent() {
+        return numSent.get();
+    }
+
+    /**
+     * The number of requests which got no response, because of a connection or protocol error
+     */
+    public long getNumFailed() {
+        return numFailed.get();
+    }
+
+    /**
+     * The number of responses with the given status code
+     */
+    public long getNumWithStatus(final int status) {
+        final AtomicLong count = numByStatus.get(status);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * The number of responses by status code
+     */
+    public Map<Integer, Long> getStatusCounts() {
+        final Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (final Map.Entry<Integer, AtomicLong> entry : numByStatus.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * How long the whole replay took, until the last response was received
+     */
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    /**
+     * The furthest behind schedule a request was sent. Grows when the target can't keep up with the replay speed
+     * and all the allowed requests are in flight. Zero when replaying as fast as possible
+     */
+    public long getMaxLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayResult[sent=" + getNumSent() + ", failed=" + getNumFailed() + ", statuses=" + getStatusCounts()
+                + ", elapsedMillis=" + getElapsedMillis() + ", maxLagMillis=" + getMaxLagMillis() + "]";
+    }
+}
@@ -18,21 +18,49 @@ package org.codemucker.testserver;
 import static junitx.framework.StringAssert.assertContains;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.codemucker.testserver.capturing.CapturedRequest;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.unixsocket.client.HttpClientTransportOverUnixSockets;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Test;
 
 public class TestServerTest {
@@ -112,6 +140,593 @@ public class TestServerTest {
         assertEquals(1,capturedRequests.size());
     }
 
+	@Test
+	public void ensure_port_is_read_from_connector_when_not_set() throws Exception {
+		server.start();
+		final int port = server.getHttpPort();
+		assertTrue(port > 0);
+		assertEquals(port, ((ServerConnector) server.getJettyServer().getConnectors()[0]).getLocalPort());
+
+		//a restart binds a free port again rather than wait for the old one
+		server.stop();
+		server.start();
+		assertTrue(server.getHttpPort() > 0);
+		assertEquals(server.getHttpPort(), ((ServerConnector) server.getJettyServer().getConnectors()[0]).getLocalPort());
+	}
+
+	@Test
+	public void ensure_allocated_ports_are_unique_across_threads() throws Exception {
+		final PortAllocator ports = PortAllocator.range(42000, 42099);
+		final Set<Integer> allocated = Collections.synchronizedSet(new HashSet<Integer>());
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < 50; i++) {
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						assertTrue(allocated.add(ports.allocate()));
+					}
+				}));
+			}
+			for (final Future<?> future : futures) {
+				future.get();
+			}
+			assertEquals(50, allocated.size());
+			assertEquals(50, ports.getNumAllocated());
+
+			final int port = allocated.iterator().next();
+			server.setHttpPort(port);
+			server.start();
+			assertEquals(port, server.getHttpPort());
+		} finally {
+			executor.shutdownNow();
+			ports.releaseAll();
+		}
+		assertEquals(0, ports.getNumAllocated());
+	}
+
+	@Test
+	public void ensure_unix_socket_url_is_equivalent_of_http_url() throws Exception {
+		server.setUnixSocket("/tmp/test server.sock");
+		server.setTcpEnabled(false);
+
+		assertEquals("/tmp/test server.sock", server.getUnixSocketPath());
+		assertEquals("http+unix://%2Ftmp%2Ftest%20server.sock", server.getBaseUnixSocketUrl());
+		try {
+			server.getBaseHttpUrl();
+			fail("Expected no http url when TCP is disabled");
+		} catch (final IllegalStateException e) {
+			//expected
+		}
+
+		server.setUnixSocket(null);
+		try {
+			server.start();
+			fail("Expected an error when there's nothing to listen on");
+		} catch (final IllegalStateException e) {
+			//expected
+		}
+	}
+
+	@SuppressWarnings("serial")
+	@Test
+	public void ensure_requests_are_served_over_unix_socket() throws Exception {
+		Assume.assumeFalse("no unix sockets on windows", System.getProperty("os.name").toLowerCase().startsWith("windows"));
+		final File socket = File.createTempFile("testserver", ".sock");
+		socket.delete();
+		server.setUnixSocket(socket.getAbsolutePath());
+		server.setTcpEnabled(false);
+		server.addServlet("/unix", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.getWriter().write("over unix socket");
+			}
+		});
+		server.start();
+
+		final org.eclipse.jetty.client.HttpClient client = new org.eclipse.jetty.client.HttpClient(new HttpClientTransportOverUnixSockets(server.getUnixSocketPath()), null);
+		client.start();
+		try {
+			final ContentResponse resp = client.GET("http://localhost/unix");
+			assertEquals(HttpServletResponse.SC_OK, resp.getStatus());
+			assertEquals("over unix socket", resp.getContentAsString());
+		} finally {
+			client.stop();
+			socket.delete();
+		}
+	}
+
+	@Test
+	public void ensure_canned_response_is_served() throws Exception {
+		server.addServlet("/canned", new CannedResponseServlet(CannedResponse.status(201)
+				.setContentType("text/plain;charset=utf-8")
+				.addHeader("X-Canned", "yes")
+				.setBody("canned body")));
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		for (int i = 0; i < 3; i++) {
+			final HttpResponse resp = client.execute(new HttpGet(server.getBaseHttpUrl() + "/canned"));
+			assertEquals(201, resp.getStatusLine().getStatusCode());
+			assertEquals("yes", resp.getFirstHeader("X-Canned").getValue());
+			assertEquals("text/plain;charset=utf-8", resp.getFirstHeader("Content-Type").getValue());
+			assertEquals("11", resp.getFirstHeader("Content-Length").getValue());
+			assertEquals("canned body", EntityUtils.toString(resp.getEntity()));
+		}
+	}
+
+	@Test
+	public void ensure_payloads_are_served_with_ranges() throws Exception {
+		final long seed = 42;
+		final byte[] expect = new byte[100 * 1024];
+		PayloadServlet.fillSynthetic(seed, 0, expect, 0, expect.length);
+		final File file = File.createTempFile("payload", ".bin");
+		file.deleteOnExit();
+		FileUtils.writeByteArrayToFile(file, expect);
+
+		server.addServlet("/synthetic", PayloadServlet.synthetic(expect.length, seed));
+		server.addServlet("/file", PayloadServlet.file(file));
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		for (final String path : new String[] { "/synthetic", "/file" }) {
+			HttpResponse resp = client.execute(new HttpGet(server.getBaseHttpUrl() + path));
+			assertEquals(HttpServletResponse.SC_OK, resp.getStatusLine().getStatusCode());
+			assertTrue(Arrays.equals(expect, EntityUtils.toByteArray(resp.getEntity())));
+
+			final HttpGet range = new HttpGet(server.getBaseHttpUrl() + path);
+			range.setHeader("Range", "bytes=1000-1999");
+			resp = client.execute(range);
+			assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, resp.getStatusLine().getStatusCode());
+			assertEquals("bytes 1000-1999/" + expect.length, resp.getFirstHeader("Content-Range").getValue());
+			assertTrue(Arrays.equals(Arrays.copyOfRange(expect, 1000, 2000), EntityUtils.toByteArray(resp.getEntity())));
+
+			final HttpGet suffix = new HttpGet(server.getBaseHttpUrl() + path);
+			suffix.setHeader("Range", "bytes=-10");
+			resp = client.execute(suffix);
+			assertTrue(Arrays.equals(Arrays.copyOfRange(expect, expect.length - 10, expect.length), EntityUtils.toByteArray(resp.getEntity())));
+
+			final HttpGet outside = new HttpGet(server.getBaseHttpUrl() + path);
+			outside.setHeader("Range", "bytes=" + expect.length + "-");
+			resp = client.execute(outside);
+			EntityUtils.consume(resp.getEntity());
+			assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, resp.getStatusLine().getStatusCode());
+		}
+	}
+
+	@Test
+	public void ensure_delayed_responses_dont_hold_threads() throws Exception {
+		//fewer threads than requests in flight
+		server.setThreadPool(ThreadPoolConfig.bounded(8, 8));
+		server.addServlet("/slow", new CannedResponseServlet(CannedResponse.ok().setBody("slow")));
+		server.setResponseTiming("/slow", ResponseTiming.fixedLatency(300, TimeUnit.MILLISECONDS));
+		server.addServlet("/throttled", PayloadServlet.synthetic(2000, 1));
+		server.setResponseTiming("/throttled", ResponseTiming.none()
+				.setTimeToFirstByte(100, TimeUnit.MILLISECONDS)
+				.setBytesPerSecond(10000));
+		server.start();
+
+		final int numRequests = 40;
+		final ExecutorService executor = Executors.newFixedThreadPool(numRequests);
+		try {
+			final List<Future<String>> futures = new ArrayList<Future<String>>();
+			final long start = System.nanoTime();
+			for (int i = 0; i < numRequests; i++) {
+				futures.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						final HttpClient client = HttpClientBuilder.create().build();
+						return EntityUtils.toString(client.execute(new HttpGet(server.getBaseHttpUrl() + "/slow")).getEntity());
+					}
+				}));
+			}
+			for (final Future<String> future : futures) {
+				assertEquals("slow", future.get());
+			}
+			final long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue("Expected the requests to be delayed together but took " + tookMs + "ms", tookMs >= 300 && tookMs < 2000);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		final byte[] expect = new byte[2000];
+		PayloadServlet.fillSynthetic(1, 0, expect, 0, expect.length);
+		final long start = System.nanoTime();
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/throttled"));
+		assertTrue(Arrays.equals(expect, EntityUtils.toByteArray(resp.getEntity())));
+		final long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		//100ms to the first byte then 200ms of sending
+		assertTrue("Expected the response to be throttled but took " + tookMs + "ms", tookMs >= 250);
+	}
+
+	@Test
+	public void ensure_streamed_throttled_responses_dont_hold_threads() throws Exception {
+		//fewer threads than responses in flight
+		server.setThreadPool(ThreadPoolConfig.bounded(8, 8));
+		//too big to hold on the heap, so spooled
+		final int size = ResponseShaper.MAX_HEAP + 512 * 1024;
+		server.addServlet("/large", PayloadServlet.synthetic(size, 1));
+		//about 3s each
+		server.setResponseTiming("/large", ResponseTiming.none().setBytesPerSecond(size / 3));
+		server.addServlet("/fast", new CannedResponseServlet(CannedResponse.ok().setBody("fast")));
+		server.start();
+
+		final byte[] expect = new byte[size];
+		PayloadServlet.fillSynthetic(1, 0, expect, 0, expect.length);
+		final int numRequests = 24;
+		final CountDownLatch started = new CountDownLatch(numRequests);
+		final ExecutorService executor = Executors.newFixedThreadPool(numRequests);
+		try {
+			final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < numRequests; i++) {
+				futures.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						final HttpClient client = HttpClientBuilder.create().build();
+						final InputStream in = client.execute(new HttpGet(server.getBaseHttpUrl() + "/large")).getEntity().getContent();
+						final byte[] body = new byte[size];
+						IOUtils.readFully(in, body, 0, 1);
+						started.countDown();
+						IOUtils.readFully(in, body, 1, size - 1);
+						assertEquals(-1, in.read());
+						return body;
+					}
+				}));
+			}
+			//long before the first could finish if each held a thread
+			assertTrue("Expected every response to have started", started.await(2, TimeUnit.SECONDS));
+
+			//all trickling out at once, yet there are still threads to serve other requests
+			final long start = System.nanoTime();
+			assertEquals("fast", EntityUtils.toString(HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/fast")).getEntity()));
+			final long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue("Expected a free thread but took " + tookMs + "ms", tookMs < 300);
+
+			for (final Future<byte[]> future : futures) {
+				assertTrue(Arrays.equals(expect, future.get(10, TimeUnit.SECONDS)));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void ensure_shaped_responses_are_streamed_once_flushed() throws Exception {
+		final CountDownLatch firstRead = new CountDownLatch(1);
+		server.addServlet("/flushing", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.getOutputStream().write("first,".getBytes("UTF-8"));
+				try {
+					//a flush sends what the timing allows so far, keep flushing like a heartbeat
+					final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+					do {
+						resp.flushBuffer();
+						if (System.nanoTime() > deadline) {
+							throw new ServletException("Flushed bytes were never read");
+						}
+					} while (!firstRead.await(10, TimeUnit.MILLISECONDS));
+				} catch (final InterruptedException e) {
+					throw new ServletException(e);
+				}
+				resp.getOutputStream().write("second".getBytes("UTF-8"));
+			}
+		});
+		server.setResponseTiming("/flushing", ResponseTiming.none().setTimeToFirstByte(50, TimeUnit.MILLISECONDS));
+		server.start();
+
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/flushing"));
+		final InputStream in = resp.getEntity().getContent();
+		final byte[] first = new byte[6];
+		IOUtils.readFully(in, first);
+		assertEquals("first,", new String(first, "UTF-8"));
+		firstRead.countDown();
+		assertEquals("second", IOUtils.toString(in, "UTF-8"));
+	}
+
+	@Test
+	public void ensure_shaped_responses_send_writes_after_suspending() throws Exception {
+		server.addServlet("/suspending", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				final AsyncContext async = req.startAsync();
+				new Thread() {
+					@Override
+					public void run() {
+						try {
+							Thread.sleep(100);
+							resp.getOutputStream().write("written later".getBytes("UTF-8"));
+						} catch (final Exception e) {
+							throw new RuntimeException(e);
+						} finally {
+							async.complete();
+						}
+					}
+				}.start();
+			}
+		});
+		server.setResponseTiming("/suspending", ResponseTiming.none().setBytesPerSecond(1000));
+		server.start();
+
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/suspending"));
+		assertEquals("written later", EntityUtils.toString(resp.getEntity()));
+	}
+
+	@Test
+	public void ensure_large_throttled_responses_are_streamed() throws Exception {
+		final int size = 3 * 1024 * 1024;
+		server.addServlet("/large", PayloadServlet.synthetic(size, 1));
+		server.setResponseTiming("/large", ResponseTiming.none()
+				.setTimeToFirstByte(50, TimeUnit.MILLISECONDS)
+				.setBytesPerSecond(10 * 1024 * 1024));
+		server.start();
+
+		final byte[] expect = new byte[size];
+		PayloadServlet.fillSynthetic(1, 0, expect, 0, expect.length);
+		final long start = System.nanoTime();
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/large"));
+		assertTrue(Arrays.equals(expect, EntityUtils.toByteArray(resp.getEntity())));
+		final long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		//50ms to the first byte then 300ms of sending
+		assertTrue("Expected the response to be throttled but took " + tookMs + "ms", tookMs >= 300);
+	}
+
+	@Test
+	public void ensure_can_replace_and_remove_servlets_on_running_server() throws Exception {
+		server.addServlet("/swap/*", new FixedResponseServlet("one"));
+		server.start();
+
+		final String url = "http://" + server.getHost() + ":" + server.getHttpPort() + "/swap/some/path";
+		final HttpClient client = HttpClientBuilder.create().build();
+
+		assertEquals("one", EntityUtils.toString(client.execute(new HttpGet(url)).getEntity()));
+
+		server.addServlet("/swap/*", new FixedResponseServlet("two"));
+		assertEquals("two", EntityUtils.toString(client.execute(new HttpGet(url)).getEntity()));
+		assertEquals(1, server.getServletPaths().size());
+
+		assertTrue(server.removeServlet("/swap/*"));
+		final HttpResponse resp = client.execute(new HttpGet(url));
+		EntityUtils.consume(resp.getEntity());
+		assertEquals(HttpServletResponse.SC_NOT_FOUND, resp.getStatusLine().getStatusCode());
+		assertEquals(0, server.getServletPaths().size());
+	}
+
+	@Test
+	public void ensure_readding_same_servlet_is_ignored() throws Exception {
+		final FixedResponseServlet one = new FixedResponseServlet("one");
+		server.addServlet("/swap/*", one);
+		server.start();
+		assertEquals(1, one.inits.get());
+
+		server.addServlet("/swap/*", one);
+		final String url = "http://" + server.getHost() + ":" + server.getHttpPort() + "/swap/some/path";
+		final HttpClient client = HttpClientBuilder.create().build();
+		assertEquals("one", EntityUtils.toString(client.execute(new HttpGet(url)).getEntity()));
+		assertEquals(1, one.inits.get());
+		assertEquals(0, one.destroys.get());
+	}
+
+	@Test
+	public void ensure_removed_servlet_is_not_destroyed_while_a_request_is_suspended() throws Exception {
+		final BlockingQueue<AsyncContext> suspended = new LinkedBlockingQueue<AsyncContext>();
+		final AtomicInteger destroys = new AtomicInteger();
+		server.addServlet("/suspend", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				final AsyncContext async = req.startAsync();
+				async.setTimeout(0);
+				suspended.add(async);
+			}
+
+			@Override
+			public void destroy() {
+				destroys.incrementAndGet();
+			}
+		});
+		server.start();
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<String> response = executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					final HttpClient client = HttpClientBuilder.create().build();
+					return EntityUtils.toString(client.execute(new HttpGet(server.getBaseHttpUrl() + "/suspend")).getEntity());
+				}
+			});
+			final AsyncContext async = suspended.poll(5, TimeUnit.SECONDS);
+			assertTrue("Expected the request to be suspended", async != null);
+
+			assertTrue(server.removeServlet("/suspend"));
+			assertEquals(0, destroys.get());
+
+			async.getResponse().getWriter().write("completed");
+			async.complete();
+			assertEquals("completed", response.get(5, TimeUnit.SECONDS));
+			//destroyed once the request completes, which can be just after the client has the response
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (destroys.get() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, destroys.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class FixedResponseServlet extends TestServlet {
+		private final String body;
+		final AtomicInteger inits = new AtomicInteger();
+		final AtomicInteger destroys = new AtomicInteger();
+
+		FixedResponseServlet(final String body) {
+			this.body = body;
+		}
+
+		@Override
+		public void init(final ServletConfig config) {
+			inits.incrementAndGet();
+		}
+
+		@Override
+		public void destroy() {
+			destroys.incrementAndGet();
+		}
+
+		@Override
+		protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+			//mapped by prefix, so the path info is what follows
+			assertEquals("/swap", req.getServletPath());
+			assertEquals("/some/path", req.getPathInfo());
+			resp.getWriter().write(body);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	@Test
+	public void ensure_bounded_thread_pool_is_used() throws Exception {
+		server.setThreadPool(ThreadPoolConfig.bounded(4, 12).setMaxQueued(100).setName("bounded"));
+		final Collection<String> threadNames = new Vector<String>();
+		server.addServlet("/pooled", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				threadNames.add(Thread.currentThread().getName());
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final QueuedThreadPool pool = (QueuedThreadPool) server.getJettyServer().getThreadPool();
+		assertEquals(4, pool.getMinThreads());
+		assertEquals(12, pool.getMaxThreads());
+
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/pooled"));
+		assertEquals(HttpServletResponse.SC_OK, resp.getStatusLine().getStatusCode());
+		assertTrue(threadNames.iterator().next().startsWith("bounded"));
+	}
+
+	@SuppressWarnings("serial")
+	@Test
+	public void ensure_virtual_threads_are_used() throws Exception {
+		Assume.assumeTrue("needs a runtime with virtual threads", supportsVirtualThreads());
+		server.setThreadPool(ThreadPoolConfig.virtualThreads().setName("virtual"));
+		final Collection<Thread> threads = new Vector<Thread>();
+		server.addServlet("/virtual", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				threads.add(Thread.currentThread());
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/virtual"));
+		assertEquals(HttpServletResponse.SC_OK, resp.getStatusLine().getStatusCode());
+		final Thread thread = threads.iterator().next();
+		assertTrue(thread.getName().startsWith("virtual-"));
+		assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+	}
+
+	@Test
+	public void ensure_virtual_threads_fail_clearly_when_not_supported() throws Exception {
+		Assume.assumeFalse("runtime has virtual threads", supportsVirtualThreads());
+		server.setThreadPool(ThreadPoolConfig.virtualThreads());
+		try {
+			server.start();
+			fail("expected the server to refuse to start");
+		} catch (final IllegalStateException e) {
+			assertContains("Java 21", e.getMessage());
+		}
+	}
+
+	private static boolean supportsVirtualThreads() {
+		try {
+			Thread.class.getMethod("ofVirtual").invoke(null);
+			return true;
+		} catch (final Exception e) {
+			//not there, or a preview feature not enabled
+			return false;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	@Test
+	public void ensure_connector_config_is_applied() throws Exception {
+		server.setConnector(ConnectorConfig.defaults()
+				.setAcceptors(1)
+				.setSelectors(2)
+				.setAcceptQueueSize(512)
+				.setIdleTimeout(5, TimeUnit.SECONDS)
+				.setRequestHeaderSize(16 * 1024)
+				.setReusePort(true));
+		server.addServlet("/tuned", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final ServerConnector connector = (ServerConnector) server.getJettyServer().getConnectors()[0];
+		assertEquals(1, connector.getAcceptors());
+		assertEquals(512, connector.getAcceptQueueSize());
+		assertEquals(5000, connector.getIdleTimeout());
+		assertEquals(server.getHttpPort(), connector.getLocalPort());
+
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/tuned"));
+		assertEquals(HttpServletResponse.SC_OK, resp.getStatusLine().getStatusCode());
+	}
+
+	@SuppressWarnings("serial")
+	@Test
+	public void ensure_connection_reuse_is_counted() throws Exception {
+		server.addServlet("/keepalive", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.setStatus(HttpServletResponse.SC_OK);
+				resp.getWriter().write("ok");
+			}
+		});
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		for (int i = 0; i < 5; i++) {
+			EntityUtils.consume(client.execute(new HttpGet(server.getBaseHttpUrl() + "/keepalive")).getEntity());
+		}
+		final ConnectionStats stats = server.getConnectionStats();
+		assertEquals(1, stats.getConnectionsOpened());
+		assertEquals(1, stats.getConnectionsOpen());
+		assertEquals(5, stats.getRequests());
+		assertEquals(5, stats.getMaxRequestsPerConnection());
+		assertTrue(stats.getBytesIn() > 0);
+		assertTrue(stats.getBytesOut() > 0);
+
+		final HttpGet close = new HttpGet(server.getBaseHttpUrl() + "/keepalive");
+		close.setHeader("Connection", "close");
+		EntityUtils.consume(HttpClientBuilder.create().build().execute(close).getEntity());
+		assertEquals(2, stats.getConnectionsOpened());
+		assertEquals(6, stats.getRequests());
+	}
+
 	@Test
 	public void ensure_throws_errors_when_modifying_server_properties_when_already_started() throws Exception {
 		server.start();
@@ -119,6 +734,8 @@ public class TestServerTest {
 		    public void doit() { server.setHttpPort(1234); } } );
 		assertActionThrowsError(new Action() { @Override
 		    public void doit() { server.setHost("localhost"); } } );
+		assertActionThrowsError(new Action() { @Override
+		    public void doit() { server.setThreadPool(ThreadPoolConfig.bounded(1, 2)); } } );
 		//assertActionThrowsError(new Action() { @Override
 		   // public void doit() { server.addServlet("/some/path", new TestServlet() {} ); } } );
 		assertActionThrowsError(new Action() { @Override
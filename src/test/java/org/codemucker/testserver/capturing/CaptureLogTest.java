@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Bert van Brakel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codemucker.testserver.capturing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CaptureLogTest {
+
+	@Test
+	public void ensure_appends_are_kept_in_order() {
+		final CaptureLog log = new CaptureLog();
+		final CapturedRequest[] captures = new CapturedRequest[1000];
+		for (int i = 0; i < captures.length; i++) {
+			captures[i] = new CapturedRequest();
+			log.append(captures[i]);
+		}
+
+		final List<CapturedRequest> snapshot = log.snapshot();
+		assertEquals(captures.length, log.getNumAppended());
+		assertEquals(0, log.getNumEvicted());
+		assertEquals(captures.length, snapshot.size());
+		for (int i = 0; i < captures.length; i++) {
+			assertSame(captures[i], snapshot.get(i));
+		}
+	}
+
+	@Test
+	public void ensure_oldest_evicted_when_max_entries_exceeded() {
+		final CaptureLog log = new CaptureLog(10, 0, 0);
+		final CapturedRequest[] captures = new CapturedRequest[1000];
+		for (int i = 0; i < captures.length; i++) {
+			captures[i] = new CapturedRequest();
+			log.append(captures[i]);
+		}
+
+		final List<CapturedRequest> snapshot = log.snapshot();
+		assertEquals(captures.length, log.getNumAppended());
+		assertEquals(captures.length - 10, log.getNumEvicted());
+		assertEquals(10, snapshot.size());
+		for (int i = 0; i < 10; i++) {
+			assertSame(captures[captures.length - 10 + i], snapshot.get(i));
+		}
+	}
+
+	@Test
+	public void ensure_oldest_evicted_when_max_bytes_exceeded() {
+		final CapturedRequest capture = new CapturedRequest();
+		capture.method = "GET";
+		final long size = capture.estimateSize();
+		final CaptureLog log = new CaptureLog(0, size * 3, 0);
+		for (int i = 0; i < 5; i++) {
+			log.append(capture);
+		}
+
+		assertEquals(2, log.getNumEvicted());
+		assertEquals(3, log.snapshot().size());
+	}
+
+	@Test
+	public void ensure_expired_captures_evicted() throws Exception {
+		final CaptureLog log = new CaptureLog(0, 0, TimeUnit.MILLISECONDS.toNanos(50));
+		log.append(new CapturedRequest());
+		log.append(new CapturedRequest());
+		assertEquals(2, log.snapshot().size());
+
+		Thread.sleep(100);
+
+		assertEquals(0, log.snapshot().size());
+		assertEquals(2, log.getNumEvicted());
+	}
+
+	@Test
+	public void ensure_index_drops_evicted_captures() {
+		final CaptureLog log = new CaptureLog(10, 0, 0);
+		final CaptureIndex index = new CaptureIndex(log);
+		for (int i = 0; i < 5000; i++) {
+			final CapturedRequest capture = new CapturedRequest();
+			capture.method = "GET";
+			capture.parameters.put("id", Collections.singletonList(Integer.toString(i)));
+			index.index(log, capture, log.append(capture));
+		}
+
+		final CaptureQuery query = new CaptureQuery(log, index);
+		assertEquals(0, query.param("id", "0").count());
+		assertEquals(1, new CaptureQuery(log, index).param("id", "4999").count());
+		assertEquals(10, new CaptureQuery(log, index).methodGET().count());
+		assertTrue(index.getNumKeys() < 5000);
+
+		index.sweep();
+		//the method, the param name and the values of the ten retained
+		assertEquals(12, index.getNumKeys());
+	}
+
+	@Test
+	public void ensure_concurrent_appends_are_not_lost() throws Exception {
+		final CaptureLog log = new CaptureLog();
+		final int numThreads = 16;
+		final int numPerThread = 2000;
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (final InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < numPerThread; j++) {
+						log.append(new CapturedRequest());
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (final Thread t : threads) {
+			t.join();
+		}
+
+		final Set<CapturedRequest> unique = Collections.newSetFromMap(new IdentityHashMap<CapturedRequest, Boolean>());
+		for (final CapturedRequest capture : log.snapshot()) {
+			unique.add(capture);
+		}
+		assertEquals(numThreads * numPerThread, log.getNumAppended());
+		assertEquals(numThreads * numPerThread, unique.size());
+	}
+}
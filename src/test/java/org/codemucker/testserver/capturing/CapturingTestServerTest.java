@@ -15,24 +15,73 @@
  */
 package org.codemucker.testserver.capturing;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.codemucker.jmatch.AList;
 import org.codemucker.jmatch.Expect;
+import org.codemucker.jmatch.Matcher;
+import org.codemucker.testserver.ConnectorConfig;
+import org.codemucker.testserver.HttpProtocol;
+import org.codemucker.testserver.PayloadServlet;
+import org.codemucker.testserver.ResponseTiming;
 import org.codemucker.testserver.TestServlet;
+import org.codemucker.testserver.ThreadPoolConfig;
 import org.codemucker.testserver.capturing.ACapturedRequest;
 import org.codemucker.testserver.capturing.CapturedRequest;
 import org.codemucker.testserver.capturing.CapturingTestServer;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.CookieCompliance;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.server.Request;
 import org.junit.After;
 import org.junit.Test;
 
@@ -105,6 +154,521 @@ public class CapturingTestServerTest {
 		
 	}
 
+	@Test
+	public void test_await_wakes_when_request_captured() throws Exception {
+		server.addServlet("/async", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		assertFalse(server.awaitRequests("/async", 1, 50, TimeUnit.MILLISECONDS));
+
+		final Thread client = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+					HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/async?id=1"));
+				} catch (final Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		client.start();
+
+		final CapturedRequest expect = new CapturedRequest();
+		expect.scheme = "http";
+		expect.host = server.getHost();
+		expect.port = server.getHttpPort();
+		expect.contextPath = "";
+		expect.servletPath = "/async";
+		expect.method = "GET";
+		expect.setParamValues("id", "1");
+
+		assertTrue(server.awaitRequests("/async", 1, 10, TimeUnit.SECONDS));
+		assertNotNull(server.awaitMatch(ACapturedRequest.equalTo(expect), 10, TimeUnit.SECONDS));
+		client.join();
+	}
+
+	@Test
+	public void test_request_captured_without_body_if_body_cut_short() throws Exception {
+		server.setBodyCapture(BodyCapture.upTo(1024));
+		server.addServlet("/short", new TestServlet() {
+			@Override
+			protected void doPost(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				//leave the body to be drained once the servlet returns
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final Socket socket = new Socket(server.getHost(), server.getHttpPort());
+		try {
+			final OutputStream out = socket.getOutputStream();
+			out.write(("POST /short HTTP/1.1\r\nHost: " + server.getHost() + "\r\nContent-Type: text/plain\r\nContent-Length: 100\r\n\r\nonly part of it").getBytes("UTF-8"));
+			out.flush();
+			socket.shutdownOutput();
+
+			assertTrue(server.awaitRequests("/short", 1, 10, TimeUnit.SECONDS));
+			assertEquals(1, server.getAllRequests().size());
+			assertNull(server.getAllRequests().get(0).getBody());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void test_await_returns_once_body_captured() throws Exception {
+		server.setBodyCapture(BodyCapture.upTo(1024));
+		final CountDownLatch read = new CountDownLatch(1);
+		server.addServlet("/slow", new TestServlet() {
+			@Override
+			protected void doPost(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				IOUtils.toByteArray(req.getInputStream());
+				read.countDown();
+				try {
+					//the body is only captured once the servlet returns
+					Thread.sleep(200);
+				} catch (final InterruptedException e) {
+					throw new ServletException(e);
+				}
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final Thread client = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final HttpPost post = new HttpPost(server.getBaseHttpUrl() + "/slow");
+					post.setEntity(new StringEntity("some body", ContentType.TEXT_PLAIN));
+					HttpClientBuilder.create().build().execute(post);
+				} catch (final Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		client.start();
+
+		assertTrue(read.await(10, TimeUnit.SECONDS));
+		assertTrue(server.awaitRequests("/slow", 1, 10, TimeUnit.SECONDS));
+		assertEquals(1, server.getAllRequests().size());
+		assertEquals("some body", server.getAllRequests().get(0).getBodyAsString());
+		client.join();
+	}
+
+	@Test
+	public void test_lazy_capture_matches_eager_capture_for_other_charsets_and_versioned_cookies() throws Exception {
+		final Collection<CapturedRequest> eagerCaptures = new Vector<CapturedRequest>();
+		server.setLazyDecoding(true);
+		server.addServlet("/lazy", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				eagerCaptures.add(new CapturedRequest(req));
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.addServlet("/rfc2965", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				//applies to the requests after this one
+				Request.getBaseRequest(req).getHttpChannel().getHttpConfiguration().setRequestCookieCompliance(CookieCompliance.RFC2965);
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		final HttpGet latin1 = new HttpGet(server.getBaseHttpUrl() + "/lazy?name=caf%E9&plain=a+b");
+		latin1.setHeader("Content-Type", "text/plain; charset=ISO-8859-1");
+		IOUtils.closeQuietly(client.execute(latin1).getEntity().getContent());
+		final String versionedCookies = "$Version=1; session=abc; $Path=/lazy; $Domain=localhost; theme=dark";
+		final HttpGet versioned = new HttpGet(server.getBaseHttpUrl() + "/lazy");
+		versioned.setHeader("Cookie", versionedCookies);
+		IOUtils.closeQuietly(client.execute(versioned).getEntity().getContent());
+		IOUtils.closeQuietly(client.execute(new HttpGet(server.getBaseHttpUrl() + "/rfc2965")).getEntity().getContent());
+		//jetty keeps its cookie parser per connection, so use a new one
+		IOUtils.closeQuietly(HttpClientBuilder.create().build().execute(versioned).getEntity().getContent());
+
+		final List<CapturedRequest> lazy = server.getRequestsByServletPath("/lazy");
+		final List<CapturedRequest> eager = new ArrayList<CapturedRequest>(eagerCaptures);
+		assertEquals(3, lazy.size());
+		for (int i = 0; i < lazy.size(); i++) {
+			assertEquals(eager.get(i), lazy.get(i));
+		}
+		//the attributes went to the cookie before them
+		final CapturedCookie session = lazy.get(2).getCookies().iterator().next();
+		assertEquals("session", session.name);
+		assertEquals("/lazy", session.path);
+		assertEquals("localhost", session.domain);
+		assertEquals(1, session.version);
+	}
+
+	@Test
+	public void test_lazy_capture_decodes_same_as_eager_capture() throws Exception {
+		final Collection<CapturedRequest> eagerCaptures = new Vector<CapturedRequest>();
+		server.setLazyDecoding(true);
+		server.addServlet("/lazy", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				eagerCaptures.add(new CapturedRequest(req));
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final HttpGet get = new HttpGet(server.getBaseHttpUrl() + "/lazy?foo=bar&foo=b%20z&alice=bob");
+		get.setHeader("X-Tenant", "42");
+		get.setHeader("Cookie", "session=abc123; theme=\"dark\"");
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(get);
+		assertEquals(HttpServletResponse.SC_OK, resp.getStatusLine().getStatusCode());
+
+		final CapturedRequest lazy = server.getRequestsByServletPath("/lazy").get(0);
+		assertFalse(lazy.isDecoded());
+		assertEquals(eagerCaptures.iterator().next(), lazy);
+		assertTrue(lazy.isDecoded());
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void test_captures_large_multipart_upload() throws Exception {
+		server.addServlet("/upload", new TestServlet() {
+			@Override
+			protected void doPost(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		//large enough to be spilled off heap
+		final byte[] payload = new byte[CapturedPayload.DEFAULT_INLINE_THRESHOLD * 4];
+		new Random(42).nextBytes(payload);
+
+		final HttpPost post = new HttpPost(server.getBaseHttpUrl() + "/upload");
+		post.setEntity(MultipartEntityBuilder.create()
+				.addBinaryBody("myfile", payload, ContentType.APPLICATION_OCTET_STREAM, "my.bin")
+				.build());
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(post);
+		assertEquals(HttpServletResponse.SC_OK, resp.getStatusLine().getStatusCode());
+
+		final CapturedFileItem captured = server.getRequestsByServletPath("/upload").get(0).getMultiPartFileItems().iterator().next();
+		assertEquals(0, captured.payload.heapSize());
+		//only the copy holds a spilled payload
+		assertNull(captured.payloadBytes);
+		assertTrue(Arrays.equals(payload, captured.getPayloadBytes()));
+		final byte[] small = new byte[] { 1, 2, 3 };
+		assertTrue(small == new CapturedFileItem(new FileItemBuilder("small").setPayloadBytes(small)).payloadBytes);
+
+		final CapturedRequest expect = new CapturedRequest();
+		expect.scheme = "http";
+		expect.host = server.getHost();
+		expect.port = server.getHttpPort();
+		expect.contextPath = "";
+		expect.servletPath = "/upload";
+		expect.method = "POST";
+		expect.addFileItem(new FileItemBuilder("myfile")
+			.setFileName("my.bin")
+			.setContentTypeBinaryOctet()
+			.setPayloadBytes(payload));
+
+		Expect
+			.that(server.getRequestsByServletPath("/upload"))
+			.is(AList.withOnly(ACapturedRequest.equalTo(expect)));
+	}
+
+	@Test
+	public void test_digests_multipart_upload_while_servlet_reads_body() throws Exception {
+		server.setMultipartCapture(MultipartCapture.DIGEST_PASS_THROUGH);
+		server.addServlet("/upload", new TestServlet() {
+			@Override
+			protected void doPost(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				//servlet should still get the full body
+				final long numBytes = IOUtils.copyLarge(req.getInputStream(), new NullOutputStream());
+				resp.setStatus(HttpServletResponse.SC_OK);
+				resp.getWriter().write(Long.toString(numBytes));
+			}
+		});
+		server.start();
+
+		final byte[] payload = new byte[1024 * 1024];
+		new Random(42).nextBytes(payload);
+
+		final HttpPost post = new HttpPost(server.getBaseHttpUrl() + "/upload");
+		post.setEntity(MultipartEntityBuilder.create()
+				.addBinaryBody("myfile", payload, ContentType.APPLICATION_OCTET_STREAM, "my.bin")
+				.build());
+		final HttpResponse resp = HttpClientBuilder.create().build().execute(post);
+		assertEquals(HttpServletResponse.SC_OK, resp.getStatusLine().getStatusCode());
+		final long bodyLength = Long.parseLong(IOUtils.toString(resp.getEntity().getContent()));
+		assertTrue("expected servlet to read the whole body", bodyLength > payload.length);
+
+		final CapturedRequest captured = server.getRequestsByServletPath("/upload").get(0);
+		assertEquals(0, captured.getMultiPartFileItems().size());
+		assertEquals(1, captured.getMultiPartDigests().size());
+		assertEquals(new CapturedPartDigest("myfile", "my.bin", "application/octet-stream", payload), captured.getMultiPartDigests().iterator().next());
+	}
+
+	@Test
+	public void test_digests_multipart_uploads_when_digesters_busy() throws Exception {
+		server.setMultipartCapture(MultipartCapture.DIGEST_PASS_THROUGH);
+		//more uploads in flight at once than there are digesters
+		final int numUploads = MultipartDigestTee.MAX_DIGESTERS + 2;
+		final CountDownLatch arrived = new CountDownLatch(numUploads);
+		server.addServlet("/upload", new TestServlet() {
+			@Override
+			protected void doPost(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				arrived.countDown();
+				try {
+					arrived.await(10, TimeUnit.SECONDS);
+				} catch (final InterruptedException e) {
+					throw new ServletException(e);
+				}
+				IOUtils.copyLarge(req.getInputStream(), new NullOutputStream());
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final byte[] payload = new byte[256 * 1024];
+		new Random(42).nextBytes(payload);
+		final ExecutorService executor = Executors.newFixedThreadPool(numUploads);
+		try {
+			final List<Future<Integer>> statuses = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < numUploads; i++) {
+				statuses.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						final HttpPost post = new HttpPost(server.getBaseHttpUrl() + "/upload");
+						post.setEntity(MultipartEntityBuilder.create()
+								.addBinaryBody("myfile", payload, ContentType.APPLICATION_OCTET_STREAM, "my.bin")
+								.build());
+						return HttpClientBuilder.create().build().execute(post).getStatusLine().getStatusCode();
+					}
+				}));
+			}
+			for (final Future<Integer> status : statuses) {
+				assertEquals(HttpServletResponse.SC_OK, status.get(10, TimeUnit.SECONDS).intValue());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		final CapturedPartDigest expect = new CapturedPartDigest("myfile", "my.bin", "application/octet-stream", payload);
+		final List<CapturedRequest> captured = server.getRequestsByServletPath("/upload");
+		assertEquals(numUploads, captured.size());
+		for (final CapturedRequest capture : captured) {
+			assertEquals(1, capture.getMultiPartDigests().size());
+			assertEquals(expect, capture.getMultiPartDigests().iterator().next());
+		}
+	}
+
+	@Test
+	public void test_matcher_copies_expected_request() {
+		final CapturedRequest expect = new CapturedRequest();
+		expect.method = "GET";
+		expect.addHeader("X-Tenant", "42");
+		final Matcher<CapturedRequest> matcher = ACapturedRequest.equalTo(expect);
+
+		final CapturedRequest actual = new CapturedRequest();
+		actual.method = "GET";
+		actual.addHeader("X-Tenant", "42");
+		assertTrue(matcher.matches(actual));
+
+		//changing the expectation afterwards doesn't change the matcher
+		expect.method = "POST";
+		expect.addHeader("X-Other", "1");
+		assertTrue(matcher.matches(actual));
+	}
+
+	@Test
+	public void test_query_uses_index_to_find_requests() throws Exception {
+		server.setIndexing(true);
+		server.addServlet("/query", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		for (int i = 0; i < 10; i++) {
+			final HttpGet get = new HttpGet(server.getBaseHttpUrl() + "/query?id=" + i);
+			get.setHeader("X-Tenant", i % 2 == 0 ? "even" : "odd");
+			IOUtils.closeQuietly(client.execute(get).getEntity().getContent());
+		}
+
+		assertEquals(10, server.query().methodGET().count());
+		assertEquals(0, server.query().methodPOST().count());
+		assertEquals(5, server.query().header("x-tenant", "odd").count());
+		assertEquals(1, server.query().header("X-Tenant", "odd").param("id", "3").count());
+		assertEquals(0, server.query().header("X-Tenant", "odd").param("id", "4").count());
+		assertEquals("7", server.queryPath("/query").param("id", "7").first().getParameters().get("id").iterator().next());
+		assertEquals(0, server.queryPath("/unknown").count());
+	}
+
+	@Test
+	public void test_query_does_not_return_evicted_requests() throws Exception {
+		server.setRetention(CaptureRetention.lastRequests(3));
+		server.setIndexing(true);
+		server.addServlet("/query", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		for (int i = 0; i < 10; i++) {
+			IOUtils.closeQuietly(client.execute(new HttpGet(server.getBaseHttpUrl() + "/query?id=" + i)).getEntity().getContent());
+		}
+
+		assertEquals(0, server.query().param("id", "0").count());
+		assertEquals(1, server.query().param("id", "9").count());
+		assertEquals(3, server.query().hasParam("id").count());
+	}
+
+	@Test
+	public void test_sampling_counts_every_request() throws Exception {
+		server.setCapturePolicy(CapturePolicy.sampleOneIn(3).setDetail(CaptureDetail.HEADERS));
+		server.addServlet("/sampled", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		for (int i = 0; i < 9; i++) {
+			IOUtils.closeQuietly(client.execute(new HttpGet(server.getBaseHttpUrl() + "/sampled?id=" + i)).getEntity().getContent());
+		}
+
+		assertEquals(9, server.getNumRequestsForPath("/sampled"));
+		assertEquals(9, server.getTotalNumRequests());
+		assertEquals(3, server.getNumCapturedRequests());
+		final Collection<CapturedRequest> captured = server.getRequestsByServletPath("/sampled");
+		assertEquals(3, captured.size());
+		for (final CapturedRequest req : captured) {
+			assertEquals("GET", req.method);
+			assertFalse(req.getHeaders().isEmpty());
+			assertTrue(req.getParameters().isEmpty());
+		}
+	}
+
+	@Test
+	public void test_captures_body_servlet_reads() throws Exception {
+		server.setBodyCapture(BodyCapture.upTo(10));
+		server.addServlet("/echo", new TestServlet() {
+			@Override
+			protected void doPost(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.setStatus(HttpServletResponse.SC_OK);
+				resp.getWriter().write(IOUtils.toString(req.getInputStream(), "UTF-8"));
+				resp.getWriter().flush();
+			}
+		});
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		final String json = "{\"name\":\"alice\",\"id\":1}";
+		final HttpPost post = new HttpPost(server.getBaseHttpUrl() + "/echo");
+		post.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+		final HttpResponse resp = client.execute(post);
+		assertEquals(json, IOUtils.toString(resp.getEntity().getContent(), "UTF-8"));
+
+		final CapturedRequest truncated = server.getRequestsByServletPath("/echo").get(0);
+		assertTrue(truncated.isBodyTruncated());
+		assertEquals(json.length(), truncated.getBodySize());
+		assertEquals(json.substring(0, 10), truncated.getBodyAsString());
+
+		server.setBodyCapture(BodyCapture.upTo(10).setOverflowToFile(true));
+		server.resetCaptures();
+		IOUtils.closeQuietly(client.execute(post).getEntity().getContent());
+
+		final CapturedRequest overflowed = server.getRequestsByServletPath("/echo").get(0);
+		assertFalse(overflowed.isBodyTruncated());
+		assertEquals(json, overflowed.getBodyAsString());
+	}
+
+	@Test
+	public void test_captures_h2c_stream_ids() throws Exception {
+		server.setConnector(ConnectorConfig.defaults().setProtocol(HttpProtocol.HTTP_1_1_AND_H2C));
+		server.addServlet("/h2", new TestServlet() {
+			@Override
+			protected void doGet(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final org.eclipse.jetty.client.HttpClient h2Client = new org.eclipse.jetty.client.HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), null);
+		h2Client.start();
+		try {
+			for (int i = 0; i < 3; i++) {
+				assertEquals(HttpServletResponse.SC_OK, h2Client.GET(server.getBaseHttpUrl() + "/h2?id=" + i).getStatus());
+			}
+		} finally {
+			h2Client.stop();
+		}
+		final long h2ConnectionsOpened = server.getConnectionStats().getConnectionsOpened();
+		//and plain http/1.1 still works on the same port
+		IOUtils.closeQuietly(HttpClientBuilder.create().build().execute(new HttpGet(server.getBaseHttpUrl() + "/h2?id=3")).getEntity().getContent());
+
+		final List<CapturedRequest> captured = server.getRequestsByServletPath("/h2");
+		assertEquals(4, captured.size());
+		final Set<Integer> streamIds = new HashSet<Integer>();
+		for (final CapturedRequest req : captured.subList(0, 3)) {
+			assertEquals("HTTP/2.0", req.protocol);
+			assertTrue(req.streamId > 0);
+			streamIds.add(req.streamId);
+		}
+		//multiplexed over the one connection
+		assertEquals(3, streamIds.size());
+		assertEquals(1, h2ConnectionsOpened);
+		assertTrue(captured.get(0).connectionId > 0);
+		assertEquals(captured.get(0).connectionId, captured.get(1).connectionId);
+		assertEquals(captured.get(0).connectionId, captured.get(2).connectionId);
+		assertTrue(captured.get(3).connectionId != captured.get(0).connectionId);
+		assertEquals("HTTP/1.1", captured.get(3).protocol);
+		assertEquals(-1, captured.get(3).streamId);
+		Expect
+			.that(captured.get(0))
+			.is(ACapturedRequest.with().methodGET().servletPath("/h2").protocol("HTTP/2.0").paramValues("id", "0"));
+	}
+
 	/**
 	 * Ensure that our servlets are wrapped and that requests going in are correctly captured, and
 	 * that we can retrieve them afterwards, and that asserts are good
@@ -199,4 +763,313 @@ public class CapturingTestServerTest {
 
 	
 
+	@Test
+	public void test_pooled_server_is_reset_on_release() throws Exception {
+		final CapturingTestServerPool pool = CapturingTestServerPool.start(1);
+		try {
+			final CapturingTestServer pooled = pool.lease();
+			assertTrue(pooled.isRunning());
+			assertEquals(0, pool.getNumIdle());
+			pooled.addServlet("/pooled", new TestServlet() {
+				@Override
+				protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) {
+					resp.setStatus(HttpServletResponse.SC_OK);
+				}
+			});
+			final HttpClient client = HttpClientBuilder.create().build();
+			final String url = pooled.getBaseHttpUrl() + "/pooled";
+			HttpResponse resp = client.execute(new HttpGet(url));
+			IOUtils.closeQuietly(resp.getEntity().getContent());
+			assertEquals(HttpServletResponse.SC_OK, resp.getStatusLine().getStatusCode());
+			assertEquals(1, pooled.getTotalNumRequests());
+			pool.release(pooled);
+
+			//same server, nothing left over
+			final CapturingTestServer again = pool.lease();
+			assertTrue(pooled == again);
+			assertEquals(0, again.getTotalNumRequests());
+			assertEquals(0, again.getAllRequests().size());
+			assertEquals(0, again.getConnectionStats().getRequests());
+			assertEquals(0, again.getConnectionStats().getConnectionsOpened());
+			resp = client.execute(new HttpGet(url));
+			IOUtils.closeQuietly(resp.getEntity().getContent());
+			assertEquals(HttpServletResponse.SC_NOT_FOUND, resp.getStatusLine().getStatusCode());
+			pool.release(again);
+		} finally {
+			pool.stop();
+		}
+	}
+
+	@Test
+	public void test_pooled_server_is_replaced_if_stopped() throws Exception {
+		final CapturingTestServerPool pool = CapturingTestServerPool.start(1);
+		try {
+			final CapturingTestServer pooled = pool.lease();
+			pooled.stop();
+			pool.release(pooled);
+
+			final CapturingTestServer replaced = pool.lease();
+			assertTrue(replaced != pooled);
+			assertTrue(replaced.isRunning());
+			assertEquals(1, pool.getSize());
+			pool.release(replaced);
+			assertEquals(1, pool.getNumIdle());
+		} finally {
+			pool.stop();
+		}
+	}
+
+	@Test
+	public void test_metrics_are_recorded_per_path() throws Exception {
+		server.setMetricsJmxEnabled(true);
+		server.addServlet("/metered", new TestServlet() {
+			@Override
+			protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+				IOUtils.copy(req.getInputStream(), new NullOutputStream());
+				resp.getOutputStream().write(new byte[100]);
+			}
+		});
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		for (int i = 0; i < 10; i++) {
+			final HttpPost post = new HttpPost(server.getBaseHttpUrl() + "/metered");
+			post.setEntity(new StringEntity("0123456789"));
+			IOUtils.closeQuietly(client.execute(post).getEntity().getContent());
+		}
+
+		final PathMetrics metrics = server.getMetrics("/metered");
+		assertEquals(10, metrics.getCount());
+		assertEquals(0, metrics.getInFlight());
+		assertEquals(1, metrics.getMaxInFlight());
+		assertEquals(100, metrics.getBytesIn());
+		assertEquals(1000, awaitBytesOut("/metered", 1000));
+		assertTrue(metrics.getRatePerSecond() > 0);
+		assertTrue(metrics.getServiceTimeMillis(50) > 0);
+		assertTrue(metrics.getServiceTimeMillis(99) <= metrics.getMaxServiceTimeMillis() * 1.02);
+
+		final ObjectName name = new ObjectName("org.codemucker.testserver:type=PathMetrics,server=*,path=" + ObjectName.quote("/metered"));
+		final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		final Set<ObjectName> names = mbeans.queryNames(name, null);
+		assertEquals(1, names.size());
+		assertEquals(10L, mbeans.getAttribute(names.iterator().next(), "Count"));
+
+		server.stop();
+		assertEquals(0, mbeans.queryNames(name, null).size());
+	}
+
+	@Test
+	public void test_recording_skips_captures_once_closed() throws Exception {
+		final File recording = File.createTempFile("captures", ".rec");
+		recording.deleteOnExit();
+		final CaptureRecordingWriter writer = CaptureRecordingWriter.create(recording);
+		assertTrue(writer.writeUnlessClosed(new CapturedRequest()));
+		writer.close();
+
+		assertFalse(writer.writeUnlessClosed(new CapturedRequest()));
+		assertEquals(1, writer.getNumWritten());
+	}
+
+	@Test
+	public void test_metrics_count_bytes_out_of_shaped_responses() throws Exception {
+		server.addServlet("/throttled", PayloadServlet.synthetic(2000, 1));
+		server.setResponseTiming("/throttled", ResponseTiming.none()
+				.setTimeToFirstByte(50, TimeUnit.MILLISECONDS)
+				.setBytesPerSecond(20000));
+		//too big to hold back so streamed
+		final int streamedSize = 2 * 1024 * 1024;
+		server.addServlet("/streamed", PayloadServlet.synthetic(streamedSize, 1));
+		server.setResponseTiming("/streamed", ResponseTiming.none().setTimeToFirstByte(50, TimeUnit.MILLISECONDS));
+		server.start();
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(2000, EntityUtils.toByteArray(client.execute(new HttpGet(server.getBaseHttpUrl() + "/throttled")).getEntity()).length);
+		}
+		assertEquals(streamedSize, EntityUtils.toByteArray(client.execute(new HttpGet(server.getBaseHttpUrl() + "/streamed")).getEntity()).length);
+
+		assertEquals(6000, awaitBytesOut("/throttled", 6000));
+		assertEquals(streamedSize, awaitBytesOut("/streamed", streamedSize));
+	}
+
+	/**
+	 * Bytes out are counted as each response completes, which can be just after the client has read it
+	 */
+	private long awaitBytesOut(final String servletPath, final long expect) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		long bytesOut;
+		while ((bytesOut = server.getMetrics(servletPath).getBytesOut()) < expect && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		return bytesOut;
+	}
+
+	@Test
+	public void test_histogram_percentiles_are_within_precision() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (long v = 1; v <= 100000; v++) {
+			histogram.record(v * 1000);
+		}
+		final long[] counts = histogram.copyCounts();
+		assertEquals(100000, histogram.getTotal());
+		assertEquals(100000L * 1000, histogram.getMax());
+		for (final double p : new double[] { 50, 90, 99, 99.9 }) {
+			final double expect = p * 1000 * 1000;
+			final long actual = LatencyHistogram.valueAtPercentile(counts, p);
+			assertTrue("p" + p + " expected ~" + expect + " but was " + actual, Math.abs(actual - expect) / expect < 0.02);
+		}
+		for (long v = 0; v < 1L << 40; v = v * 3 + 1) {
+			final int bucket = LatencyHistogram.bucketOf(v);
+			assertTrue(LatencyHistogram.highestValueIn(bucket) >= v);
+			assertTrue(bucket == 0 || LatencyHistogram.highestValueIn(bucket - 1) < v);
+		}
+	}
+
+	@Test
+	public void test_records_and_replays_captures() throws Exception {
+		server.setBodyCapture(BodyCapture.upTo(1024));
+		server.addServlet("/replay/*", new TestServlet() {
+			@Override
+			protected void service(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				IOUtils.toString(req.getInputStream(), "UTF-8");
+				resp.setStatus(HttpServletResponse.SC_OK);
+			}
+		});
+		server.start();
+
+		final File recording = File.createTempFile("captures", ".rec");
+		recording.deleteOnExit();
+		server.startRecording(recording);
+
+		final HttpClient client = HttpClientBuilder.create().build();
+		final HttpGet get = new HttpGet(server.getBaseHttpUrl() + "/replay/a%20b?id=1&tag=x&tag=y");
+		get.setHeader("X-Test", "first");
+		get.setHeader("Cookie", "session=abc");
+		IOUtils.closeQuietly(client.execute(get).getEntity().getContent());
+		Thread.sleep(300);
+		final HttpPost post = new HttpPost(server.getBaseHttpUrl() + "/replay/b");
+		post.setHeader("X-Test", "second");
+		post.setEntity(new StringEntity("{\"id\":2}", ContentType.APPLICATION_JSON));
+		IOUtils.closeQuietly(client.execute(post).getEntity().getContent());
+
+		assertEquals(2, server.stopRecording());
+
+		//reads back exactly what was captured
+		final List<CapturedRequest> captured = server.getAllRequests();
+		final CaptureRecordingReader reader = CaptureRecordingReader.open(recording);
+		try {
+			final CapturedRequest first = reader.next();
+			final CapturedRequest second = reader.next();
+			assertEquals(null, reader.next());
+			assertEquals(captured.get(0), first);
+			assertEquals(captured.get(1), second);
+			assertEquals(0, first.capturedAtNanos);
+			assertTrue(second.capturedAtNanos >= TimeUnit.MILLISECONDS.toNanos(300));
+		} finally {
+			reader.close();
+		}
+
+		//and replays it at twice the speed
+		server.resetCaptures();
+		final ReplayResult result = new CaptureReplayer(recording).setSpeed(2).replay(server.getBaseHttpUrl());
+		assertEquals(2, result.getNumSent());
+		assertEquals(0, result.getNumFailed());
+		assertEquals(2, result.getNumWithStatus(HttpServletResponse.SC_OK));
+		assertTrue("took " + result.getElapsedMillis() + "ms", result.getElapsedMillis() >= 140);
+
+		final List<CapturedRequest> replayed = server.getAllRequests();
+		assertEquals(2, replayed.size());
+		assertEquals("GET", replayed.get(0).method);
+		assertEquals("/a b", replayed.get(0).pathInfo);
+		assertEquals(captured.get(0).getParameters(), replayed.get(0).getParameters());
+		assertEquals(captured.get(0).getCookies(), replayed.get(0).getCookies());
+		assertTrue(replayed.get(0).getHeaders().contains(new CapturedHeader("X-Test", "first")));
+		assertEquals("POST", replayed.get(1).method);
+		assertEquals("{\"id\":2}", replayed.get(1).getBodyAsString());
+
+		//or as fast as possible
+		final ReplayResult fast = new CaptureReplayer(recording).setSpeed(CaptureReplayer.AS_FAST_AS_POSSIBLE).replay(server.getBaseHttpUrl());
+		assertEquals(2, fast.getNumWithStatus(HttpServletResponse.SC_OK));
+	}
+
+	@Test
+	public void test_suspended_requests_captured_once_completed() throws Exception {
+		server.setThreadPool(ThreadPoolConfig.bounded(8, 8));
+		server.setBodyCapture(BodyCapture.upTo(1024));
+		final Queue<AsyncContext> suspended = new ConcurrentLinkedQueue<AsyncContext>();
+		server.addServlet("/poll", new TestServlet() {
+			@Override
+			protected void service(final HttpServletRequest req,
+					final HttpServletResponse resp) throws ServletException,
+					IOException {
+				if (req.getDispatcherType() == DispatcherType.ASYNC) {
+					//woken up, only now read the body
+					resp.setStatus(HttpServletResponse.SC_OK);
+					resp.getWriter().write(IOUtils.toString(req.getInputStream(), "UTF-8"));
+					return;
+				}
+				final AsyncContext async = req.startAsync();
+				async.setTimeout(0);
+				suspended.add(async);
+			}
+		});
+		server.start();
+
+		final int numRequests = 200;
+		final CountDownLatch done = new CountDownLatch(numRequests);
+		final AtomicInteger numOk = new AtomicInteger();
+		final org.eclipse.jetty.client.HttpClient client = new org.eclipse.jetty.client.HttpClient();
+		client.setMaxConnectionsPerDestination(numRequests);
+		client.start();
+		try {
+			for (int i = 0; i < numRequests; i++) {
+				client.POST(server.getBaseHttpUrl() + "/poll?id=" + i)
+					.content(new StringContentProvider("body" + i))
+					.send(new Response.CompleteListener() {
+						@Override
+						public void onComplete(final Result result) {
+							if (!result.isFailed() && result.getResponse().getStatus() == HttpServletResponse.SC_OK) {
+								numOk.incrementAndGet();
+							}
+							done.countDown();
+						}
+					});
+			}
+			//far more requests suspended than there are threads
+			final long deadline = System.currentTimeMillis() + 10000;
+			while (suspended.size() < numRequests && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(numRequests, suspended.size());
+			assertEquals(numRequests, server.getMetrics("/poll").getInFlight());
+			assertEquals(0, server.getMetrics("/poll").getCount());
+			//bodies are captured once read
+			assertEquals(0, server.getAllRequests().size());
+
+			for (final AsyncContext async : suspended) {
+				async.dispatch();
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(numRequests, numOk.get());
+		} finally {
+			client.stop();
+		}
+
+		//captured once each, despite the redispatch
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (server.getAllRequests().size() < numRequests && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		final List<CapturedRequest> captured = server.getRequestsByServletPath("/poll");
+		assertEquals(numRequests, captured.size());
+		assertEquals(numRequests, server.getNumRequestsForPath("/poll"));
+		for (final CapturedRequest req : captured) {
+			assertEquals("body" + req.getParameters().get("id").iterator().next(), req.getBodyAsString());
+		}
+		assertEquals(numRequests, server.getMetrics("/poll").getCount());
+		assertEquals(0, server.getMetrics("/poll").getInFlight());
+	}
+
 }